@@ -0,0 +1,73 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.bench;
+
+import diuf.diva.dia.ms.ml.ae.StandardAutoEncoder;
+import diuf.diva.dia.ms.ml.ae.scae.Convolution;
+import diuf.diva.dia.ms.util.DataBlock;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of a whole convolution of 5x5 autoencoders with an offset of 5,
+ * for several numbers of positions.
+ * @author Mathias Seuret, Michele Alberti
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConvolutionBenchmark {
+
+    /**
+     * Width and height of the convolution, in autoencoders.
+     */
+    @Param({"4", "16", "32"})
+    public int positions;
+
+    @Param({"8", "32"})
+    public int hidden;
+
+    private Convolution convolution;
+
+    @Setup
+    public void setup() {
+        Synthetic.prepare();
+        StandardAutoEncoder unit = new StandardAutoEncoder(5, 5, 3, hidden, "NeuralLayer");
+        convolution = new Convolution(unit, positions, positions, 5, 5);
+        convolution.setInput(Synthetic.dataBlock(5 * positions, 5 * positions, 3), 0, 0);
+    }
+
+    @Benchmark
+    public DataBlock encode() {
+        convolution.encode();
+        return convolution.getOutput();
+    }
+}
@@ -0,0 +1,75 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.bench;
+
+import diuf.diva.dia.ms.util.DataBlock;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies of patches between data blocks and arrays, as done for each
+ * position of a convolution.
+ * @author Mathias Seuret, Michele Alberti
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DataBlockBenchmark {
+
+    @Param({"5", "15", "32"})
+    public int patchSize;
+
+    @Param({"3", "16"})
+    public int depth;
+
+    private DataBlock block;
+
+    private float[] patch;
+
+    @Setup
+    public void setup() {
+        Synthetic.prepare();
+        block = Synthetic.dataBlock(64, 64, depth);
+        patch = Synthetic.floats(patchSize * patchSize * depth);
+    }
+
+    @Benchmark
+    public float[] patchToArray() {
+        block.patchToArray(patch, 7, 11, patchSize, patchSize);
+        return patch;
+    }
+
+    @Benchmark
+    public DataBlock weightedPatchPaste() {
+        block.weightedPatchPaste(patch, 7, 11, patchSize, patchSize);
+        return block;
+    }
+}
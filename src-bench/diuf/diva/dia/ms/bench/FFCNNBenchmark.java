@@ -0,0 +1,84 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.bench;
+
+import diuf.diva.dia.ms.ml.ae.StandardAutoEncoder;
+import diuf.diva.dia.ms.ml.ae.ffcnn.FFCNN;
+import diuf.diva.dia.ms.ml.ae.scae.SCAE;
+import diuf.diva.dia.ms.util.DataBlock;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forward and backward passes of a classifier built on a two-layer SCAE,
+ * as done for each sample by the train-classifier command.
+ * @author Mathias Seuret, Michele Alberti
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FFCNNBenchmark {
+
+    @Param({"12", "48"})
+    public int hidden;
+
+    @Param({"4", "16"})
+    public int classes;
+
+    private FFCNN ffcnn;
+
+    @Setup
+    public void setup() {
+        Synthetic.prepare();
+        SCAE scae = new SCAE(new StandardAutoEncoder(5, 5, 3, hidden, "NeuralLayer"), 5, 5);
+        scae.addLayer(new StandardAutoEncoder(3, 3, hidden, hidden, "NeuralLayer"), 3, 3);
+        // The units are cloned with their input, as after training the SCAE
+        DataBlock input = Synthetic.dataBlock(scae.getInputPatchWidth(), scae.getInputPatchHeight(), 3);
+        scae.setInput(input);
+        ffcnn = new FFCNN(scae, "NeuralLayer", classes);
+        ffcnn.setInput(input, 0, 0);
+    }
+
+    @Benchmark
+    public DataBlock compute() {
+        ffcnn.compute();
+        return ffcnn.getOutput();
+    }
+
+    @Benchmark
+    public float backPropagate() {
+        ffcnn.compute();
+        for (int c = 0; c < classes; c++) {
+            ffcnn.setExpected(c, (c == 0) ? 1 : 0);
+        }
+        return ffcnn.backPropagate();
+    }
+}
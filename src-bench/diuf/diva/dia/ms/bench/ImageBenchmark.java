@@ -0,0 +1,74 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.bench;
+
+import diuf.diva.dia.ms.util.Image;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of an RGB image to each colorspace. As the conversion is done
+ * in place, a fresh RGB image is prepared before each call; the image is
+ * large enough for this not to disturb the measure.
+ * @author Mathias Seuret, Michele Alberti
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ImageBenchmark {
+
+    /**
+     * Target colorspace, all of them are measured.
+     */
+    @Param
+    public Image.Colorspace colorspace;
+
+    @Param({"512"})
+    public int size;
+
+    private Image image;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        Synthetic.prepare();
+    }
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        image = Synthetic.rgbImage(size, size);
+    }
+
+    @Benchmark
+    public Image convertTo() {
+        image.convertTo(colorspace);
+        return image;
+    }
+}
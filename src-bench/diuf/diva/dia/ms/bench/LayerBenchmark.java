@@ -0,0 +1,85 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.bench;
+
+import diuf.diva.dia.ms.ml.layer.Layer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forward and backward passes of a single layer, for each kind of layer
+ * and several sizes.
+ * @author Mathias Seuret, Michele Alberti
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LayerBenchmark {
+
+    @Param({"NeuralLayer", "LinearLayer", "OjasLayer"})
+    public String layerClass;
+
+    @Param({"75", "300", "1200"})
+    public int inputSize;
+
+    @Param({"16", "64", "256"})
+    public int outputSize;
+
+    private Layer layer;
+
+    private float[] error;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        Synthetic.prepare();
+        // Same instantiation as in StandardAutoEncoder
+        Class<?> c = Class.forName("diuf.diva.dia.ms.ml.layer." + layerClass);
+        layer = (Layer) c.getDeclaredConstructor(float[].class, int.class, int.class, float[][].class, float[].class)
+                .newInstance(Synthetic.floats(inputSize), inputSize, outputSize, null, null);
+        layer.setPreviousError(new float[inputSize]);
+        error = Synthetic.floats(outputSize);
+    }
+
+    @Benchmark
+    public float[] compute() {
+        layer.compute();
+        return layer.getOutputArray();
+    }
+
+    @Benchmark
+    public float backPropagate() {
+        layer.compute();
+        System.arraycopy(error, 0, layer.getError(), layer.getErrorOffset(), outputSize);
+        float err = layer.backPropagate();
+        layer.clearPreviousError();
+        return err;
+    }
+}
@@ -0,0 +1,77 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.bench;
+
+import diuf.diva.dia.ms.ml.rbm.BasicBBRBM;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Training of a binary-binary RBM on one sample. With mini-batches, the
+ * time is the average over the samples, the update being done once per
+ * batch.
+ * @author Mathias Seuret, Michele Alberti
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RBMBenchmark {
+
+    @Param({"75", "300"})
+    public int visible;
+
+    @Param({"32", "128"})
+    public int hidden;
+
+    @Param({"1", "16"})
+    public int batchSize;
+
+    @Param({"false", "true"})
+    public boolean persistent;
+
+    private BasicBBRBM rbm;
+
+    private int[] sample;
+
+    @Setup
+    public void setup() {
+        Synthetic.prepare();
+        rbm = new BasicBBRBM(visible, hidden);
+        rbm.setTraining(batchSize, 1, persistent);
+        sample = Synthetic.bits(visible);
+    }
+
+    @Benchmark
+    public BasicBBRBM train() {
+        rbm.train(sample);
+        return rbm;
+    }
+}
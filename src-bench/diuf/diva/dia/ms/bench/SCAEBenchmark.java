@@ -0,0 +1,81 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.bench;
+
+import diuf.diva.dia.ms.ml.ae.StandardAutoEncoder;
+import diuf.diva.dia.ms.ml.ae.scae.SCAE;
+import diuf.diva.dia.ms.util.DataBlock;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Training of the top layer of an SCAE on one sample, with one or two
+ * layers. The first layer has 5x5 units with an offset of 5, the second
+ * one 3x3 units over the first one.
+ * @author Mathias Seuret, Michele Alberti
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SCAEBenchmark {
+
+    @Param({"1", "2"})
+    public int layers;
+
+    @Param({"NeuralLayer", "LinearLayer"})
+    public String layerClass;
+
+    private SCAE scae;
+
+    private DataBlock input;
+
+    private int positions;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+        Synthetic.prepare();
+        scae = new SCAE(new StandardAutoEncoder(5, 5, 3, 12, layerClass), 5, 5);
+        if (layers == 2) {
+            scae.addLayer(new StandardAutoEncoder(3, 3, 12, 24, layerClass), 3, 3);
+        }
+        input = Synthetic.dataBlock(64, 64, 3);
+        positions = 64 - scae.getInputPatchWidth() + 1;
+    }
+
+    @Benchmark
+    public float train() {
+        // Deterministic walk over the positions of the input
+        next = (next + 7) % (positions * positions);
+        return scae.train(input, next % positions, next / positions);
+    }
+}
@@ -0,0 +1,130 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.bench;
+
+import diuf.diva.dia.ms.util.DataBlock;
+import diuf.diva.dia.ms.util.Image;
+import diuf.diva.dia.ms.util.Parallel;
+import diuf.diva.dia.ms.util.Rng;
+
+import java.util.SplittableRandom;
+
+/**
+ * Reproducible synthetic inputs shared by the benchmarks. Every benchmark
+ * calls prepare() in its setup, so that the weights of the networks and the
+ * data are the same from one run to the next.
+ * @author Mathias Seuret, Michele Alberti
+ */
+final class Synthetic {
+    /**
+     * Seed of the generators of the library and of the synthetic data.
+     */
+    static final long SEED = 42;
+
+    /**
+     * Number of threads used by the library, 1 unless the system property
+     * nlightn.bench.threads is set.
+     */
+    static final int THREADS = Integer.getInteger("nlightn.bench.threads", 1);
+
+    private Synthetic() {
+        // Static helpers only
+    }
+
+    /**
+     * Seeds the random number generators of the library and sets its
+     * number of threads. Must be called before creating the networks.
+     */
+    static void prepare() {
+        Rng.setSeed(SEED);
+        Parallel.setNbThreads(THREADS);
+    }
+
+    /**
+     * @param n number of values
+     * @return n values uniformly distributed between -1 and 1
+     */
+    static float[] floats(int n) {
+        SplittableRandom rand = new SplittableRandom(SEED);
+        float[] res = new float[n];
+        for (int i = 0; i < n; i++) {
+            res[i] = (float) (2 * rand.nextDouble() - 1);
+        }
+        return res;
+    }
+
+    /**
+     * @param n number of values
+     * @return n values being either 0 or 1
+     */
+    static int[] bits(int n) {
+        SplittableRandom rand = new SplittableRandom(SEED);
+        int[] res = new int[n];
+        for (int i = 0; i < n; i++) {
+            res[i] = rand.nextInt(2);
+        }
+        return res;
+    }
+
+    /**
+     * @param width  of the block
+     * @param height of the block
+     * @param depth  of the block
+     * @return a data block filled with values between -1 and 1
+     */
+    static DataBlock dataBlock(int width, int height, int depth) {
+        DataBlock db = new DataBlock(width, height, depth);
+        float[] v = floats(width * height * depth);
+        int i = 0;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                for (int z = 0; z < depth; z++) {
+                    db.setValue(z, x, y, v[i++]);
+                }
+            }
+        }
+        return db;
+    }
+
+    /**
+     * @param width  of the image
+     * @param height of the image
+     * @return an RGB image with values between 0 and 1
+     */
+    static Image rgbImage(int width, int height) {
+        Image img = new Image(width, height);
+        SplittableRandom rand = new SplittableRandom(SEED);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                for (int c = 0; c < 3; c++) {
+                    img.set(c, x, y, (float) rand.nextDouble());
+                }
+            }
+        }
+        return img;
+    }
+}
@@ -0,0 +1,108 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.ml.layer;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels using the Java Vector API. This class is compiled separately from
+ * the rest of the library, with --add-modules jdk.incubator.vector, and is
+ * loaded by Kernels.get() when available.
+ * @author Mathias Seuret, Michele Alberti
+ */
+final class VectorKernels extends Kernels {
+
+    /**
+     * Widest vectors supported by the processor.
+     */
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public float dot(float acc, float[] a, int aOffset, float[] b, int bOffset, int n) {
+        FloatVector sum = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, aOffset + i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, bOffset + i);
+            sum = va.fma(vb, sum);
+        }
+        acc += sum.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            acc += a[aOffset + i] * b[bOffset + i];
+        }
+        return acc;
+    }
+
+    @Override
+    public void softsign(float[] src, int srcOffset, float[] dst, int dstOffset, int n) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            FloatVector x = FloatVector.fromArray(SPECIES, src, srcOffset + i);
+            x.div(x.abs().add(1.0f)).intoArray(dst, dstOffset + i);
+        }
+        for (; i < n; i++) {
+            float x = src[srcOffset + i];
+            dst[dstOffset + i] = x / (1 + Math.abs(x));
+        }
+    }
+
+    @Override
+    public void axpy(float a, float[] x, int xOffset, float[] y, int yOffset, int n) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            FloatVector vx = FloatVector.fromArray(SPECIES, x, xOffset + i);
+            FloatVector vy = FloatVector.fromArray(SPECIES, y, yOffset + i);
+            vx.mul(a).add(vy).intoArray(y, yOffset + i);
+        }
+        for (; i < n; i++) {
+            y[yOffset + i] += a * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public void decayedUpdate(float[] w, float[] g, int offset, int n, float keep, float rate) {
+        FloatVector zero = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            FloatVector vw = FloatVector.fromArray(SPECIES, w, offset + i);
+            FloatVector vg = FloatVector.fromArray(SPECIES, g, offset + i);
+            vw.mul(keep).sub(vg.mul(rate)).intoArray(w, offset + i);
+            zero.intoArray(g, offset + i);
+        }
+        for (; i < n; i++) {
+            w[offset + i] = keep * w[offset + i] - rate * g[offset + i];
+            g[offset + i] = 0.0f;
+        }
+    }
+
+    @Override
+    public String name() {
+        return "vector (" + SPECIES.length() + " floats)";
+    }
+}
@@ -27,10 +27,9 @@
 package diuf.diva.dia.ms.ml;
 
 import diuf.diva.dia.ms.util.DataBlock;
+import diuf.diva.dia.ms.util.ModelFile;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 
 /**
  * This class defines the basic interface standard for a classifier in the framework.
@@ -64,6 +63,19 @@ public interface Classifier {
      */
     void centerInput(DataBlock db, int cx, int cy);     // cx and cy are exactly the pixel coordinate
 
+    /**
+     * Announces that the classifier is about to be applied on many positions of
+     * the same data block, e.g., on all pixels of a page. Classifiers able to share
+     * the computations of overlapping windows can prepare dense feature maps of the
+     * whole block and use them in compute() as long as their input is set on it.
+     * The others simply ignore it.
+     * @param db data block which will be evaluated, or null when the evaluation is over
+     * @return true if the classifier makes use of it
+     */
+    default boolean setDenseInput(DataBlock db) {
+        return false;
+    }
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Computing
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -135,6 +147,17 @@ public interface Classifier {
 
     void save(final String fName) throws IOException;
 
+    /**
+     * Creates a replica of the classifier: a copy sharing the weights of this
+     * classifier, but having its own inputs, outputs and working arrays, so that
+     * several replicas can classify different inputs at the same time.
+     * @return a new classifier sharing the weights of this one
+     * @throws CloneNotSupportedException if the classifier cannot be replicated
+     */
+    default Classifier replicate() throws CloneNotSupportedException {
+        throw new CloneNotSupportedException(name() + " cannot be replicated");
+    }
+
     /**
      * Loads a Classifier.
      *
@@ -144,11 +167,7 @@ public interface Classifier {
      * @throws ClassNotFoundException if the file is not valid, or if the class has been modified
      */
     static Classifier load(final String fName) throws IOException, ClassNotFoundException {
-        Classifier classifier;
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(fName))) {
-            classifier = (Classifier) ois.readObject();
-        }
-        return classifier;
+        return (Classifier) ModelFile.load(fName);
     }
 
 
@@ -38,6 +38,9 @@ import java.util.Arrays;
  * @author Michele Alberti, Mathias Seuret
  */
 public abstract class AutoEncoder implements Serializable {
+
+    private static final long serialVersionUID = 8208718489541969076L;
+
     /**
      * Reference to the input - can be modified.
      */
@@ -68,9 +71,15 @@ public abstract class AutoEncoder implements Serializable {
     protected int inputLength;
     /**
      * Input represented in a 1D array. Beware this copy needs to
-     * be manually updated as it is not a reference to real input
+     * be manually updated as it is not a reference to real input,
+     * use getInputArray() to get it up to date.
      */
     protected float[] inputArray;
+    /**
+     * True if the encoder reads the input patch directly in the data
+     * of the input block, false if it reads the input array.
+     */
+    protected boolean inputViewed;
     /**
      * Reference to the output.
      */
@@ -236,11 +245,6 @@ public abstract class AutoEncoder implements Serializable {
         // Init input array
         inputArray = new float[inputLength];
 
-        // Computing the input as 1D array form
-        this.input.patchToArray(inputArray, this.inputX, this.inputY, this.inputWidth, this.inputHeight);
-
-        assert (inputArray.length == inputLength);
-
         // Saving output param
         assert (output != null);
         assert (outputX >= 0);
@@ -271,19 +275,19 @@ public abstract class AutoEncoder implements Serializable {
         decoded = new float[inputLength];
 
         // Setting input and output of encoder
-        this.encoder.setInputArray(this.inputArray);
-        this.encoder.setOutputArray(this.output.getValues(this.outputX, this.outputY));
+        connectInput();
+        this.encoder.setOutputArray(this.output.getData(), this.output.getIndex(this.outputX, this.outputY));
 
         // Setting input and output of decoder
-        this.decoder.setInputArray(encoder.getOutputArray());
+        this.decoder.setInputArray(encoder.getOutputArray(), encoder.getOutputOffset());
         this.decoder.setOutputArray(decoded);
 
         // Setting previous error and error of encoder
         this.encoder.setPreviousError((prevErr != null) ? prevErr.patchToArray(this.inputX, this.inputY, this.inputWidth, this.inputHeight) : null);
-        this.encoder.setError(error.getValues(this.outputX, this.outputY));
+        this.encoder.setError(error.getData(), error.getIndex(this.outputX, this.outputY));
 
         // Setting previous error and error of decoder
-        this.decoder.setPreviousError(encoder.getError());
+        this.decoder.setPreviousError(encoder.getError(), encoder.getErrorOffset());
 
     }
 
@@ -295,14 +299,17 @@ public abstract class AutoEncoder implements Serializable {
      * Encodes the input and stores the result in the output.
      */
     public void encode(){
-        /* Copying the input patch as array for the encoder.
+        /* Copying the input patch as array for the encoder, unless the encoder
+         * reads it directly in the input block.
          * This is necessary because despite the input (dataBlock) reference
          * might be up to date, its content may have changed. This happens for instance
          * when the AE is convoluted, as previous layer changes content of
          * the input for the current layer. For this reason we just paste again
          * the input patch on array.
          */
-        input.patchToArray(inputArray, inputX, inputY, inputWidth, inputHeight);
+        if (!inputViewed) {
+            input.patchToArray(inputArray, inputX, inputY, inputWidth, inputHeight);
+        }
         encoder.compute();
     }
 
@@ -313,6 +320,45 @@ public abstract class AutoEncoder implements Serializable {
         decoder.compute();
     }
 
+    /**
+     * Encodes several input patches at once, with a single matrix product
+     * instead of one matrix-vector product per patch. The input and output
+     * of the autoencoder are neither used nor modified.
+     * @param patches input patches stored one after the other, each one in the
+     *                order of DataBlock.patchToArray()
+     * @param patchesOffset index of the first value of the first patch
+     * @param codes array receiving the encoded patches, one after the other
+     * @param codesOffset index of the first value of the first encoded patch
+     * @param n number of patches
+     * @throws UnsupportedOperationException if canEncodeBatch() returns false
+     */
+    public void encodeBatch(float[] patches, int patchesOffset, float[] codes, int codesOffset, int n) {
+        if (!canEncodeBatch()) {
+            throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot encode batches");
+        }
+        encoder.computeBatch(patches, patchesOffset, codes, codesOffset, n);
+    }
+
+    /**
+     * Indicates whether encodeBatch() can be used. This is the case when
+     * encode() does nothing else than computing the encoder layer.
+     * @return false by default
+     */
+    public boolean canEncodeBatch() {
+        return false;
+    }
+
+    /**
+     * Indicates whether several replicas of this autoencoder can be trained at
+     * the same time, each one updating the shared weights without locking. This
+     * is the case when train() only changes the weights of the layers, all other
+     * arrays being owned by each replica.
+     * @return false by default
+     */
+    public boolean canTrainAsynchronously() {
+        return false;
+    }
+
     /**
      * Trains the auto-encoder.
      * @return an estimation of the reconstruction error
@@ -324,8 +370,9 @@ public abstract class AutoEncoder implements Serializable {
         decoder.compute();
 
         // Set expected for all input
+        float[] expected = getInputArray();
         for (int i = 0; i < inputLength; i++) {
-            decoder.setExpected(i, inputArray[i]);
+            decoder.setExpected(i, expected[i]);
         }
 
         // Backpropagate
@@ -357,7 +404,7 @@ public abstract class AutoEncoder implements Serializable {
      */
     public float backPropagate() {
         // Backpropagate
-        float err = encoder.backPropagate();
+        float err = backPropagateEncoder();
 
         // Set the previous error from layer to datablock!
         if (prevErr!=null) {
@@ -366,6 +413,30 @@ public abstract class AutoEncoder implements Serializable {
         return err;
     }
 
+    /**
+     * Backpropagates the error through the encoder only. The error of the
+     * inputs stays in the previous error array of the encoder until
+     * pastePreviousError() is called; backPropagate() does both.
+     * @return the error
+     */
+    public float backPropagateEncoder() {
+        return encoder.backPropagate();
+    }
+
+    /**
+     * Pastes the error of the inputs computed by backPropagateEncoder() on
+     * some columns of the previous error block. Units whose inputs overlap
+     * can paste their errors from different threads at the same time as long
+     * as the column ranges are disjoint.
+     * @param fromX first column of the previous error block
+     * @param toX column after the last one
+     */
+    public void pastePreviousError(int fromX, int toX) {
+        if (prevErr != null) {
+            prevErr.weightedPatchPaste(encoder.getPreviousError(), inputX, inputY, inputWidth, inputHeight, fromX, toX);
+        }
+    }
+
     /**
      * This method MUST be called when the training is done.
      * Clearly those AE which need this must override this method
@@ -408,6 +479,20 @@ public abstract class AutoEncoder implements Serializable {
         return input;
     }
 
+    /**
+     * @return the x coordinate of the input patch
+     */
+    public int getInputX() {
+        return inputX;
+    }
+
+    /**
+     * @return the y coordinate of the input patch
+     */
+    public int getInputY() {
+        return inputY;
+    }
+
     /**
      * Sets the input.
      *
@@ -429,11 +514,34 @@ public abstract class AutoEncoder implements Serializable {
         inputX = x;
         inputY = y;
 
-        // Computing the new input as 1D array form
-        input.patchToArray(inputArray, inputX, inputY, inputWidth, inputHeight);
-
         // Set input for encoder
-        encoder.setInputArray(inputArray);
+        connectInput();
+    }
+
+    /**
+     * Connects the encoder to the input patch. If the input block stores its
+     * values in an array, the encoder reads the patch directly in it: each
+     * column of the patch is a run of inputHeight*inputDepth consecutive values.
+     * Otherwise, the patch is copied into the input array.
+     */
+    private void connectInput() {
+        if (encoder != null && input != null && input.hasData()) {
+            encoder.setInputView(
+                    input.getData(),
+                    input.getIndex(inputX, inputY),
+                    inputHeight * inputDepth,
+                    input.getColumnStride()
+            );
+            inputViewed = true;
+        } else {
+            if (input != null) {
+                input.patchToArray(inputArray, inputX, inputY, inputWidth, inputHeight);
+            }
+            if (encoder != null) {
+                encoder.setInputArray(inputArray);
+            }
+            inputViewed = false;
+        }
     }
 
     /**
@@ -465,9 +573,14 @@ public abstract class AutoEncoder implements Serializable {
     }
 
     /**
+     * If the encoder reads the input block directly, the input patch is
+     * copied into the input array before returning it.
      * @return the input array as 1D array form, NOT a copy
      */
     public float[] getInputArray(){
+        if (inputViewed) {
+            input.patchToArray(inputArray, inputX, inputY, inputWidth, inputHeight);
+        }
         return inputArray;
     }
 
@@ -491,8 +604,6 @@ public abstract class AutoEncoder implements Serializable {
      */
     public void setOutput(DataBlock db, int x, int y) {
         assert (db != null);
-        assert (encoder != null); // Forgot to init AutoEncoder properly?
-        assert (decoder != null); // Forgot to init AutoEncoder properly?
         assert (db.getDepth() == outputDepth);
         assert (x < db.getWidth());
         assert (y < db.getHeight());
@@ -502,11 +613,16 @@ public abstract class AutoEncoder implements Serializable {
         outputX = x;
         outputY = y;
 
-        // Set output for encoder
-        encoder.setOutputArray(output.getValues(x, y));
+        // Units without layers, e.g., the RBMs, use setOutputValue()
+        if (encoder == null || decoder == null) {
+            return;
+        }
+
+        // Set output for encoder, it writes directly into the data block
+        encoder.setOutputArray(output.getData(), output.getIndex(x, y));
 
         // Set input for decoder (which is the same as the output of the encoder!)
-        decoder.setInputArray(output.getValues(x, y));
+        decoder.setInputArray(output.getData(), output.getIndex(x, y));
     }
 
     /**
@@ -517,12 +633,30 @@ public abstract class AutoEncoder implements Serializable {
     }
 
     /**
-     * @return the output array, not a copy
+     * @return a copy of the output values, use getOutputValue() and
+     * setOutputValue() for accessing them directly
      */
     public float[] getOutputArray() {
         return output.getValues(outputX,outputY);
     }
 
+    /**
+     * @param n output number
+     * @return the value of the output
+     */
+    public float getOutputValue(int n) {
+        return output.getValue(n, outputX, outputY);
+    }
+
+    /**
+     * Changes the value of an output.
+     * @param n output number
+     * @param v new value
+     */
+    public void setOutputValue(int n, float v) {
+        output.setValue(n, outputX, outputY, v);
+    }
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Error related
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -558,10 +692,10 @@ public abstract class AutoEncoder implements Serializable {
         error = db;
 
         // Set error for the encoder
-        encoder.setError(error.getValues(outputX, outputY));
+        encoder.setError(error.getData(), error.getIndex(outputX, outputY));
 
         // Setting previous error of decoder
-        this.decoder.setPreviousError(encoder.getError());
+        this.decoder.setPreviousError(encoder.getError(), encoder.getErrorOffset());
     }
 
     /**
@@ -593,12 +727,16 @@ public abstract class AutoEncoder implements Serializable {
         this.encoder = encoder;
 
         // Setting input and output of encoder
-        encoder.setInputArray(inputArray);
-        encoder.setOutputArray((output != null) ? output.getValues(outputX, outputY) : null);
+        connectInput();
+        if (output != null) {
+            encoder.setOutputArray(output.getData(), output.getIndex(outputX, outputY));
+        } else {
+            encoder.setOutputArray(null);
+        }
 
         // Setting previous error and error of encoder
         encoder.setPreviousError((prevErr != null) ? prevErr.patchToArray(this.inputX, this.inputY, this.inputWidth, this.inputHeight) : null);
-        encoder.setError(error.getValues(outputX, outputY));
+        encoder.setError(error.getData(), error.getIndex(outputX, outputY));
     }
 
     /**
@@ -617,11 +755,11 @@ public abstract class AutoEncoder implements Serializable {
         this.decoder = decoder;
 
         // Setting input and output of decoder
-        decoder.setInputArray(encoder.getOutputArray());
+        decoder.setInputArray(encoder.getOutputArray(), encoder.getOutputOffset());
         decoder.setOutputArray(decoded);
 
         // Setting previous error and error of decoder
-        decoder.setPreviousError(encoder.getError());
+        decoder.setPreviousError(encoder.getError(), encoder.getErrorOffset());
     }
 
     /**
@@ -708,6 +846,46 @@ public abstract class AutoEncoder implements Serializable {
      */
     public abstract AutoEncoder clone();
 
+    /**
+     * Creates a replica of the AE: a clone which shares the weights of this AE,
+     * but has its own input, output and working arrays. Replicas can thus encode
+     * different positions at the same time, and they see every modification made
+     * to the weights of the original.
+     *
+     * @return a replica of the AE
+     * @throws UnsupportedOperationException if the AE cannot be cloned
+     */
+    public AutoEncoder replicate() {
+        AutoEncoder replica = clone();
+        replica.shareWeights(this);
+        return replica;
+    }
+
+    /**
+     * Makes the encoder and decoder of this AE use the weights of another AE having
+     * the same structure.
+     *
+     * @param source AE whose weights are shared
+     */
+    public void shareWeights(AutoEncoder source) {
+        if (encoder == null || decoder == null || source.encoder == null || source.decoder == null) {
+            throw new UnsupportedOperationException(getClass().getSimpleName() + " has no layers whose weights can be shared");
+        }
+        encoder.shareWeights(source.encoder);
+        decoder.shareWeights(source.decoder);
+    }
+
+    /**
+     * Moves the gradients accumulated by the encoder of another AE having the
+     * same structure to the encoder of this AE. Only the encoder is considered,
+     * as it is the only layer trained by backPropagate() and learn().
+     *
+     * @param source AE whose gradients are merged
+     */
+    public void mergeGradients(AutoEncoder source) {
+        encoder.mergeGradients(source.encoder);
+    }
+
     /**
      * Parses the short class name
      *
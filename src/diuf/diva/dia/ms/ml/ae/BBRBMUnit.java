@@ -36,6 +36,9 @@ import java.io.Serializable;
  */
 
 public class BBRBMUnit extends AutoEncoder implements Serializable {
+
+    private static final long serialVersionUID = -5990486939987971035L;
+
     BasicBBRBM rbm;
     
     
@@ -44,19 +47,29 @@ public class BBRBMUnit extends AutoEncoder implements Serializable {
         rbm = new BasicBBRBM(inW*inH*inD, oD);
     }
 
+    /**
+     * Sets how the RBM is trained.
+     * @param batchSize number of samples per mini-batch
+     * @param cdSteps number of Gibbs steps of the CD
+     * @param persistent true for persistent CD
+     */
+    public void setTraining(int batchSize, int cdSteps, boolean persistent) {
+        rbm.setTraining(batchSize, cdSteps, persistent);
+    }
+
     @Override
     public void encode() {
         rbm.load(getInputArray());
         rbm.updateHidden();
         for (int h=0; h<outputDepth; h++) {
-            getOutputArray()[h] = rbm.getHidden()[h];
+            setOutputValue(h, rbm.getHidden()[h]);
         }
     }
 
     @Override
     public void decode() {
         for (int h=0; h<outputDepth; h++) {
-            rbm.getHidden()[h] = (getOutputArray()[h] > 0.5f) ? 1 : 0;
+            rbm.getHidden()[h] = (getOutputValue(h) > 0.5f) ? 1 : 0;
         }
         rbm.decode();
         for (int v = 0; v < inputLength; v++) {
@@ -66,6 +79,7 @@ public class BBRBMUnit extends AutoEncoder implements Serializable {
 
     @Override
     public float train() {
+        rbm.load(getInputArray());
         return rbm.train();
     }
 
@@ -87,7 +101,8 @@ public class BBRBMUnit extends AutoEncoder implements Serializable {
     
     @Override
     public void trainingDone() {
-        // Nothing to do.
+        // Trains the RBM on the incomplete mini-batch
+        rbm.trainingDone();
     }
 
     @Override
@@ -35,6 +35,9 @@ import java.io.Serializable;
  */
 
 public class GBRBMUnit extends AutoEncoder implements Serializable {
+
+    private static final long serialVersionUID = -2381997673347266035L;
+
     BasicGBRBM rbm;
     
     public GBRBMUnit(int inW, int inH, int inD, int oD) {
@@ -42,19 +45,29 @@ public class GBRBMUnit extends AutoEncoder implements Serializable {
         rbm = new BasicGBRBM(inW*inH*inD, oD);
     }
 
+    /**
+     * Sets how the RBM is trained.
+     * @param batchSize number of samples per mini-batch
+     * @param cdSteps number of Gibbs steps of the CD
+     * @param persistent true for persistent CD
+     */
+    public void setTraining(int batchSize, int cdSteps, boolean persistent) {
+        rbm.setTraining(batchSize, cdSteps, persistent);
+    }
+
     @Override
     public void encode() {
         rbm.load(getInputArray());
         rbm.updateHidden();
         for (int h=0; h<outputDepth; h++) {
-            getOutputArray()[h] = rbm.getHidden()[h];
+            setOutputValue(h, rbm.getHidden()[h]);
         }
     }
 
     @Override
     public void decode() {
         for (int h=0; h<outputDepth; h++) {
-            rbm.getHidden()[h] = (getOutputArray()[h] > 0.5f) ? 1 : 0;
+            rbm.getHidden()[h] = (getOutputValue(h) > 0.5f) ? 1 : 0;
         }
         rbm.decode();
         for (int v = 0; v < inputLength; v++) {
@@ -69,7 +82,7 @@ public class GBRBMUnit extends AutoEncoder implements Serializable {
 
     @Override
     public void activateOutput(int n, boolean state) {
-        getOutputArray()[n] = (state) ? 1 : 0;
+        setOutputValue(n, (state) ? 1 : 0);
     }
 
     @Override
@@ -84,7 +97,8 @@ public class GBRBMUnit extends AutoEncoder implements Serializable {
     
     @Override
     public void trainingDone() {
-        // Nothing to do.
+        // Trains the RBM on the incomplete mini-batch
+        rbm.trainingDone();
     }
 
     @Override
@@ -28,13 +28,13 @@ package diuf.diva.dia.ms.ml.ae;
 
 import Jama.Matrix;
 import diuf.diva.dia.ms.ml.layer.Layer;
+import diuf.diva.dia.ms.util.CovarianceAccumulator;
 import diuf.diva.dia.ms.util.PCA;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
-import java.util.stream.IntStream;
 
 /**
  * Autoencoder witch sets  initial weights with a PCA algorithm.
@@ -45,15 +45,21 @@ import java.util.stream.IntStream;
 
 public class PCAAutoEncoder extends AutoEncoder {
 
+    private static final long serialVersionUID = -8985920630859931777L;
+
     /**
      * Keeps track whether trainingDone() has been already called or not
      */
     protected boolean trainingDone = false;
     /**
-     * List that stores all training data provided,
+     * Accumulates the mean and covariance of the training data provided,
      * with which will be calculated the PCA transformation
      */
-    private final List<double[]> trainingData = new ArrayList<>();
+    private transient CovarianceAccumulator covariance;
+    /**
+     * Method used for computing the PCA
+     */
+    private PCA.Solver solver = PCA.Solver.EIGEN;
 
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Constructor
@@ -140,6 +146,14 @@ public class PCAAutoEncoder extends AutoEncoder {
         }
     }
 
+    /**
+     * @return true once the training is done
+     */
+    @Override
+    public boolean canEncodeBatch() {
+        return trainingDone;
+    }
+
     @Override
     public void decode() {
         if (!trainingDone) {
@@ -152,9 +166,11 @@ public class PCAAutoEncoder extends AutoEncoder {
     @Override
     public float train() {
         if (!trainingDone) {
-            // Store the input into the training data set
-            double[] x = IntStream.range(0, inputArray.clone().length).mapToDouble(i -> inputArray.clone()[i]).toArray();
-            trainingData.add(x);
+            // Fold the input into the covariance
+            if (covariance == null) {
+                covariance = new CovarianceAccumulator(inputLength);
+            }
+            covariance.add(getInputArray(), 0);
             return 0;
         } else {
             return super.train();
@@ -165,30 +181,15 @@ public class PCAAutoEncoder extends AutoEncoder {
     public void trainingDone() {
         // Only if it was not done before
         if (!trainingDone) {
-            SimpleDateFormat ft = new SimpleDateFormat("HH:mm:ss.SSS");
-            System.out.println(ft.format(new Date()) + ": Converting training set");
-
-            // Create the training dataset in double[][] form from the linked list
-            int n = trainingData.size();
-            int m = trainingData.get(0).length;
-            double[][] tds = new double[n][m];
-            for (int i = 0; i < n; i++) {
-                System.arraycopy(trainingData.get(i), 0, tds[i], 0, m);
+            if (covariance == null) {
+                throw new IllegalStateException("cannot compute the PCA without training data");
             }
 
             // Compute PCA
-            System.out.print(ft.format(new Date()) + ": Computing PCA");
-
-            Matrix mat = new Matrix(tds);
-            for (int r = 0; r < mat.getRowDimension(); r++) {
-                for (int c = 0; c < mat.getColumnDimension(); c++) {
-                    if (mat.get(r, c) != mat.get(r, c)) {
-                        throw new RuntimeException("NaN detected. Something went wrong.");
-                    }
-                }
-            }
+            SimpleDateFormat ft = new SimpleDateFormat("HH:mm:ss.SSS");
+            System.out.print(ft.format(new Date()) + ": Computing PCA of " + covariance.getCount() + " samples");
 
-            PCA pca = new PCA(mat, outputDepth);
+            PCA pca = new PCA(covariance, outputDepth, solver);
 
             // Get the transformation matrix W
             Matrix W = pca.getW();
@@ -222,14 +223,22 @@ public class PCAAutoEncoder extends AutoEncoder {
             // Set the flag to true
             trainingDone = true;
 
-            // Free the memory of the training data
-            trainingData.clear();
+            // Free the memory of the covariance
+            covariance = null;
         }
     }
 
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Utility
     ///////////////////////////////////////////////////////////////////////////////////////////////
+    /**
+     * Selects how the PCA is computed when the training is done.
+     * @param solver the method, EIGEN by default
+     */
+    public void setSolver(PCA.Solver solver) {
+        this.solver = solver;
+    }
+
     /**
      * Sets the training done to a specified parameter
      * @param std the value to be used
@@ -238,6 +247,19 @@ public class PCAAutoEncoder extends AutoEncoder {
         trainingDone = std;
     }
 
+    /**
+     * Shares the weights of another PCAAutoEncoder, and follows its training state.
+     *
+     * @param source AE whose weights are shared
+     */
+    @Override
+    public void shareWeights(AutoEncoder source) {
+        super.shareWeights(source);
+        if (source instanceof PCAAutoEncoder) {
+            trainingDone = ((PCAAutoEncoder) source).trainingDone;
+        }
+    }
+
     /**
      * This creates a deep copy of the AE. Note however than the dataBlocks are not cloned on purpose.
      * In fact, we want to copy the AE and not his environment. It is duty of who uses the copy to
@@ -282,6 +304,9 @@ public class PCAAutoEncoder extends AutoEncoder {
         // Set training done
         pcaAutoEncoder.setTrainingDone(trainingDone);
 
+        // Set the PCA solver
+        pcaAutoEncoder.setSolver(solver);
+
         return pcaAutoEncoder;
     }
 
@@ -297,4 +322,19 @@ public class PCAAutoEncoder extends AutoEncoder {
         return 'p';
     }
 
+    /**
+     * Deserializes the autoencoder. Older versions had no solver, they used
+     * the eigendecomposition.
+     *
+     * @param in input stream
+     * @throws IOException            if the autoencoder cannot be read
+     * @throws ClassNotFoundException if the stream is not valid
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (solver == null) {
+            solver = PCA.Solver.EIGEN;
+        }
+    }
+
 }
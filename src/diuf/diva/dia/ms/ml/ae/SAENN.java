@@ -36,6 +36,9 @@ import java.util.Arrays;
  * @author Mathias Seuret
  */
 public class SAENN implements Serializable {
+
+    private static final long serialVersionUID = 5916803203621032567L;
+
     /**
      * Dimension of the output.
      */
@@ -35,6 +35,8 @@ import java.io.Serializable;
 
 public class SAENNUnit extends AutoEncoder implements Serializable {
 
+    private static final long serialVersionUID = -6376862860822628745L;
+
     /**
      * Autoencoding neural network used by the unit.
      */
@@ -62,14 +64,14 @@ public class SAENNUnit extends AutoEncoder implements Serializable {
         nn.setInput(getInputArray());
         nn.encode();
         for (int o=0; o<outputDepth; o++) {
-            getOutputArray()[o] = nn.getEncoded()[o];
+            setOutputValue(o, nn.getEncoded()[o]);
         }
     }
 
     @Override
     public void decode() {
         for (int h=0; h<outputDepth; h++) {
-            nn.getEncoded()[h] = getOutputArray()[h];
+            nn.getEncoded()[h] = getOutputValue(h);
         }
         nn.decode();
         for (int v = 0; v < inputLength; v++) {
@@ -79,7 +81,7 @@ public class SAENNUnit extends AutoEncoder implements Serializable {
     
     public float[] decode(float[] val) {
         for (int i=0; i<outputDepth; i++) {
-            getOutputArray()[i] = val[i];
+            setOutputValue(i, val[i]);
         }
         decode();
         return decoded;
@@ -92,7 +94,7 @@ public class SAENNUnit extends AutoEncoder implements Serializable {
         nn.setInput(inputArray);
         nn.encode();
         for (int o=0; o<outputDepth; o++) {
-            getOutputArray()[o] = nn.getEncoded()[o];
+            setOutputValue(o, nn.getEncoded()[o]);
         }
         return getOutputArray();
     }
@@ -35,6 +35,8 @@ import diuf.diva.dia.ms.ml.layer.Layer;
  */
 public class StandardAutoEncoder extends AutoEncoder {
 
+    private static final long serialVersionUID = -8393220033832870794L;
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Constructor
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -120,6 +122,26 @@ public class StandardAutoEncoder extends AutoEncoder {
         }
     }
 
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Computing
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return true, encoding only computes the encoder layer
+     */
+    @Override
+    public boolean canEncodeBatch() {
+        return true;
+    }
+
+    /**
+     * @return true, training only updates the weights of the layers
+     */
+    @Override
+    public boolean canTrainAsynchronously() {
+        return true;
+    }
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Utility
     ///////////////////////////////////////////////////////////////////////////////////////////////
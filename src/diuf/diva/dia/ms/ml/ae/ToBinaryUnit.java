@@ -32,6 +32,9 @@ package diuf.diva.dia.ms.ml.ae;
  */
 
 public class ToBinaryUnit extends AutoEncoder {
+
+    private static final long serialVersionUID = -3129394860618544258L;
+
     public ToBinaryUnit(int inW, int inH, int inD, int oD) {
         super(inW, inH, inD, oD);
         if (inW!=1 || inH!=1) {
@@ -50,14 +53,14 @@ public class ToBinaryUnit extends AutoEncoder {
     public void encode() {
         float[] input = getInputArray();
         for (int i = 0; i < inputLength; i++) {
-            getOutputArray()[i] = (input[i] > 0) ? 1 : 0;
+            setOutputValue(i, (input[i] > 0) ? 1 : 0);
         }
     }
 
     @Override
     public void decode() {
         for (int i = 0; i < inputLength; i++) {
-            decoded[i] = getOutputArray()[i] > 0.5 ? 1 : -1;
+            decoded[i] = getOutputValue(i) > 0.5 ? 1 : -1;
         }
     }
 
@@ -32,6 +32,8 @@ package diuf.diva.dia.ms.ml.ae;
  */
 public class ToRealUnit extends AutoEncoder {
 
+    private static final long serialVersionUID = 1449450647037250798L;
+
     public ToRealUnit(int inW, int inH, int inD, int oD) {
         super(inW, inH, inD, oD);
         if (inW!=1 || inH!=1) {
@@ -50,14 +52,14 @@ public class ToRealUnit extends AutoEncoder {
     public void encode() {
         float[] input = getInputArray();
         for (int i = 0; i < inputLength; i++) {
-            getOutputArray()[i] = (input[i] > 0.5) ? 1 : -1;
+            setOutputValue(i, (input[i] > 0.5) ? 1 : -1);
         }
     }
 
     @Override
     public void decode() {
         for (int i = 0; i < inputLength; i++) {
-            decoded[i] = getOutputArray()[i] > 0.5 ? 1 : -1;
+            decoded[i] = getOutputValue(i) > 0.5 ? 1 : -1;
         }
     }
 
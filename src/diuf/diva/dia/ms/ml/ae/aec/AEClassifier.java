@@ -28,8 +28,10 @@ package diuf.diva.dia.ms.ml.ae.aec;
 
 import diuf.diva.dia.ms.ml.Classifier;
 import diuf.diva.dia.ms.ml.mlnn.MLNN;
+import diuf.diva.dia.ms.ml.ae.scae.DenseSCAE;
 import diuf.diva.dia.ms.ml.ae.scae.SCAE;
 import diuf.diva.dia.ms.util.DataBlock;
+import diuf.diva.dia.ms.util.ModelFile;
 
 import java.io.*;
 
@@ -40,6 +42,9 @@ import java.io.*;
  * @author Mathias Seuret,Michele Alberti
  */
 public class AEClassifier implements Classifier, Serializable {
+
+    private static final long serialVersionUID = 2353628186408909185L;
+
     /**
      * Reference to the autoencoder.
      */
@@ -55,6 +60,21 @@ public class AEClassifier implements Classifier, Serializable {
      */
     protected MLNN mlnn;
 
+    /**
+     * Dense feature maps of the data block given to setDenseInput(), if any.
+     */
+    protected transient DenseSCAE dense;
+
+    /**
+     * True if the current input is on the dense data block.
+     */
+    protected transient boolean denseInput;
+
+    /**
+     * Position of the top-left corner of the current input on the dense data block.
+     */
+    protected transient int denseX, denseY;
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Constructor
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -73,6 +93,19 @@ public class AEClassifier implements Classifier, Serializable {
         mlnn.setInput(scae.getCentralMultilayerFeatures());
     }
 
+    /**
+     * Creates a classifier from an SCAE and a neural network, used for the replicas.
+     * @param ae the autoencoder
+     * @param nbClasses the number of classes
+     * @param mlnn the neural network, whose input is connected to the features of the SCAE
+     */
+    private AEClassifier(final SCAE ae, final int nbClasses, final MLNN mlnn) {
+        this.scae = ae;
+        this.nbClasses = nbClasses;
+        this.mlnn = mlnn;
+        mlnn.setInput(scae.getCentralMultilayerFeatures());
+    }
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Setting input
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -84,7 +117,7 @@ public class AEClassifier implements Classifier, Serializable {
      * @param y position
      */
     public void setInput(DataBlock db, int x, int y) {
-        scae.setInput(db, x - scae.getInputPatchWidth() / 2, y - scae.getInputPatchHeight() / 2);
+        centerInput(db, x, y);
     }
 
     /**
@@ -94,7 +127,31 @@ public class AEClassifier implements Classifier, Serializable {
      * @param cy center y
      */
     public void centerInput(DataBlock db, int cx, int cy) {
-        scae.setInput(db, cx - scae.getInputPatchWidth() / 2, cy - scae.getInputPatchHeight() / 2);
+        int x = cx - scae.getInputPatchWidth() / 2;
+        int y = cy - scae.getInputPatchHeight() / 2;
+        denseInput = (dense != null && dense.getInput() == db);
+        if (denseInput) {
+            denseX = x;
+            denseY = y;
+        } else {
+            scae.setInput(db, x, y);
+        }
+    }
+
+    /**
+     * Prepares the dense feature maps of the SCAE for the given data block, they are
+     * then used by compute() whenever the input is set on this block.
+     * @param db data block which will be evaluated, or null when the evaluation is over
+     * @return true
+     */
+    @Override
+    public boolean setDenseInput(DataBlock db) {
+        if (dense != null) {
+            dense.release();
+        }
+        dense = (db != null) ? new DenseSCAE(scae, db) : null;
+        denseInput = false;
+        return true;
     }
 
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -105,7 +162,12 @@ public class AEClassifier implements Classifier, Serializable {
      * Computes the features and then the classes.
      */
     public void compute() {
-        scae.forward();
+        if (denseInput) {
+            dense.getCentralMultilayerFeatures(denseX, denseY);
+        } else {
+            scae.forward();
+            scae.getCentralMultilayerFeatures();
+        }
         mlnn.compute();
     }
 
@@ -281,12 +343,25 @@ public class AEClassifier implements Classifier, Serializable {
 
         DataBlock pIn = scae.getBase().getInput();
         scae.setInput(new DataBlock(scae.getInputPatchWidth(), scae.getInputPatchHeight(), scae.getInputPatchDepth()));
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(fName))) {
-            oos.writeObject(this);
-        }
+        ModelFile.save(fName, this);
         scae.getBase().setInput(pIn);
     }
 
+    /**
+     * Creates a replica of the classifier: a copy whose SCAE and neural network
+     * share the weights of this classifier.
+     * @return a new AEClassifier sharing the weights of this one
+     * @throws CloneNotSupportedException if the classifier cannot be copied
+     */
+    @Override
+    public AEClassifier replicate() throws CloneNotSupportedException {
+        try {
+            return new AEClassifier(scae.replicate(), nbClasses, mlnn.replicate());
+        } catch (UnsupportedOperationException e) {
+            throw new CloneNotSupportedException(e.getMessage());
+        }
+    }
+
     /**
      * Loads an AEClassifier.
      *
@@ -38,6 +38,9 @@ import java.util.ArrayList;
  * @author Mathias Seuret
  */
 public class CCNN implements Serializable {
+
+    private static final long serialVersionUID = -8981802211803146938L;
+
     
     protected ArrayList<FFCNN> base = new ArrayList();
     protected ArrayList<FFCNN> leaves = new ArrayList();
@@ -30,6 +30,8 @@ import diuf.diva.dia.ms.ml.ae.AutoEncoder;
 import diuf.diva.dia.ms.ml.ae.StandardAutoEncoder;
 import diuf.diva.dia.ms.ml.ae.scae.Convolution;
 import diuf.diva.dia.ms.util.DataBlock;
+import diuf.diva.dia.ms.util.Metrics;
+import diuf.diva.dia.ms.util.Parallel;
 
 import java.io.Serializable;
 
@@ -38,6 +40,9 @@ import java.io.Serializable;
  * @author Mathias Seuret, Michele Alberti
  */
 public class ConvolutionLayer implements Serializable {
+
+    private static final long serialVersionUID = 4900061553296625222L;
+
     /**
      * Number of units on X axis.
      */
@@ -98,6 +103,11 @@ public class ConvolutionLayer implements Serializable {
      * Accumulator of the previous layer.
      */
     DataBlock prevAccumulator = null;
+    /**
+     * Minimum number of multiplications done by the units of a layer for
+     * them to be processed in parallel.
+     */
+    private static final int MIN_PARALLEL_WORK = 1 << 15;
 
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Constructor
@@ -192,11 +202,33 @@ public class ConvolutionLayer implements Serializable {
      * Computes the output.
      */
     void compute() {
-        for (int x=0; x<outWidth; x++) {
-            for (int y=0; y<outHeight; y++) {
-                unit[x][y].encode();
+        long t = Metrics.start();
+        if (isParallel()) {
+            Parallel.forChunks(outWidth * outHeight, (chunk, from, to) -> {
+                for (int p = from; p < to; p++) {
+                    unit[p / outHeight][p % outHeight].encode();
+                }
+            });
+        } else {
+            for (int x=0; x<outWidth; x++) {
+                for (int y=0; y<outHeight; y++) {
+                    unit[x][y].encode();
+                }
             }
         }
+        Metrics.stop("ConvolutionLayer.compute", t);
+    }
+
+    /**
+     * Each unit has its own weights and output, so they can be processed by
+     * different threads if there is enough work for it.
+     * @return true if the units should be processed in parallel
+     */
+    private boolean isParallel() {
+        int nbUnits = outWidth * outHeight;
+        return nbUnits > 1
+                && Parallel.getNbThreads() > 1
+                && (long) nbUnits * unit[0][0].getInputSize() * outDepth >= MIN_PARALLEL_WORK;
     }
 
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -227,32 +259,86 @@ public class ConvolutionLayer implements Serializable {
      * Learn the units
      */
     public void learn() {
-        for (int x=0; x<outWidth; x++) {
-            for (int y=0; y<outHeight; y++) {
-                unit[x][y].learn();
+        long t = Metrics.start();
+        if (isParallel()) {
+            Parallel.forChunks(outWidth * outHeight, (chunk, from, to) -> {
+                for (int p = from; p < to; p++) {
+                    unit[p / outHeight][p % outHeight].learn();
+                }
+            });
+        } else {
+            for (int x=0; x<outWidth; x++) {
+                for (int y=0; y<outHeight; y++) {
+                    unit[x][y].learn();
+                }
             }
         }
+        Metrics.stop("ConvolutionLayer.learn", t);
     }
 
     /**
      * Backpropagate the error, if needed.
      */
     public float backPropagate() {
-        // Backpropagate on all the units of this layer
-        float errSum = 0.0f;
-        for (int x = 0; x < outWidth; x++) {
-            for (int y = 0; y < outHeight; y++) {
-                errSum += unit[x][y].backPropagate();
+        long t = Metrics.start();
+        float err;
+        if (isParallel()) {
+            err = backPropagateInParallel();
+        } else {
+            // Backpropagate on all the units of this layer
+            float errSum = 0.0f;
+            for (int x = 0; x < outWidth; x++) {
+                for (int y = 0; y < outHeight; y++) {
+                    errSum += unit[x][y].backPropagate();
+                }
             }
-        }
 
-        // Reset the error datablock. It clears the units error as well as it is a reference
-        //error.clear();
+            // Reset the error datablock. It clears the units error as well as it is a reference
+            //error.clear();
 
-        // Return the cumulated error
-        return errSum / (outWidth * outHeight);
+            // The cumulated error
+            err = errSum / (outWidth * outHeight);
+        }
+        Metrics.stop("ConvolutionLayer.backPropagate", t);
+        return err;
     }
     
+    /**
+     * Backpropagates the error of all units in two steps. First, the units are
+     * backpropagated in parallel, each one keeping the error of its inputs in
+     * its own array. Then, the columns of the previous error block are shared
+     * among the threads, and each thread pastes the part of the errors of all
+     * units falling in its columns. Every value receives the errors of the units
+     * in the same order as with a sequential backpropagation, so the results
+     * are identical.
+     * @return the average error of the units
+     */
+    private float backPropagateInParallel() {
+        int nbUnits = outWidth * outHeight;
+        float[] errors = new float[nbUnits];
+        Parallel.forChunks(nbUnits, (chunk, from, to) -> {
+            for (int p = from; p < to; p++) {
+                errors[p] = unit[p / outHeight][p % outHeight].backPropagateEncoder();
+            }
+        });
+
+        if (prevAccumulator != null) {
+            Parallel.forChunks(prevAccumulator.getWidth(), (chunk, from, to) -> {
+                for (int x = 0; x < outWidth; x++) {
+                    for (int y = 0; y < outHeight; y++) {
+                        unit[x][y].pastePreviousError(from, to);
+                    }
+                }
+            });
+        }
+
+        float errSum = 0.0f;
+        for (float e : errors) {
+            errSum += e;
+        }
+        return errSum / (outWidth * outHeight);
+    }
+
     public AutoEncoder getAutoEncoder(int x, int y) {
         return unit[x][y];
     }
@@ -414,6 +500,32 @@ public class ConvolutionLayer implements Serializable {
     // Utility
     ///////////////////////////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Makes all units use the weights of the corresponding units of another
+     * layer having the same structure.
+     * @param source layer whose weights are shared
+     */
+    void shareWeights(ConvolutionLayer source) {
+        for (int x=0; x<outWidth; x++) {
+            for (int y=0; y<outHeight; y++) {
+                unit[x][y].shareWeights(source.unit[x][y]);
+            }
+        }
+    }
+
+    /**
+     * Moves the gradients of the units of another layer having the same
+     * structure to the corresponding units of this layer.
+     * @param source layer whose gradients are merged
+     */
+    void mergeGradients(ConvolutionLayer source) {
+        for (int x=0; x<outWidth; x++) {
+            for (int y=0; y<outHeight; y++) {
+                unit[x][y].mergeGradients(source.unit[x][y]);
+            }
+        }
+    }
+
     /**
      * Executes on the whole layer: evaluateInputImportance()
      */
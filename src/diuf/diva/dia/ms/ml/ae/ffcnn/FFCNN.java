@@ -30,6 +30,7 @@ import diuf.diva.dia.ms.ml.Classifier;
 import diuf.diva.dia.ms.ml.ae.scae.Convolution;
 import diuf.diva.dia.ms.ml.ae.scae.SCAE;
 import diuf.diva.dia.ms.util.DataBlock;
+import diuf.diva.dia.ms.util.ModelFile;
 
 import java.io.*;
 import java.util.ArrayList;
@@ -474,11 +475,19 @@ public class FFCNN implements Classifier, Serializable, Cloneable {
             file.mkdirs();
         }
 
-        ObjectOutputStream oop = new ObjectOutputStream(new FileOutputStream(fileName));
-        // Dummy input
-        setInput(new DataBlock(getInputWidth(), getInputHeight(), getInputDepth()), 0, 0);
-        oop.writeObject(this);
-        oop.close();
+        // Dummy input, so that the current image is not saved as well
+        ConvolutionLayer first = layers.get(0);
+        DataBlock in = first.getInput();
+        int inX = first.inputX;
+        int inY = first.inputY;
+        try {
+            setInput(new DataBlock(getInputWidth(), getInputHeight(), getInputDepth()), 0, 0);
+            ModelFile.save(fileName, this);
+        } finally {
+            if (in != null) {
+                setInput(in, inX, inY);
+            }
+        }
     }
 
     /**
@@ -494,14 +503,22 @@ public class FFCNN implements Classifier, Serializable, Cloneable {
     }
 
     /**
-     * Clones the FFCNN. Throws an error in case of failure.
+     * Clones the FFCNN, without its input. The input of this FFCNN is kept.
+     * Throws an error in case of failure.
      * @return a new FFCNN
      */
     @Override
     public FFCNN clone() throws CloneNotSupportedException {
         super.clone();
         FFCNN res;
+        ConvolutionLayer first = layers.get(0);
+        DataBlock in = first.getInput();
+        int inX = first.inputX;
+        int inY = first.inputY;
         try {
+            // Dummy input, so that the current image is not copied as well
+            setInput(new DataBlock(getInputWidth(), getInputHeight(), getInputDepth()), 0, 0);
+
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             ObjectOutputStream oos = new ObjectOutputStream(baos);
             oos.writeObject(this);
@@ -511,10 +528,43 @@ public class FFCNN implements Classifier, Serializable, Cloneable {
 
             res = (FFCNN) ois.readObject();
         } catch (Exception e) {
-            throw new Error("Could not clone the FFCNN");
+            throw new Error("Could not clone the FFCNN", e);
+        } finally {
+            if (in != null) {
+                setInput(in, inX, inY);
+            }
         }
         return res;
     }
 
+    /**
+     * Creates a replica of the FFCNN: a clone whose units share the weights of
+     * the units of this FFCNN. The replica has its own inputs, outputs, errors
+     * and gradients, so it can process a sample while this FFCNN, or another
+     * replica, processes another one.
+     * @return a new FFCNN sharing the weights of this one
+     * @throws CloneNotSupportedException if the FFCNN cannot be cloned
+     */
+    @Override
+    public FFCNN replicate() throws CloneNotSupportedException {
+        FFCNN res = clone();
+        for (int i = 0; i < layers.size(); i++) {
+            res.layers.get(i).shareWeights(layers.get(i));
+        }
+        return res;
+    }
+
+    /**
+     * Moves the gradients accumulated by a replica to this FFCNN, so that
+     * they are taken into account by the next call to learn().
+     * @param replica a replica of this FFCNN, or a clone of it
+     * @param nbLayers number of layers, from the top, whose gradients are merged
+     */
+    public void mergeGradients(FFCNN replica, int nbLayers) {
+        for (int i = layers.size() - 1; i >= 0 && i >= layers.size() - nbLayers; i--) {
+            layers.get(i).mergeGradients(replica.layers.get(i));
+        }
+    }
+
 
 }
\ No newline at end of file
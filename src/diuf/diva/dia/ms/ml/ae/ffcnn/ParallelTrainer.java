@@ -0,0 +1,147 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.ml.ae.ffcnn;
+
+import diuf.diva.dia.ms.util.DataBlock;
+import diuf.diva.dia.ms.util.Parallel;
+
+/**
+ * Trains an FFCNN on mini-batches using all the threads of the library. The
+ * samples of a batch are split among replicas of the FFCNN which compute and
+ * backpropagate them at the same time. Their gradients are then summed into
+ * the FFCNN, always in the same order, and a single gradient descent is applied.
+ * As the replicas share the weights of the FFCNN, they see the new weights
+ * immediately.
+ * <p>
+ * The result is the same as training the FFCNN sequentially with gradients
+ * accumulated over the batch, up to the rounding errors of the summation.
+ * The FFCNN must not be used by something else during a call to train().
+ * @author Mathias Seuret, Michele Alberti
+ */
+public class ParallelTrainer {
+    /**
+     * The FFCNN which is trained.
+     */
+    private final FFCNN master;
+    /**
+     * Replicas of the FFCNN, the first one is the FFCNN itself.
+     */
+    private FFCNN[] replicas;
+    /**
+     * Error of each sample of the current batch.
+     */
+    private float[] sampleError = new float[0];
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a trainer for the given FFCNN, with one replica per thread.
+     * @param ffcnn the FFCNN to train
+     * @throws CloneNotSupportedException if the FFCNN cannot be replicated
+     */
+    public ParallelTrainer(FFCNN ffcnn) throws CloneNotSupportedException {
+        master = ffcnn;
+        replicas = new FFCNN[]{master};
+        prepareReplicas();
+    }
+
+    /**
+     * Makes sure that there is one replica per thread.
+     * @throws CloneNotSupportedException if the FFCNN cannot be replicated
+     */
+    private void prepareReplicas() throws CloneNotSupportedException {
+        int nb = Parallel.getNbThreads();
+        if (replicas.length >= nb) {
+            return;
+        }
+        FFCNN[] res = new FFCNN[nb];
+        System.arraycopy(replicas, 0, res, 0, replicas.length);
+        for (int r = replicas.length; r < nb; r++) {
+            res[r] = master.replicate();
+        }
+        replicas = res;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Learning
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Trains the FFCNN on a mini-batch. Sample s is centered on the pixel (x[s],y[s])
+     * of images[s] and has to be classified as classes[s].
+     * @param images images of the samples
+     * @param x positions x of the samples
+     * @param y positions y of the samples
+     * @param classes expected classes of the samples
+     * @param n number of samples in the batch
+     * @param nbLayers number of layers to train, from the top
+     * @return the sum of the errors of the samples
+     * @throws CloneNotSupportedException if the number of threads grew and the FFCNN cannot be replicated
+     */
+    public double train(final DataBlock[] images, final int[] x, final int[] y, final int[] classes, int n, final int nbLayers)
+            throws CloneNotSupportedException {
+        prepareReplicas();
+        if (sampleError.length < n) {
+            sampleError = new float[n];
+        }
+
+        // Forward and backpropagation, the chunk number selects the replica
+        Parallel.forChunks(n, (chunk, from, to) -> {
+            FFCNN ffcnn = replicas[chunk];
+            for (int s = from; s < to; s++) {
+                ffcnn.centerInput(images[s], x[s], y[s]);
+                ffcnn.compute();
+                for (int j = 0; j < ffcnn.getOutputSize(); j++) {
+                    ffcnn.setExpected(j, (j == classes[s]) ? 1 : 0);
+                }
+                sampleError[s] = ffcnn.backPropagate(nbLayers);
+            }
+        });
+
+        // Reduction, always in the same order
+        int used = Math.min(n, replicas.length);
+        for (int r = 1; r < used; r++) {
+            master.mergeGradients(replicas[r], nbLayers);
+        }
+        master.learn(nbLayers);
+
+        double err = 0;
+        for (int s = 0; s < n; s++) {
+            err += sampleError[s];
+        }
+        return err;
+    }
+
+    /**
+     * @return the number of replicas, including the FFCNN itself
+     */
+    public int getNbReplicas() {
+        return replicas.length;
+    }
+}
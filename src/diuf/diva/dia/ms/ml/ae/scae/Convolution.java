@@ -28,17 +28,19 @@ package diuf.diva.dia.ms.ml.ae.scae;
 
 import diuf.diva.dia.ms.ml.ae.AutoEncoder;
 import diuf.diva.dia.ms.util.DataBlock;
+import diuf.diva.dia.ms.util.Metrics;
+import diuf.diva.dia.ms.util.Parallel;
 
 import java.io.Serializable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 /**
  * This corresponds to a convolution of an autoencoder on an input data block.
  * @author Mathias Seuret, Michele Alberti
  */
 public class Convolution  implements Serializable {
+
+    private static final long serialVersionUID = 6148496644013059926L;
+
     /**
      * The autoencoder.
      */
@@ -75,6 +77,27 @@ public class Convolution  implements Serializable {
      * Y position of the convolution.
      */
     private int inputY;
+    /**
+     * Replicas of the autoencoder used for encoding in parallel, one per thread.
+     * They are created when needed.
+     */
+    private transient AutoEncoder[] replicas;
+    /**
+     * Autoencoder from which the replicas have been made, or which could not be replicated.
+     */
+    private transient AutoEncoder replicated;
+    /**
+     * Minimum number of positions for which the encoding is done in parallel.
+     */
+    private static final int MIN_PARALLEL_POSITIONS = 16;
+    /**
+     * Input patches of positions encoded together, one buffer per thread.
+     */
+    private transient float[][] patches;
+    /**
+     * Maximum number of positions encoded together.
+     */
+    private static final int BATCH_POSITIONS = 64;
 
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Constructor
@@ -122,71 +145,127 @@ public class Convolution  implements Serializable {
     ///////////////////////////////////////////////////////////////////////////////////////////////
     /**
      * Encodes the input area and outputs the result to the output block.
-     * Maybe this part could be multi-threaded :-)
+     * If the convolution is large enough and the autoencoder can be replicated,
+     * the positions are shared among the threads of the pool, each of them using
+     * its own replica of the autoencoder.
      */
     public void encode() {
-
-        if (true) {
-            for (int ox = 0; ox < outWidth; ox++) {
-                int ix = inputX + ox * getInputOffsetX();
-                for (int oy = 0; oy < outHeight; oy++) {
-                    int iy = inputY + oy * getInputOffsetY();
-                    base.setInput(input, ix, iy);
-                    base.setOutput(output, ox, oy);
-                    base.encode();
-                }
+        long t = Metrics.start();
+        int nbPositions = outWidth * outHeight;
+        boolean parallel = nbPositions >= MIN_PARALLEL_POSITIONS && prepareReplicas();
+        if (base.canEncodeBatch() && output.getWidth() == outWidth && output.getHeight() == outHeight) {
+            preparePatches(parallel ? replicas.length : 1);
+            if (parallel) {
+                Parallel.forChunks(nbPositions, (chunk, from, to) -> encodeBatch(replicas[chunk], patches[chunk], from, to));
+            } else {
+                encodeBatch(base, patches[0], 0, nbPositions);
             }
-            // Reset the output to initial position. This is necessary for saving/loading AE correctly
-            base.setOutput(output, 0, 0);
+        } else if (parallel) {
+            Parallel.forChunks(nbPositions, (chunk, from, to) -> encode(replicas[chunk], from, to));
         } else {
-            try {
-                // Create the thread pool
-                ExecutorService executor = Executors.newFixedThreadPool(8);
+            encode(base, 0, nbPositions);
+        }
 
-                // Carry out the job
-                for (int ox = 0; ox < outWidth; ox++) {
-                    int ix = inputX + ox * getInputOffsetX();
-                    executor.execute(new Worker(base, ix, ox));
-                }
+        // Reset the output to initial position. This is necessary for saving/loading AE correctly
+        base.setOutput(output, 0, 0);
+        Metrics.stop("Convolution.encode", t);
+    }
 
-            /* Initiates an orderly shutdown, in which previously submitted
-             * tasks are executed, but no new tasks will be accepted. */
-                executor.shutdown();
+    /**
+     * Encodes some positions with the given autoencoder. Positions are numbered
+     * column after column.
+     * @param ae the autoencoder or one of its replicas
+     * @param from first position
+     * @param to last position + 1
+     */
+    private void encode(AutoEncoder ae, int from, int to) {
+        for (int p = from; p < to; p++) {
+            int ox = p / outHeight;
+            int oy = p % outHeight;
+            ae.setInput(input, inputX + ox * getInputOffsetX(), inputY + oy * getInputOffsetY());
+            ae.setOutput(output, ox, oy);
+            ae.encode();
+        }
+    }
 
-            /* Blocks until all tasks have completed execution after a shutdown
-             * request, or the timeout occurs, or the current thread is interrupted,
-             * whichever happens first. */
-                executor.awaitTermination(1, TimeUnit.HOURS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    /**
+     * Encodes some positions with matrix products: the input patches of up to
+     * BATCH_POSITIONS positions are unrolled one after the other in a buffer,
+     * then encoded together. As the output block stores the positions column
+     * after column, like the unrolled patches, the codes are written directly
+     * in its data.
+     * @param ae the autoencoder or one of its replicas
+     * @param buffer buffer for the patches, not used by another thread
+     * @param from first position
+     * @param to last position + 1
+     */
+    private void encodeBatch(AutoEncoder ae, float[] buffer, int from, int to) {
+        int size = ae.getInputSize();
+        int depth = output.getDepth();
+        for (int p0 = from; p0 < to; p0 += BATCH_POSITIONS) {
+            int p1 = Math.min(to, p0 + BATCH_POSITIONS);
+            for (int p = p0; p < p1; p++) {
+                int ox = p / outHeight;
+                int oy = p % outHeight;
+                input.patchToArray(
+                        buffer,
+                        (p - p0) * size,
+                        inputX + ox * getInputOffsetX(),
+                        inputY + oy * getInputOffsetY(),
+                        ae.getInputWidth(),
+                        ae.getInputHeight()
+                );
             }
-
-            // Reset the output to initial position. This is necessary for saving/loading AE correctly
-            base.setOutput(output, 0, 0);
+            ae.encodeBatch(buffer, 0, output.getData(), p0 * depth, p1 - p0);
         }
+    }
 
+    /**
+     * Makes sure that there is a buffer for the patches of each thread.
+     * @param nbBuffers number of buffers needed
+     */
+    private void preparePatches(int nbBuffers) {
+        int length = BATCH_POSITIONS * base.getInputSize();
+        if (patches == null || patches.length < nbBuffers || patches[0].length != length) {
+            patches = new float[nbBuffers][length];
+        }
     }
 
-    private final class Worker implements Runnable {
+    /**
+     * Makes sure that there is one replica of the autoencoder per thread, and that
+     * they use the current weights of the autoencoder.
+     * @return false if the encoding cannot be done in parallel
+     */
+    private boolean prepareReplicas() {
+        int nbThreads = Parallel.getNbThreads();
+        if (nbThreads < 2) {
+            return false;
+        }
 
-        private final AutoEncoder base;
-        private final int ix, ox;
+        if (replicated != base
+                || (replicas != null && replicas.length != nbThreads)
+                || (replicas != null && replicas[0].getOutputDepth() != base.getOutputDepth())) {
+            replicated = base;
+            try {
+                replicas = new AutoEncoder[nbThreads];
+                for (int t = 0; t < nbThreads; t++) {
+                    replicas[t] = base.replicate();
+                }
+            } catch (UnsupportedOperationException e) {
+                // This kind of autoencoder has to be encoded sequentially
+                replicas = null;
+            }
+        }
 
-        public Worker(AutoEncoder base, int ix, int ox) {
-            this.base = base;
-            this.ix = ix;
-            this.ox = ox;
+        if (replicas == null) {
+            return false;
         }
 
-        @Override
-        public void run() {
-            for (int oy = 0; oy < outHeight; oy++) {
-                int iy = inputY + oy * getInputOffsetY();
-                base.setInput(input, ix, iy);
-                base.setOutput(output, ox, oy);
-                base.encode();
-            }
+        // The weight arrays of the autoencoder might have been replaced since the last call
+        for (AutoEncoder r : replicas) {
+            r.shareWeights(base);
         }
+        return true;
     }
 
     /**
@@ -223,6 +302,7 @@ public class Convolution  implements Serializable {
      * @return the training error
      */
     public float train() {
+        long t = Metrics.start();
         float err = 0.0f;
         for (int ox = 0; ox < outWidth; ox++) {
             int ix = inputX + ox * getInputOffsetX();
@@ -233,6 +313,7 @@ public class Convolution  implements Serializable {
                 err += base.train();
             }
         }
+        Metrics.stop("Convolution.train", t);
         return (err / outWidth) / outHeight;
     }
 
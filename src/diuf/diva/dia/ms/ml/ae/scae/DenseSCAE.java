@@ -0,0 +1,280 @@
+/*****************************************************
+  N-light-N
+
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.ml.ae.scae;
+
+import diuf.diva.dia.ms.ml.ae.AutoEncoder;
+import diuf.diva.dia.ms.util.DataBlock;
+
+/**
+ * Dense feature maps of an SCAE computed over a whole data block. The
+ * autoencoder of each stage is applied at every pixel position of the input,
+ * so the feature map of a stage can be shared by all the overlapping windows
+ * which need it instead of being recomputed for each of them, as it is the
+ * case when the SCAE is centered on every pixel of a page.
+ * <p>
+ * The values are computed lazily: a position of a map is encoded only the
+ * first time it is needed, so evaluating only a subset of the pixels does
+ * not cost more than running the SCAE on each of them.
+ * <p>
+ * Note that this works only because all positions of a stage share the same
+ * autoencoder. The autoencoders of the SCAE are used for computing the maps,
+ * so the SCAE must not be used by something else at the same time.
+ * @author Mathias Seuret, Michele Alberti
+ */
+public class DenseSCAE {
+    /**
+     * The SCAE which is applied.
+     */
+    private final SCAE scae;
+    /**
+     * Input of the dense computation.
+     */
+    private final DataBlock input;
+    /**
+     * Feature map of each stage, position (x,y) of a map corresponds to
+     * the autoencoder whose receptive field starts at the pixel (x,y).
+     */
+    private final DataBlock[] map;
+    /**
+     * Indicates which positions of the maps have already been computed.
+     */
+    private final boolean[][][] computed;
+    /**
+     * Distance in pixels between two neighbouring outputs of a stage.
+     */
+    private final int[] stepX;
+    private final int[] stepY;
+    /**
+     * Size in pixels of the receptive fields of the stages.
+     */
+    private final int[] fieldWidth;
+    private final int[] fieldHeight;
+    /**
+     * Blocks used for gathering the inputs of the stages above the first one.
+     */
+    private final DataBlock[] gather;
+    /**
+     * Inputs which the autoencoders had before the dense computation, and
+     * their positions.
+     */
+    private final DataBlock[] baseInput;
+    private final int[] baseInputX;
+    private final int[] baseInputY;
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Prepares the dense feature maps of an SCAE for the given input. Nothing
+     * is computed yet.
+     * @param scae the SCAE
+     * @param input the data block on which it is applied
+     */
+    public DenseSCAE(SCAE scae, DataBlock input) {
+        assert (scae != null);
+        assert (input != null);
+        assert (input.getDepth() == scae.getInputPatchDepth());
+
+        if (input.getWidth() < scae.getInputPatchWidth() || input.getHeight() < scae.getInputPatchHeight()) {
+            throw new IllegalArgumentException(
+                    "the input (" + input.getWidth() + "x" + input.getHeight() + ") is smaller than "
+                            + "the SCAE (" + scae.getInputPatchWidth() + "x" + scae.getInputPatchHeight() + ")"
+            );
+        }
+
+        this.scae = scae;
+        this.input = input;
+
+        int nbStages = scae.getLayers().size();
+        map = new DataBlock[nbStages];
+        computed = new boolean[nbStages][][];
+        stepX = new int[nbStages];
+        stepY = new int[nbStages];
+        fieldWidth = new int[nbStages];
+        fieldHeight = new int[nbStages];
+        gather = new DataBlock[nbStages];
+        baseInput = new DataBlock[nbStages];
+        baseInputX = new int[nbStages];
+        baseInputY = new int[nbStages];
+
+        for (int s = 0; s < nbStages; s++) {
+            Convolution c = scae.getLayer(s);
+            AutoEncoder ae = c.getBase();
+            baseInput[s] = ae.getInput();
+            baseInputX[s] = ae.getInputX();
+            baseInputY[s] = ae.getInputY();
+
+            int inStepX = (s == 0) ? 1 : stepX[s - 1];
+            int inStepY = (s == 0) ? 1 : stepY[s - 1];
+
+            stepX[s] = inStepX * c.getInputOffsetX();
+            stepY[s] = inStepY * c.getInputOffsetY();
+            fieldWidth[s] = (s == 0) ? ae.getInputWidth() : fieldWidth[s - 1] + (ae.getInputWidth() - 1) * inStepX;
+            fieldHeight[s] = (s == 0) ? ae.getInputHeight() : fieldHeight[s - 1] + (ae.getInputHeight() - 1) * inStepY;
+
+            int w = input.getWidth() - fieldWidth[s] + 1;
+            int h = input.getHeight() - fieldHeight[s] + 1;
+            map[s] = new DataBlock(w, h, ae.getOutputDepth());
+            computed[s] = new boolean[w][h];
+
+            if (s > 0) {
+                gather[s] = new DataBlock(ae.getInputWidth(), ae.getInputHeight(), ae.getInputDepth());
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Computing
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Makes sure that the given position of a stage's map has been computed.
+     * @param stage stage number
+     * @param x pixel position x of the receptive field
+     * @param y pixel position y of the receptive field
+     */
+    public void compute(int stage, int x, int y) {
+        if (computed[stage][x][y]) {
+            return;
+        }
+
+        AutoEncoder ae = scae.getLayer(stage).getBase();
+        if (stage == 0) {
+            ae.setInput(input, x, y);
+        } else {
+            DataBlock in = gather[stage];
+            DataBlock prev = map[stage - 1];
+            int sx = stepX[stage - 1];
+            int sy = stepY[stage - 1];
+            for (int i = 0; i < in.getWidth(); i++) {
+                for (int j = 0; j < in.getHeight(); j++) {
+                    int px = x + i * sx;
+                    int py = y + j * sy;
+                    compute(stage - 1, px, py);
+                    for (int z = 0; z < in.getDepth(); z++) {
+                        in.setValue(z, i, j, prev.getValue(z, px, py));
+                    }
+                }
+            }
+            ae.setInput(in, 0, 0);
+        }
+        ae.setOutput(map[stage], x, y);
+        ae.encode();
+
+        computed[stage][x][y] = true;
+    }
+
+    /**
+     * Computes all positions of the map of a stage.
+     * @param stage stage number
+     */
+    public void computeAll(int stage) {
+        for (int x = 0; x < map[stage].getWidth(); x++) {
+            for (int y = 0; y < map[stage].getHeight(); y++) {
+                compute(stage, x, y);
+            }
+        }
+    }
+
+    /**
+     * Fills the feature vector of the SCAE with the features which
+     * SCAE.getCentralMultilayerFeatures() would return if the SCAE's input
+     * was set at the given position.
+     * @param x position x of the top-left corner of the SCAE's input
+     * @param y position y of the top-left corner of the SCAE's input
+     * @return the feature vector of the SCAE, not a copy
+     */
+    public float[] getCentralMultilayerFeatures(int x, int y) {
+        scae.getFeatureLength(); // makes sure that the vector exists
+        float[] features = scae.featureVector;
+
+        int pos = 0;
+        for (int s = 0; s < map.length; s++) {
+            Convolution c = scae.getLayer(s);
+            int px = x + stepX[s] * (c.getOutputWidth() / 2);
+            int py = y + stepY[s] * (c.getOutputHeight() / 2);
+            compute(s, px, py);
+            for (int n = 0; n < map[s].getDepth(); n++) {
+                features[pos + n] = map[s].getValue(n, px, py);
+            }
+            pos += map[s].getDepth();
+        }
+
+        return features;
+    }
+
+    /**
+     * Gives back the autoencoders of the SCAE to their convolutions, with
+     * the inputs they had before. Call this when the dense computation is
+     * over.
+     */
+    public void release() {
+        for (int s = 0; s < map.length; s++) {
+            Convolution c = scae.getLayer(s);
+            c.getBase().setOutput(c.getOutput(), 0, 0);
+            if (baseInput[s] != null) {
+                c.getBase().setInput(baseInput[s], baseInputX[s], baseInputY[s]);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Getters
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return the input of the dense computation
+     */
+    public DataBlock getInput() {
+        return input;
+    }
+
+    /**
+     * @param stage stage number
+     * @return the feature map of the stage, only the computed positions are valid
+     */
+    public DataBlock getFeatureMap(int stage) {
+        return map[stage];
+    }
+
+    /**
+     * @param stage stage number
+     * @return the horizontal distance in pixels between two neighbouring outputs of the stage
+     */
+    public int getStepX(int stage) {
+        return stepX[stage];
+    }
+
+    /**
+     * @param stage stage number
+     * @return the vertical distance in pixels between two neighbouring outputs of the stage
+     */
+    public int getStepY(int stage) {
+        return stepY[stage];
+    }
+}
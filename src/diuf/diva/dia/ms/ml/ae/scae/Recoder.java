@@ -0,0 +1,213 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.ml.ae.scae;
+
+import diuf.diva.dia.ms.util.DataBlock;
+import diuf.diva.dia.ms.util.Parallel;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Recodes whole data blocks with an SCAE: the SCAE is applied on tiles
+ * covering the data block, and the reconstructions are pasted together.
+ * The tiles are processed in parallel by replicas of the SCAE, and several
+ * data blocks can be recoded at the same time by a single recoder.
+ *
+ * The columns of tiles are grouped in bands wide enough so that tiles of
+ * non-adjacent bands never overlap. Even bands are recoded in parallel,
+ * then odd bands, thus the result does not depend on the number of threads.
+ * @author Mathias Seuret, Michele Alberti
+ */
+public class Recoder {
+
+    /**
+     * The SCAE whose weights are used.
+     */
+    private final SCAE scae;
+    /**
+     * Horizontal offset between two tiles.
+     */
+    private final int offsetX;
+    /**
+     * Vertical offset between two tiles.
+     */
+    private final int offsetY;
+    /**
+     * Replicas of the SCAE which are currently not used.
+     */
+    private final ConcurrentLinkedQueue<SCAE> pool = new ConcurrentLinkedQueue<>();
+    /**
+     * Set to false if the SCAE cannot be replicated.
+     */
+    private volatile boolean replicable = true;
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a recoder using tiles which do not overlap.
+     * @param scae the SCAE
+     */
+    public Recoder(SCAE scae) {
+        this(scae, scae.getInputPatchWidth(), scae.getInputPatchHeight());
+    }
+
+    /**
+     * Creates a recoder.
+     * @param scae the SCAE
+     * @param offsetX horizontal offset between two tiles
+     * @param offsetY vertical offset between two tiles
+     */
+    public Recoder(SCAE scae, int offsetX, int offsetY) {
+        if (offsetX < 1 || offsetY < 1) {
+            throw new IllegalArgumentException("the offsets must be positive");
+        }
+        this.scae = scae;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Recoding
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Recodes a data block. The weights of the result are normalized.
+     * This method can be called by several threads at the same time.
+     * @param db data block to recode
+     * @return a new data block with the reconstruction
+     */
+    public DataBlock recode(DataBlock db) {
+        DataBlock res = new DataBlock(db.getWidth(), db.getHeight(), db.getDepth());
+
+        int pw = scae.getInputPatchWidth();
+        int ph = scae.getInputPatchHeight();
+        if (db.getWidth() >= pw && db.getHeight() >= ph) {
+            int nbColumns = (db.getWidth() - pw) / offsetX + 1;
+            int bandWidth = (pw + offsetX - 1) / offsetX;
+            int nbBands = (nbColumns + bandWidth - 1) / bandWidth;
+
+            for (int parity = 0; parity < 2; parity++) {
+                final int first = parity;
+                Parallel.forEach((nbBands - first + 1) / 2, b -> {
+                    int band = first + 2 * b;
+                    int from = band * bandWidth;
+                    int to = Math.min(nbColumns, from + bandWidth);
+                    recodeColumns(db, res, from, to);
+                });
+            }
+        }
+
+        res.normalizeWeights();
+        return res;
+    }
+
+    /**
+     * Recodes the tiles of some columns with a replica of the SCAE.
+     * @param db data block to recode
+     * @param res data block receiving the reconstruction
+     * @param from first column
+     * @param to column after the last one
+     */
+    private void recodeColumns(DataBlock db, DataBlock res, int from, int to) {
+        SCAE replica = borrow();
+        if (replica == null) {
+            // The autoencoders cannot be replicated, the tiles are recoded one after the other
+            synchronized (scae) {
+                recodeColumns(scae, db, res, from, to);
+            }
+            return;
+        }
+        try {
+            recodeColumns(replica, db, res, from, to);
+        } finally {
+            pool.add(replica);
+        }
+    }
+
+    /**
+     * Recodes the tiles of some columns.
+     * @param s SCAE to use
+     * @param db data block to recode
+     * @param res data block receiving the reconstruction
+     * @param from first column
+     * @param to column after the last one
+     */
+    private void recodeColumns(SCAE s, DataBlock db, DataBlock res, int from, int to) {
+        for (int c = from; c < to; c++) {
+            int x = c * offsetX;
+            for (int y = 0; y <= db.getHeight() - s.getInputPatchHeight(); y += offsetY) {
+                s.setInput(db, x, y);
+                s.forward();
+                s.setInput(res, x, y);
+                s.backward();
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Utility
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return a replica of the SCAE which is not used by another thread, or
+     * null if the SCAE cannot be replicated
+     */
+    private SCAE borrow() {
+        if (!replicable) {
+            return null;
+        }
+        SCAE replica = pool.poll();
+        if (replica == null) {
+            // The SCAE's input is modified while replicating
+            synchronized (scae) {
+                try {
+                    replica = scae.replicate();
+                } catch (UnsupportedOperationException e) {
+                    replicable = false;
+                }
+            }
+        }
+        return replica;
+    }
+
+    /**
+     * @return the horizontal offset between two tiles
+     */
+    public int getOffsetX() {
+        return offsetX;
+    }
+
+    /**
+     * @return the vertical offset between two tiles
+     */
+    public int getOffsetY() {
+        return offsetY;
+    }
+
+}
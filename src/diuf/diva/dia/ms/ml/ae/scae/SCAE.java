@@ -28,6 +28,7 @@ package diuf.diva.dia.ms.ml.ae.scae;
 
 import diuf.diva.dia.ms.ml.ae.AutoEncoder;
 import diuf.diva.dia.ms.util.DataBlock;
+import diuf.diva.dia.ms.util.ModelFile;
 
 import java.io.*;
 import java.util.ArrayList;
@@ -40,6 +41,8 @@ import java.util.List;
  */
 public class SCAE implements Serializable {
 
+    private static final long serialVersionUID = -5024706414289776759L;
+
     /**
      * The different layers of the autoencoder.
      */
@@ -93,7 +96,7 @@ public class SCAE implements Serializable {
     ///////////////////////////////////////////////////////////////////////////////////////////////
     /**
      * Encodes the layers one after another.
-     * @return the output of the top values, assuming that there's only one array
+     * @return a copy of the output of the top values, assuming that there's only one array
      */
     public float[] forward() {
         for (Convolution convo : stages) {
@@ -483,9 +486,9 @@ public class SCAE implements Serializable {
                 setInput(input, x, y);
                 forward();
                 setInput(tmpInput);
+                float[] exp = base.getBase().getInputArray().clone();
                 backward();
                 float[] val = base.getBase().getDecoded();
-                float[] exp = base.getBase().getInputArray();
 
                 eucl.add(euclideanDistance(val, exp));
                 soid.add(scaleOffsetInvarDist(val, exp));
@@ -579,7 +582,7 @@ public class SCAE implements Serializable {
     }
 
     /**
-     * Saves the SCAE to a binary file.
+     * Saves the SCAE to a binary file, see ModelFile.
      * @param fileName file name
      * @throws IOException if the file cannot be written to
      */
@@ -593,11 +596,9 @@ public class SCAE implements Serializable {
             file.mkdirs();
         }
 
-        ObjectOutputStream oop = new ObjectOutputStream(new FileOutputStream(fileName));
         // Dummy input
         setInput(new DataBlock(getInputPatchWidth(), getInputPatchHeight(), getInputPatchDepth()));
-        oop.writeObject(this);
-        oop.close();
+        ModelFile.save(fileName, this);
     }
 
     /**
@@ -609,11 +610,53 @@ public class SCAE implements Serializable {
      * @throws ClassNotFoundException if the
      */
     public static SCAE load(String fileName) throws IOException, ClassNotFoundException {
-        SCAE scae;
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(fileName))) {
-            scae = (SCAE) ois.readObject();
+        return (SCAE) ModelFile.load(fileName);
+    }
+
+    /**
+     * Creates a replica of the SCAE: a copy whose autoencoders share the weights
+     * of the autoencoders of this SCAE, but which has its own inputs, outputs and
+     * working arrays. Replicas can thus process different positions at the same
+     * time. The input of this SCAE is reset to the beginning of its data block.
+     * @return a replica of the SCAE
+     * @throws UnsupportedOperationException if the autoencoders cannot share their weights
+     */
+    public SCAE replicate() {
+        DataBlock in = base.getInput();
+        SCAE replica;
+        try {
+            // Dummy input, so that the current image is not copied as well
+            setInput(new DataBlock(getInputPatchWidth(), getInputPatchHeight(), getInputPatchDepth()));
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+                oos.writeObject(this);
+            }
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+                replica = (SCAE) ois.readObject();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new UnsupportedOperationException("cannot copy the SCAE", e);
+        } finally {
+            if (in != null) {
+                base.setInput(in);
+            }
         }
-        return scae;
+
+        for (int s = 0; s < stages.size(); s++) {
+            replica.stages.get(s).getBase().shareWeights(stages.get(s).getBase());
+        }
+        return replica;
+    }
+
+    /**
+     * Indicates whether replicas of the SCAE can train its top layer at the
+     * same time, without synchronizing their updates of the shared weights
+     * (Hogwild-style training).
+     * @return true if the top autoencoder supports it
+     */
+    public boolean canTrainAsynchronously() {
+        return top.getBase().canTrainAsynchronously();
     }
 
     @Override
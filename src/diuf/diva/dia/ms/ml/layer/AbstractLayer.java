@@ -26,7 +26,13 @@
 
 package diuf.diva.dia.ms.ml.layer;
 
+import diuf.diva.dia.ms.util.Metrics;
+import diuf.diva.dia.ms.util.ModelFile;
+import diuf.diva.dia.ms.util.Rng;
+
 import java.io.*;
+import java.util.Arrays;
+import java.util.SplittableRandom;
 
 /**
  * This is a simple class which serves as "starting point" when creating a new kind of layer.
@@ -39,6 +45,9 @@ import java.io.*;
  * @author Michele Alberti
  */
 public abstract class AbstractLayer implements Layer, Serializable {
+
+    private static final long serialVersionUID = -6050517226214843430L;
+
     /**
      * Number of inputs.
      */
@@ -47,6 +56,19 @@ public abstract class AbstractLayer implements Layer, Serializable {
      * Inputs of the layer.
      */
     protected float[] input;
+    /**
+     * Index of the first input in the input array.
+     */
+    protected int inputOffset;
+    /**
+     * Number of inputs stored consecutively in the input array. It is smaller
+     * than inputSize when the layer reads a patch of a larger array.
+     */
+    protected int inputRun;
+    /**
+     * Distance in the input array between the beginnings of two runs of inputs.
+     */
+    protected int inputStride;
     /**
      * Number of outputs.
      */
@@ -56,21 +78,28 @@ public abstract class AbstractLayer implements Layer, Serializable {
      */
     protected float[] output;
     /**
-     * Stores the bias of the output.
+     * Index of the first output in the output array.
+     */
+    protected int outputOffset;
+    /**
+     * Stores the bias of the output. It is serialized by writeObject().
      */
-    protected float[] bias;
+    protected transient float[] bias;
     /**
      * Gradient for the bias
      */
-    protected float[] biasGradient;
+    protected transient float[] biasGradient;
     /**
-     * Gradient, which is used for storing some inertia.
+     * Gradient, which is used for storing some inertia. Same layout as the weights.
      */
-    protected float[][] gradient;
+    protected transient float[] gradient;
     /**
-     * Weights of the layer.
+     * Weights of the layer, stored output-major in a single array: the weight
+     * between the input i and the output o is at o*inputSize+i. This way, the
+     * weights of a neuron are contiguous in memory and can be streamed when
+     * computing its weighted sum. It is serialized by writeObject().
      */
-    protected float[][] weight;
+    protected transient float[] weight;
     /**
      * Learning speed of the network. A value of 0.0001 seems
      * to work well in most cases, if the inputs have values
@@ -85,14 +114,39 @@ public abstract class AbstractLayer implements Layer, Serializable {
      * Error of the layer, for each neuron.
      */
     protected float[] err;
+    /**
+     * Index of the error of the first neuron in the error array.
+     */
+    protected int errOffset;
     /**
      * Stores a reference to the error of the previous layer.
      */
     protected float[] prevErr;
+    /**
+     * Index of the error of the first input in the previous error array.
+     */
+    protected int prevErrOffset;
     /**
      * Weight decay factor.
      */
     protected float decay = 0.0f;
+    /**
+     * Weighted sums of the last batch given to computeBatch().
+     */
+    protected transient float[] batchSum;
+    /**
+     * Factors of the outer products computed by backPropagateBatch().
+     */
+    protected transient float[] batchFact;
+    /**
+     * Number of outputs computed together by the batched methods, so that
+     * the corresponding weights stay in the cache for the whole batch.
+     */
+    private static final int BLOCK_OUTPUTS = 16;
+    /**
+     * Number of inputs considered together by the batched methods.
+     */
+    private static final int BLOCK_INPUTS = 512;
 
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Constructor
@@ -117,6 +171,8 @@ public abstract class AbstractLayer implements Layer, Serializable {
 
         this.inputSize = inputSize;
         this.input = inputArray;
+        this.inputRun = inputSize;
+        this.inputStride = inputSize;
 
         // Store output
         assert (outputSize > 0);
@@ -128,19 +184,20 @@ public abstract class AbstractLayer implements Layer, Serializable {
         err = new float[outputSize];
 
         // Store or init weights
-        this.gradient = new float[inputSize][outputSize];
+        this.gradient = new float[inputSize * outputSize];
         if (weight != null) {
-            this.weight = copy(weight);
             if (weight.length != inputSize || weight[0].length != outputSize) {
                 throw new IllegalArgumentException(
                         "bad input weight size: " + weight.length + "x" + weight[0].length + ", expected " + inputSize + "x" + outputSize
                 );
             }
+            this.weight = flatten(weight);
         } else {
-            this.weight = new float[inputSize][outputSize];
+            this.weight = new float[inputSize * outputSize];
+            SplittableRandom rand = Rng.get();
             for (int i = 0; i < inputSize; i++) {
                 for (int o = 0; o < outputSize; o++) {
-                    this.weight[i][o] = (float) ((1 - 2 * Math.random()) / Math.sqrt(inputSize));
+                    this.weight[o * inputSize + i] = (float) ((1 - 2 * rand.nextDouble()) / Math.sqrt(inputSize));
                 }
             }
         }
@@ -202,13 +259,82 @@ public abstract class AbstractLayer implements Layer, Serializable {
         return input;
     }
 
+    /**
+     * @return index of the first input in the input array
+     */
+    @Override
+    public int getInputOffset() {
+        return inputOffset;
+    }
+
     /**
      * Changes the input array.
      *
      * @param in new array
      */
     public void setInputArray(float[] in) {
+        setInputArray(in, 0);
+    }
+
+    /**
+     * Changes the input array.
+     *
+     * @param in     new array
+     * @param offset index of the first input in the array
+     */
+    @Override
+    public void setInputArray(float[] in, int offset) {
+        setInputView(in, offset, inputSize, inputSize);
+    }
+
+    /**
+     * Makes the layer read its inputs from a patch of a larger array.
+     *
+     * @param in        array containing the inputs
+     * @param offset    index of the first input in the array
+     * @param runLength number of consecutive inputs
+     * @param stride    distance between the beginnings of two runs
+     */
+    @Override
+    public void setInputView(float[] in, int offset, int runLength, int stride) {
+        if (runLength < 1 || inputSize % runLength != 0 || stride < runLength) {
+            throw new IllegalArgumentException(
+                    "bad input view: runs of " + runLength + " every " + stride + " values for " + inputSize + " inputs"
+            );
+        }
         input = in;
+        inputOffset = offset;
+        inputRun = runLength;
+        inputStride = stride;
+    }
+
+    /**
+     * @return number of consecutive inputs in the input array
+     */
+    @Override
+    public int getInputRunLength() {
+        return inputRun;
+    }
+
+    /**
+     * @return distance between the beginnings of two runs of inputs
+     */
+    @Override
+    public int getInputStride() {
+        return inputStride;
+    }
+
+    /**
+     * Copies the inputs into an array, whether they are consecutive or not.
+     *
+     * @param dst array of size at least inputSize
+     */
+    protected void copyInput(float[] dst) {
+        int i = 0;
+        for (int r = inputOffset; i < inputSize; r += inputStride) {
+            System.arraycopy(input, r, dst, i, inputRun);
+            i += inputRun;
+        }
     }
 
     /**
@@ -217,15 +343,33 @@ public abstract class AbstractLayer implements Layer, Serializable {
      * @param num input number
      */
     public void deleteInput(int num) {
-        float[][] nWeight = new float[inputSize - 1][outputSize];
-
-        for (int i = 0; i < inputSize - 1; i++) {
-            int ii = (i >= num) ? i + 1 : i;
-            System.arraycopy(weight[ii], 0, nWeight[i], 0, outputSize - 1);
-        }
-        weight = nWeight;
+        weight = deleteColumn(weight, num);
+        gradient = deleteColumn(gradient, num);
 
         inputSize--;
+
+        // A view of a patch does not make sense anymore
+        inputRun = inputSize;
+        inputStride = inputSize;
+    }
+
+    /**
+     * Removes the values of an input from an array having the layout of the weights.
+     *
+     * @param arr  an array of size inputSize*outputSize
+     * @param num  input number, the last input is removed if it is too large
+     * @return a new array of size (inputSize-1)*outputSize
+     */
+    private float[] deleteColumn(float[] arr, int num) {
+        num = Math.min(num, inputSize - 1);
+        float[] res = new float[(inputSize - 1) * outputSize];
+        for (int o = 0; o < outputSize; o++) {
+            int src = o * inputSize;
+            int dst = o * (inputSize - 1);
+            System.arraycopy(arr, src, res, dst, num);
+            System.arraycopy(arr, src + num + 1, res, dst + num, inputSize - num - 1);
+        }
+        return res;
     }
 
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -237,6 +381,83 @@ public abstract class AbstractLayer implements Layer, Serializable {
      */
     public abstract void compute();
 
+    /**
+     * Computes the weighted sums of the inputs of all neurons, bias
+     * included, and stores them in wSum.
+     */
+    protected void computeWeightedSums() {
+        Kernels k = Kernels.get();
+        for (int o = 0; o < outputSize; o++) {
+            int w = o * inputSize;
+            int end = w + inputSize;
+            float sum = bias[o];
+            for (int r = inputOffset; w < end; r += inputStride, w += inputRun) {
+                sum = k.dot(sum, weight, w, input, r, inputRun);
+            }
+            wSum[o] = sum;
+        }
+    }
+
+    /**
+     * Applies the activation function to weighted sums. The default is the
+     * identity.
+     * @param sums weighted sums
+     * @param sumsOffset index of the first sum
+     * @param out array receiving the outputs
+     * @param outOffset index of the first output
+     * @param n number of values
+     */
+    protected void activate(float[] sums, int sumsOffset, float[] out, int outOffset, int n) {
+        System.arraycopy(sums, sumsOffset, out, outOffset, n);
+    }
+
+    /**
+     * Derivative of the activation function. The default is the one of the
+     * identity.
+     * @param sum weighted sum of a neuron
+     * @return the derivative of the activation function at sum
+     */
+    protected float activationDerivative(float sum) {
+        return 1;
+    }
+
+    /**
+     * Computes the outputs of a batch with a blocked matrix-matrix product:
+     * a block of weights is used for all vectors of the batch before the next
+     * one is loaded. The sums of a neuron are accumulated in the same order as
+     * in compute().
+     */
+    @Override
+    public void computeBatch(float[] inputs, int inputsOffset, float[] outputs, int outputsOffset, int batchSize) {
+        long t = Metrics.start();
+        Kernels k = Kernels.get();
+        int n = batchSize * outputSize;
+        if (batchSum == null || batchSum.length < n) {
+            batchSum = new float[n];
+        }
+
+        for (int b = 0; b < batchSize; b++) {
+            System.arraycopy(bias, 0, batchSum, b * outputSize, outputSize);
+        }
+
+        for (int i0 = 0; i0 < inputSize; i0 += BLOCK_INPUTS) {
+            int len = Math.min(BLOCK_INPUTS, inputSize - i0);
+            for (int o0 = 0; o0 < outputSize; o0 += BLOCK_OUTPUTS) {
+                int o1 = Math.min(outputSize, o0 + BLOCK_OUTPUTS);
+                for (int b = 0; b < batchSize; b++) {
+                    int in = inputsOffset + b * inputSize + i0;
+                    int s = b * outputSize;
+                    for (int o = o0; o < o1; o++) {
+                        batchSum[s + o] = k.dot(batchSum[s + o], weight, o * inputSize + i0, inputs, in, len);
+                    }
+                }
+            }
+        }
+
+        activate(batchSum, 0, outputs, outputsOffset, n);
+        Metrics.stop("Layer.computeBatch", t);
+    }
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Learning
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -251,6 +472,85 @@ public abstract class AbstractLayer implements Layer, Serializable {
      */
     public abstract float backPropagate();
 
+    /**
+     * Adds fact times the input to the gradient of a neuron and, if there is
+     * a previous error array, fact times the weights of the neuron to it.
+     * @param o neuron number
+     * @param fact error of the neuron multiplied by the derivative of its activation
+     */
+    protected void accumulateGradient(int o, float fact) {
+        Kernels k = Kernels.get();
+        int w = o * inputSize;
+        int end = w + inputSize;
+        for (int r = inputOffset; w < end; r += inputStride, w += inputRun) {
+            k.axpy(fact, input, r, gradient, w, inputRun);
+        }
+        if (prevErr != null) {
+            k.axpy(fact, weight, o * inputSize, prevErr, prevErrOffset, inputSize);
+        }
+        biasGradient[o] += fact;
+    }
+
+    /**
+     * Backpropagates a batch with blocked outer products. The gradient of a
+     * weight sums the contributions of the vectors in the order of the batch,
+     * as calling backPropagate() on each vector would.
+     */
+    @Override
+    public float backPropagateBatch(float[] inputs, int inputsOffset, float[] errors, int errorsOffset,
+                                    float[] prevErrors, int prevErrorsOffset, int batchSize) {
+        long t = Metrics.start();
+        Kernels k = Kernels.get();
+        int n = batchSize * outputSize;
+        if (batchFact == null || batchFact.length < n) {
+            batchFact = new float[n];
+        }
+
+        float errSum = 0.0f;
+        for (int j = 0; j < n; j++) {
+            float e = errors[errorsOffset + j];
+            errSum += Math.abs(e);
+            batchFact[j] = activationDerivative(batchSum[j]) * e;
+        }
+
+        for (int o0 = 0; o0 < outputSize; o0 += BLOCK_OUTPUTS) {
+            int o1 = Math.min(outputSize, o0 + BLOCK_OUTPUTS);
+            for (int b = 0; b < batchSize; b++) {
+                int in = inputsOffset + b * inputSize;
+                int f = b * outputSize;
+                for (int o = o0; o < o1; o++) {
+                    k.axpy(batchFact[f + o], inputs, in, gradient, o * inputSize, inputSize);
+                    biasGradient[o] += batchFact[f + o];
+                }
+            }
+        }
+
+        if (prevErrors != null) {
+            for (int b = 0; b < batchSize; b++) {
+                int p = prevErrorsOffset + b * inputSize;
+                int f = b * outputSize;
+                for (int o = 0; o < outputSize; o++) {
+                    k.axpy(batchFact[f + o], weight, o * inputSize, prevErrors, p, inputSize);
+                }
+            }
+        }
+
+        Metrics.stop("Layer.backPropagateBatch", t);
+        return errSum / n;
+    }
+
+    /**
+     * Applies the gradient descent with weight decay to the weights and the
+     * bias, then resets the gradients.
+     */
+    protected void applyGradient() {
+        Kernels.get().decayedUpdate(weight, gradient, 0, outputSize * inputSize, 1.0f - decay, learningSpeed);
+        for (int o = 0; o < outputSize; o++) {
+            bias[o] = (1.0f - decay) * bias[o] - learningSpeed * biasGradient[o];
+            biasGradient[o] = 0.0f;
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Output related
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -263,13 +563,33 @@ public abstract class AbstractLayer implements Layer, Serializable {
         return output;
     }
 
+    /**
+     * @return index of the first output in the output array
+     */
+    @Override
+    public int getOutputOffset() {
+        return outputOffset;
+    }
+
     /**
      * Changes the output array
      *
      * @param out new output array
      */
     public void setOutputArray(float[] out) {
+        setOutputArray(out, 0);
+    }
+
+    /**
+     * Changes the output array
+     *
+     * @param out    new output array
+     * @param offset index of the first output in the array
+     */
+    @Override
+    public void setOutputArray(float[] out, int offset) {
         output = out;
+        outputOffset = offset;
     }
 
     /**
@@ -285,23 +605,30 @@ public abstract class AbstractLayer implements Layer, Serializable {
      * @param num output number
      */
     public void deleteOutput(int num) {
-        float[][] nWeight = new float[inputSize][outputSize - 1];
-        float[] nBias = new float[outputSize - 1];
-
-        for (int o = 0; o < outputSize - 1; o++) {
-            int oo = (o >= num) ? o + 1 : o;
-            for (int i = 0; i < inputSize; i++) {
-                nWeight[i][o] = weight[i][oo];
-            }
-            nBias[o] = bias[oo];
-        }
-
-        bias = nBias;
-        weight = nWeight;
+        weight = deleteRow(weight, num, inputSize);
+        gradient = deleteRow(gradient, num, inputSize);
+        bias = deleteRow(bias, num, 1);
+        biasGradient = deleteRow(biasGradient, num, 1);
 
         outputSize--;
     }
 
+    /**
+     * Removes the values of an output from an array storing rowLength values per output.
+     *
+     * @param arr       an array of size rowLength*outputSize
+     * @param num       output number, the last output is removed if it is too large
+     * @param rowLength number of values per output
+     * @return a new array of size rowLength*(outputSize-1)
+     */
+    private float[] deleteRow(float[] arr, int num, int rowLength) {
+        num = Math.min(num, outputSize - 1);
+        float[] res = new float[rowLength * (outputSize - 1)];
+        System.arraycopy(arr, 0, res, 0, num * rowLength);
+        System.arraycopy(arr, (num + 1) * rowLength, res, num * rowLength, (outputSize - num - 1) * rowLength);
+        return res;
+    }
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Error related
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -313,6 +640,14 @@ public abstract class AbstractLayer implements Layer, Serializable {
         return err;
     }
 
+    /**
+     * @return index of the error of the first neuron in the error array
+     */
+    @Override
+    public int getErrorOffset() {
+        return errOffset;
+    }
+
     /**
      * Tells the neural layer which array should be
      * used for storing errors.
@@ -320,7 +655,20 @@ public abstract class AbstractLayer implements Layer, Serializable {
      * @param err an array
      */
     public void setError(float[] err) {
+        setError(err, 0);
+    }
+
+    /**
+     * Tells the neural layer which array should be
+     * used for storing errors.
+     *
+     * @param err    an array
+     * @param offset index of the error of the first neuron in the array
+     */
+    @Override
+    public void setError(float[] err, int offset) {
         this.err = err;
+        errOffset = offset;
     }
 
     /**
@@ -330,16 +678,14 @@ public abstract class AbstractLayer implements Layer, Serializable {
      * @param e error to add
      */
     public void addError(int o, float e) {
-        err[o] += e;
+        err[errOffset + o] += e;
     }
 
     /**
      * Clears the error
      */
     public void clearError() {
-        for (int i = 0; i < err.length; i++) {
-            err[i] = 0;
-        }
+        Arrays.fill(err, errOffset, errOffset + outputSize, 0);
     }
 
     /**
@@ -350,13 +696,33 @@ public abstract class AbstractLayer implements Layer, Serializable {
         return prevErr;
     }
 
+    /**
+     * @return index of the error of the first input in the previous error array
+     */
+    @Override
+    public int getPreviousErrorOffset() {
+        return prevErrOffset;
+    }
+
     /**
      * Tells the layer to which array the error should be backpropagated.
      *
      * @param e typically the error of a previous layer
      */
     public void setPreviousError(float[] e) {
+        setPreviousError(e, 0);
+    }
+
+    /**
+     * Tells the layer to which array the error should be backpropagated.
+     *
+     * @param e      typically the error of a previous layer
+     * @param offset index of the error of the first input in the array
+     */
+    @Override
+    public void setPreviousError(float[] e, int offset) {
         prevErr = e;
+        prevErrOffset = offset;
     }
 
     /**
@@ -366,9 +732,7 @@ public abstract class AbstractLayer implements Layer, Serializable {
         if (prevErr == null) {
             return;
         }
-        for (int i = 0; i < prevErr.length; i++) {
-            prevErr[i] = 0;
-        }
+        Arrays.fill(prevErr, prevErrOffset, prevErrOffset + inputSize, 0);
     }
 
     /**
@@ -378,7 +742,7 @@ public abstract class AbstractLayer implements Layer, Serializable {
      * @param v expected value
      */
     public void setExpected(int o, float v) {
-        float e = output[o] - v;
+        float e = output[outputOffset + o] - v;
         addError(o, e);
     }
 
@@ -387,10 +751,16 @@ public abstract class AbstractLayer implements Layer, Serializable {
     ///////////////////////////////////////////////////////////////////////////////////////////////
 
     /**
-     * @return the weight array
+     * @return a copy of the weights, as an inputSize x outputSize matrix
      */
     public float[][] getWeights() {
-        return weight;
+        float[][] w = new float[inputSize][outputSize];
+        for (int o = 0; o < outputSize; o++) {
+            for (int i = 0; i < inputSize; i++) {
+                w[i][o] = weight[o * inputSize + i];
+            }
+        }
+        return w;
     }
 
     /**
@@ -405,7 +775,7 @@ public abstract class AbstractLayer implements Layer, Serializable {
                 throw new IllegalArgumentException("bad input weight size: " + w.length + "x" + w[0].length + ", expected " + inputSize + "x" + outputSize);
             }
             // Store new values
-            weight = copy(w);
+            weight = flatten(w);
         } else {
             throw new IllegalArgumentException("the weights provided are null!");
         }
@@ -457,16 +827,67 @@ public abstract class AbstractLayer implements Layer, Serializable {
     public abstract Layer clone();
 
     /**
-     * 2D array copy
+     * Makes the layer use the very same weights and bias as another layer.
      *
-     * @param m an array
-     * @return a copy of m
+     * @param source layer whose weights are shared, must be an AbstractLayer of the same dimensions
      */
-    protected float[][] copy(float[][] m) {
-        float[][] n = new float[m.length][];
-        for (int i = 0; i < m.length; i++) {
-            n[i] = new float[m[i].length];
-            System.arraycopy(m[i], 0, n[i], 0, m[i].length);
+    @Override
+    public void shareWeights(Layer source) {
+        checkCompatible(source, "share the weights");
+        weight = ((AbstractLayer) source).weight;
+        bias = ((AbstractLayer) source).bias;
+    }
+
+    /**
+     * Moves the gradients of another layer to this one.
+     *
+     * @param source layer whose gradients are merged, must be an AbstractLayer of the same dimensions
+     */
+    @Override
+    public void mergeGradients(Layer source) {
+        checkCompatible(source, "merge the gradients");
+        AbstractLayer src = (AbstractLayer) source;
+        for (int n = 0; n < gradient.length; n++) {
+            gradient[n] += src.gradient[n];
+            src.gradient[n] = 0.0f;
+        }
+        for (int o = 0; o < outputSize; o++) {
+            biasGradient[o] += src.biasGradient[o];
+            src.biasGradient[o] = 0.0f;
+        }
+    }
+
+    /**
+     * Verifies that another layer is an AbstractLayer having the same dimensions.
+     *
+     * @param source the other layer
+     * @param action what should be done with it, for the error message
+     */
+    private void checkCompatible(Layer source, String action) {
+        if (!(source instanceof AbstractLayer)) {
+            throw new IllegalArgumentException("cannot " + action + " of a " + source.getClass().getSimpleName());
+        }
+        if (source.getInputSize() != inputSize || source.getOutputSize() != outputSize) {
+            throw new IllegalArgumentException(
+                    "cannot " + action + " of size " + source.getInputSize() + "x" + source.getOutputSize() + ", expected " + inputSize + "x" + outputSize
+            );
+        }
+    }
+
+    /**
+     * Converts an inputSize x outputSize matrix to the layout of the weights.
+     *
+     * @param m a matrix
+     * @return an output-major array of the values of m
+     */
+    protected float[] flatten(float[][] m) {
+        int nbIn = m.length;
+        int nbOut = m[0].length;
+        float[] n = new float[nbIn * nbOut];
+        for (int i = 0; i < nbIn; i++) {
+            for (int o = 0; o < nbOut; o++) {
+                n[o * nbIn + i] = m[i][o];
+            }
         }
         return n;
     }
@@ -494,7 +915,7 @@ public abstract class AbstractLayer implements Layer, Serializable {
         os.writeInt(outputSize);
         for (int i = 0; i < inputSize; i++) {
             for (int o = 0; o < outputSize; o++) {
-                os.writeFloat(weight[i][o]);
+                os.writeFloat(weight[o * inputSize + i]);
             }
         }
         for (int o = 0; o < outputSize; o++) {
@@ -523,17 +944,27 @@ public abstract class AbstractLayer implements Layer, Serializable {
      */
     public void load(DataInputStream is) throws IOException {
         inputSize = is.readInt();
+        inputRun = inputSize;
+        inputStride = inputSize;
         outputSize = is.readInt();
-        weight = new float[inputSize][outputSize];
+        weight = new float[inputSize * outputSize];
         for (int i = 0; i < inputSize; i++) {
             for (int o = 0; o < outputSize; o++) {
-                this.weight[i][o] = is.readFloat();
+                this.weight[o * inputSize + i] = is.readFloat();
             }
         }
+        bias = new float[outputSize];
         for (int o = 0; o < this.outputSize; o++) {
             bias[o] = is.readFloat();
         }
 
+        // Init the gradients
+        gradient = new float[inputSize * outputSize];
+        biasGradient = new float[outputSize];
+
+        // Init the output array
+        output = new float[this.outputSize];
+
         // Init the error array
         err = new float[this.outputSize];
 
@@ -541,4 +972,73 @@ public abstract class AbstractLayer implements Layer, Serializable {
         wSum = new float[this.outputSize];
     }
 
+
+    /**
+     * Serializes the layer. In a model file, the weights and bias are stored
+     * as blocks outside of the structure, and the gradients are not stored.
+     *
+     * @param out output stream
+     * @throws IOException if the layer cannot be written
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        if (out instanceof ModelFile.Output) {
+            ModelFile.Output mf = (ModelFile.Output) out;
+            out.writeInt(mf.addBlock(weight));
+            out.writeInt(mf.addBlock(bias));
+        } else {
+            out.writeObject(weight);
+            out.writeObject(bias);
+            out.writeObject(gradient);
+            out.writeObject(biasGradient);
+        }
+    }
+
+    /**
+     * Deserializes the layer. Layers saved by older versions stored the weights
+     * and gradients as inputSize x outputSize matrices among the fields, and
+     * could not read a patch in a larger array; they are converted.
+     *
+     * @param in input stream
+     * @throws IOException            if the layer cannot be read
+     * @throws ClassNotFoundException if the stream is not valid
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        inputSize = fields.get("inputSize", 0);
+        input = (float[]) fields.get("input", null);
+        inputOffset = fields.get("inputOffset", 0);
+        inputRun = fields.get("inputRun", inputSize);
+        inputStride = fields.get("inputStride", inputSize);
+        outputSize = fields.get("outputSize", 0);
+        output = (float[]) fields.get("output", null);
+        outputOffset = fields.get("outputOffset", 0);
+        learningSpeed = fields.get("learningSpeed", 0.0f);
+        wSum = (float[]) fields.get("wSum", null);
+        err = (float[]) fields.get("err", null);
+        errOffset = fields.get("errOffset", 0);
+        prevErr = (float[]) fields.get("prevErr", null);
+        prevErrOffset = fields.get("prevErrOffset", 0);
+        decay = fields.get("decay", 0.0f);
+
+        if (fields.getObjectStreamClass().getField("weight") != null) {
+            // Layout of the versions before the flat weights
+            weight = flatten((float[][]) fields.get("weight", null));
+            gradient = flatten((float[][]) fields.get("gradient", null));
+            bias = (float[]) fields.get("bias", null);
+            biasGradient = (float[]) fields.get("biasGradient", null);
+        } else if (in instanceof ModelFile.Input) {
+            ModelFile.Input mf = (ModelFile.Input) in;
+            weight = mf.getBlock(in.readInt());
+            bias = mf.getBlock(in.readInt());
+            gradient = new float[weight.length];
+            biasGradient = new float[bias.length];
+        } else {
+            weight = (float[]) in.readObject();
+            bias = (float[]) in.readObject();
+            gradient = (float[]) in.readObject();
+            biasGradient = (float[]) in.readObject();
+        }
+    }
+
 }
@@ -0,0 +1,187 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.ml.layer;
+
+/**
+ * Loops on float arrays which dominate the computation time of the layers.
+ * Two implementations exist: a scalar one, always available, and one using
+ * the SIMD instructions of the processor through the Java Vector API. The
+ * latter is compiled separately (see the src-vector folder) as the Vector API
+ * is an incubator module of the JDK. It is used when it is on the class path
+ * and the JVM is started with --add-modules jdk.incubator.vector; otherwise,
+ * or if the system property nlightn.kernels is set to "scalar", the scalar
+ * implementation is used.
+ * <p>
+ * The scalar implementation computes exactly what the layers computed before
+ * the kernels existed. The vector one sums the products in a different order,
+ * so its results can differ in the last bits.
+ * @author Mathias Seuret, Michele Alberti
+ */
+public abstract class Kernels {
+
+    /**
+     * Name of the class implementing the kernels with the Vector API.
+     */
+    private static final String VECTOR_KERNELS = "diuf.diva.dia.ms.ml.layer.VectorKernels";
+
+    /**
+     * Kernels selected at startup.
+     */
+    private static final Kernels INSTANCE = select();
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Selection
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return the kernels used by the layers
+     */
+    public static Kernels get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Selects the fastest available implementation.
+     * @return the kernels
+     */
+    private static Kernels select() {
+        String choice = System.getProperty("nlightn.kernels", "auto");
+        if (!choice.equals("scalar")
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (Kernels) Class.forName(VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // Not compiled, or not supported by this JVM
+            }
+        }
+        if (choice.equals("vector")) {
+            System.err.println("Vector kernels are not available, using scalar kernels");
+        }
+        return new ScalarKernels();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Kernels
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Adds a dot product to an accumulator.
+     * @param acc initial value of the sum
+     * @param a first array
+     * @param aOffset index of the first value of a
+     * @param b second array
+     * @param bOffset index of the first value of b
+     * @param n number of products
+     * @return acc plus the sum of a[aOffset+i]*b[bOffset+i]
+     */
+    public abstract float dot(float acc, float[] a, int aOffset, float[] b, int bOffset, int n);
+
+    /**
+     * Applies the soft-sign function x/(1+|x|).
+     * @param src values
+     * @param srcOffset index of the first value
+     * @param dst array receiving the results, can be src
+     * @param dstOffset index of the first result
+     * @param n number of values
+     */
+    public abstract void softsign(float[] src, int srcOffset, float[] dst, int dstOffset, int n);
+
+    /**
+     * Adds a scaled array to another one, i.e., y += a*x. Accumulating the
+     * gradient of a neuron is done with one such call per row of the outer product.
+     * @param a factor
+     * @param x array which is scaled
+     * @param xOffset index of the first value of x
+     * @param y array receiving the sum
+     * @param yOffset index of the first value of y
+     * @param n number of values
+     */
+    public abstract void axpy(float a, float[] x, int xOffset, float[] y, int yOffset, int n);
+
+    /**
+     * Applies a gradient descent step with weight decay, w = keep*w - rate*g,
+     * and resets the gradient to zero.
+     * @param w weights
+     * @param g gradient
+     * @param offset index of the first weight and gradient
+     * @param n number of weights
+     * @param keep part of the weights which is kept, i.e., 1-decay
+     * @param rate learning speed
+     */
+    public abstract void decayedUpdate(float[] w, float[] g, int offset, int n, float keep, float rate);
+
+    /**
+     * @return a short name of the implementation
+     */
+    public abstract String name();
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Scalar implementation
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Plain loops, which the JIT compiler might vectorize or not.
+     */
+    static final class ScalarKernels extends Kernels {
+
+        @Override
+        public float dot(float acc, float[] a, int aOffset, float[] b, int bOffset, int n) {
+            for (int i = 0; i < n; i++) {
+                acc += a[aOffset + i] * b[bOffset + i];
+            }
+            return acc;
+        }
+
+        @Override
+        public void softsign(float[] src, int srcOffset, float[] dst, int dstOffset, int n) {
+            for (int i = 0; i < n; i++) {
+                float x = src[srcOffset + i];
+                dst[dstOffset + i] = x / (1 + Math.abs(x));
+            }
+        }
+
+        @Override
+        public void axpy(float a, float[] x, int xOffset, float[] y, int yOffset, int n) {
+            for (int i = 0; i < n; i++) {
+                y[yOffset + i] += a * x[xOffset + i];
+            }
+        }
+
+        @Override
+        public void decayedUpdate(float[] w, float[] g, int offset, int n, float keep, float rate) {
+            for (int i = offset; i < offset + n; i++) {
+                w[i] = keep * w[i] - rate * g[i];
+                g[i] = 0.0f;
+            }
+        }
+
+        @Override
+        public String name() {
+            return "scalar";
+        }
+    }
+}
@@ -34,6 +34,19 @@ public interface Layer {
     ///////////////////////////////////////////////////////////////////////////////////////////////
     void compute();
 
+    /**
+     * Computes the outputs of several input vectors at once. The inputs are
+     * stored one after the other, each one having getInputSize() values, and
+     * so are the outputs. The input, output and error arrays of the layer are
+     * neither used nor modified.
+     * @param inputs array containing the input vectors
+     * @param inputsOffset index of the first value of the first input vector
+     * @param outputs array receiving the output vectors
+     * @param outputsOffset index of the first value of the first output vector
+     * @param batchSize number of input vectors
+     */
+    void computeBatch(float[] inputs, int inputsOffset, float[] outputs, int outputsOffset, int batchSize);
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Learning
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -46,6 +59,22 @@ public interface Layer {
      */
     float backPropagate();
 
+    /**
+     * Backpropagates the errors of the last batch given to computeBatch().
+     * The gradients of all vectors are summed, so a single call to learn()
+     * applies them. The errors are stored like the outputs of the batch.
+     * @param inputs array containing the input vectors given to computeBatch()
+     * @param inputsOffset index of the first value of the first input vector
+     * @param errors errors of the output vectors
+     * @param errorsOffset index of the first error
+     * @param prevErrors array to which the errors of the input vectors are added, can be null
+     * @param prevErrorsOffset index of the error of the first value of the first input vector
+     * @param batchSize number of vectors
+     * @return average of the absolute errors of the outputs
+     */
+    float backPropagateBatch(float[] inputs, int inputsOffset, float[] errors, int errorsOffset,
+                             float[] prevErrors, int prevErrorsOffset, int batchSize);
+
     /**
      * Applies the gradient descent.
      */
@@ -58,8 +87,43 @@ public interface Layer {
 
     float[] getInputArray();
 
+    /**
+     * @return index of the first input in the input array
+     */
+    int getInputOffset();
+
     void setInputArray(float[] inputArray);
 
+    /**
+     * Changes the input array, the inputs being read starting at the given index.
+     * This allows the layer to read directly from a larger array, e.g., the data of a DataBlock.
+     * @param inputArray array containing the inputs
+     * @param offset index of the first input
+     */
+    void setInputArray(float[] inputArray, int offset);
+
+    /**
+     * Makes the layer read its inputs from a patch of a larger array, without copying it.
+     * The inputs are made of consecutive runs of values, e.g., the columns of a patch
+     * of a DataBlock: the input i is at offset + (i / runLength) * stride + i % runLength.
+     * @param inputArray array containing the inputs
+     * @param offset index of the first input
+     * @param runLength number of consecutive inputs in a run, must divide the input size
+     * @param stride distance between the beginnings of two runs
+     */
+    void setInputView(float[] inputArray, int offset, int runLength, int stride);
+
+    /**
+     * @return number of consecutive inputs in the input array, equal to the
+     * input size unless the input is a view
+     */
+    int getInputRunLength();
+
+    /**
+     * @return distance between the beginnings of two runs of inputs
+     */
+    int getInputStride();
+
     void deleteInput(int num);
 
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -69,8 +133,20 @@ public interface Layer {
 
     float[] getOutputArray();
 
+    /**
+     * @return index of the first output in the output array
+     */
+    int getOutputOffset();
+
     void setOutputArray(float[] inputArray);
 
+    /**
+     * Changes the output array, the outputs being written starting at the given index.
+     * @param outputArray array receiving the outputs
+     * @param offset index of the first output
+     */
+    void setOutputArray(float[] outputArray, int offset);
+
     void deleteOutput(int num);
 
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -78,14 +154,38 @@ public interface Layer {
     ///////////////////////////////////////////////////////////////////////////////////////////////
     float[] getPreviousError();
 
+    /**
+     * @return index of the error of the first input in the previous error array
+     */
+    int getPreviousErrorOffset();
+
     void setPreviousError(float[] prevError);
 
+    /**
+     * Changes the array to which the error is backpropagated.
+     * @param prevError array receiving the error of the inputs
+     * @param offset index of the error of the first input
+     */
+    void setPreviousError(float[] prevError, int offset);
+
     void clearPreviousError();
 
     float[] getError();
 
+    /**
+     * @return index of the error of the first output in the error array
+     */
+    int getErrorOffset();
+
     void setError(float[] error);
 
+    /**
+     * Changes the array storing the error of the outputs.
+     * @param error array containing the errors
+     * @param offset index of the error of the first output
+     */
+    void setError(float[] error, int offset);
+
     void clearError();
 
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -109,4 +209,22 @@ public interface Layer {
      * @return a full copy of the Layer
      */
     Layer clone();
+
+    /**
+     * Makes the layer use the very same weights and bias as another layer of
+     * the same dimensions. Everything else, e.g., input, output, errors and
+     * gradients, stays owned by each layer, so both can compute at the same
+     * time from different threads.
+     * @param source layer whose weights are shared
+     */
+    void shareWeights(Layer source);
+
+    /**
+     * Adds the gradients accumulated by another layer of the same dimensions
+     * to the gradients of this layer, and clears the gradients of the other
+     * layer. This way, replicas of a layer can backpropagate different samples
+     * and a single gradient descent can be applied on the sum.
+     * @param source layer whose gradients are moved to this one
+     */
+    void mergeGradients(Layer source);
 }
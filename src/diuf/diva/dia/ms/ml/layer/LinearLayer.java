@@ -26,6 +26,8 @@
 
 package diuf.diva.dia.ms.ml.layer;
 
+import diuf.diva.dia.ms.util.Metrics;
+
 import java.io.DataInputStream;
 import java.io.IOException;
 
@@ -37,6 +39,8 @@ import java.io.IOException;
  */
 public class LinearLayer extends AbstractLayer {
 
+    private static final long serialVersionUID = 6864104158499118445L;
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Constructor
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -103,22 +107,19 @@ public class LinearLayer extends AbstractLayer {
      * Computes the output of the layer.
      */
     public void compute() {
-        for (int o = 0; o < outputSize; o++) {
-            wSum[o] = bias[o];
-            for (int i = 0; i < inputSize; i++) {
-                wSum[o] += weight[i][o] * input[i];
-            }
-            output[o] = wSum[o];
-        }
+        long t = Metrics.start();
+        computeWeightedSums();
+        activate(wSum, 0, output, outputOffset, outputSize);
+        Metrics.stop("LinearLayer.compute", t);
         /*
         // Here rescale output ?
         float sum = 0;
         for (int o = 0; o < outputSize; o++) {
-            sum += output[o];
+            sum += output[outputOffset + o];
         }
 
         for (int o = 0; o < outputSize; o++) {
-            output[o] /= sum;
+            output[outputOffset + o] /= sum;
         }
         */
     }
@@ -131,22 +132,19 @@ public class LinearLayer extends AbstractLayer {
      */
     public void learn() {
         for (int o = 0; o < outputSize; o++) {
-            for (int i = 0; i < inputSize; i++) {
-                weight[i][o] = (1.0f - decay) * weight[i][o] - learningSpeed * gradient[i][o];
-                gradient[i][o] = 0.0f;
+            int base = o * inputSize;
+            for (int i = base; i < base + inputSize; i++) {
+                weight[i] = (1.0f - decay) * weight[i] - learningSpeed * gradient[i];
+                gradient[i] = 0.0f;
                 // Emergency normalization
-                if (weight[i][o] > 10) {
+                if (weight[i] > 10) {
                     System.out.println("!WARNING! Weights are too big! Normalizing!");
                     float norm = 0;
-                    for (int x = 0; x < weight.length; x++) {
-                        for (int y = 0; y < weight[x].length; y++) {
-                            norm += Math.sqrt(Math.pow(weight[i][o], 2));
-                        }
+                    for (int n = 0; n < weight.length; n++) {
+                        norm += Math.sqrt(Math.pow(weight[i], 2));
                     }
-                    for (int x = 0; x < weight.length; x++) {
-                        for (int y = 0; y < weight[x].length; y++) {
-                            weight[i][o] /= norm;
-                        }
+                    for (int n = 0; n < weight.length; n++) {
+                        weight[i] /= norm;
                     }
                 }
             }
@@ -160,23 +158,9 @@ public class LinearLayer extends AbstractLayer {
      */
     public float backPropagate() {
         float errSum = 0.0f;
-        if (prevErr == null) {
-            for (int o = 0; o < outputSize; o++) {
-                errSum += Math.abs(err[o]);
-                for (int i = 0; i < inputSize; i++) {
-                    gradient[i][o] += err[o] * input[i];
-                }
-                biasGradient[o] += err[o];
-            }
-        } else {
-            for (int o = 0; o < outputSize; o++) {
-                errSum += Math.abs(err[o]);
-                for (int i = 0; i < inputSize; i++) {
-                    gradient[i][o] += err[o] * input[i];
-                    prevErr[i] += err[o] * weight[i][o];
-                }
-                biasGradient[o] += err[o];
-            }
+        for (int o = 0; o < outputSize; o++) {
+            errSum += Math.abs(err[errOffset + o]);
+            accumulateGradient(o, err[errOffset + o]);
         }
 
         return errSum / outputSize;
@@ -197,7 +181,7 @@ public class LinearLayer extends AbstractLayer {
                 input,
                 inputSize,
                 outputSize,
-                weight,
+                getWeights(),
                 bias
         );
 
@@ -26,6 +26,8 @@
 
 package diuf.diva.dia.ms.ml.layer;
 
+import diuf.diva.dia.ms.util.Metrics;
+
 import java.io.DataInputStream;
 import java.io.IOException;
 
@@ -36,6 +38,8 @@ import java.io.IOException;
  */
 public class NeuralLayer extends AbstractLayer {
 
+    private static final long serialVersionUID = -7694388694075891018L;
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Constructor
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -96,13 +100,27 @@ public class NeuralLayer extends AbstractLayer {
      * Computes the output of the layer.
      */
     public void compute() {
-        for (int o = 0; o < outputSize; o++) {
-            wSum[o] = bias[o];
-            for (int i = 0; i < inputSize; i++) {
-                wSum[o] += weight[i][o] * input[i];
-            }
-            output[o] = wSum[o] / (1 + Math.abs(wSum[o]));
-        }
+        long t = Metrics.start();
+        computeWeightedSums();
+        activate(wSum, 0, output, outputOffset, outputSize);
+        Metrics.stop("NeuralLayer.compute", t);
+    }
+
+    /**
+     * Applies the soft-sign function.
+     */
+    @Override
+    protected void activate(float[] sums, int sumsOffset, float[] out, int outOffset, int n) {
+        Kernels.get().softsign(sums, sumsOffset, out, outOffset, n);
+    }
+
+    /**
+     * @return the derivative of the soft-sign function
+     */
+    @Override
+    protected float activationDerivative(float sum) {
+        float bot = 1 + Math.abs(sum);
+        return 1 / (bot * bot);
     }
 
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -112,14 +130,7 @@ public class NeuralLayer extends AbstractLayer {
      * Applies the gradient descent.
      */
     public void learn() {
-        for (int o = 0; o < outputSize; o++) {
-            for (int i = 0; i < inputSize; i++) {
-                weight[i][o] = (1.0f-decay)*weight[i][o] - learningSpeed * gradient[i][o];
-                gradient[i][o] = 0.0f;
-            }
-            bias[o] = (1.0f-decay)*bias[o] - learningSpeed * biasGradient[o];
-            biasGradient[o] = 0.0f;
-        }
+        applyGradient();
     }
 
     /**
@@ -127,30 +138,9 @@ public class NeuralLayer extends AbstractLayer {
      */
     public float backPropagate() {
         float errSum = 0.0f;
-        // It does not look nice, but it decreases MUCH the number
-        // of conditions executed - I don't think the Java compiler
-        // would do this
-        if (prevErr==null) {
-            for (int o = 0; o < outputSize; o++) {
-                errSum += Math.abs(err[o]);
-                float bot = 1 + Math.abs(wSum[o]);
-                float fact = 1 / (bot * bot) * err[o];
-                for (int i = 0; i < inputSize; i++) {
-                    gradient[i][o] += fact * input[i];
-                }
-                biasGradient[o] += fact;
-            }
-        } else {
-            for (int o = 0; o < outputSize; o++) {
-                errSum += Math.abs(err[o]);
-                float bot = 1 + Math.abs(wSum[o]);
-                float fact = 1 / (bot * bot) * err[o];
-                for (int i = 0; i < inputSize; i++) {
-                    gradient[i][o] += fact * input[i];
-                    prevErr[i] += fact * weight[i][o];
-                }
-                biasGradient[o] += fact;
-            }
+        for (int o = 0; o < outputSize; o++) {
+            errSum += Math.abs(err[errOffset + o]);
+            accumulateGradient(o, activationDerivative(wSum[o]) * err[errOffset + o]);
         }
         
         return errSum / outputSize;
@@ -169,7 +159,7 @@ public class NeuralLayer extends AbstractLayer {
                 input,
                 inputSize,
                 outputSize,
-                weight,
+                getWeights(),
                 bias
         );
 
@@ -26,6 +26,8 @@
 
 package diuf.diva.dia.ms.ml.layer;
 
+import diuf.diva.dia.ms.util.Metrics;
+
 import java.io.DataInputStream;
 import java.io.IOException;
 
@@ -37,6 +39,13 @@ import java.io.IOException;
  */
 public class OjasLayer extends AbstractLayer {
 
+    private static final long serialVersionUID = 1461316117308531617L;
+
+    /**
+     * Input from which the components are subtracted while learning.
+     */
+    private transient float[] residual;
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Constructor
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -106,13 +115,10 @@ public class OjasLayer extends AbstractLayer {
      * Computes the output of the layer.
      */
     public void compute() {
-        for (int o = 0; o < outputSize; o++) {
-            wSum[o] = bias[o];
-            for (int i = 0; i < inputSize; i++) {
-                wSum[o] += weight[i][o] * input[i];
-            }
-            output[o] = wSum[o];
-        }
+        long t = Metrics.start();
+        computeWeightedSums();
+        activate(wSum, 0, output, outputOffset, outputSize);
+        Metrics.stop("OjasLayer.compute", t);
     }
 
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -124,22 +130,30 @@ public class OjasLayer extends AbstractLayer {
      */
     public void learn() {
 
+        // The mean is subtracted from a copy, the input can be a view of a data block
+        if (residual == null || residual.length != inputSize) {
+            residual = new float[inputSize];
+        }
+        copyInput(residual);
+
         for (int o = 0; o < outputSize; o++) {
+            int base = o * inputSize;
+
             // Computing phi
             double phi = 0;
             for (int i = 0; i < inputSize; i++) {
-                phi += weight[i][o] * input[i];
+                phi += weight[base + i] * residual[i];
             }
 
             for (int i = 0; i < inputSize; i++) {
                 // Updating weight
-                weight[i][o] += learningSpeed * phi * (input[i] - (phi * weight[i][o]));
-                if (Float.isNaN(weight[i][o])) {
+                weight[base + i] += learningSpeed * phi * (residual[i] - (phi * weight[base + i]));
+                if (Float.isNaN(weight[base + i])) {
                     throw new RuntimeException("NaN detected. Something went wrong.");
                 }
 
                 // Subtracting mean
-                input[i] -= phi * weight[i][o];
+                residual[i] -= phi * weight[base + i];
             }
 
             // Updating learning speed
@@ -154,12 +168,26 @@ public class OjasLayer extends AbstractLayer {
 
         float errSum = 0.0f;
         for (int o = 0; o < outputSize; o++) {
-            errSum += Math.abs(err[o]);
+            errSum += Math.abs(err[errOffset + o]);
         }
 
         return errSum / outputSize;
     }
 
+    /**
+     * Oja's rule does not use gradients, only the error is computed.
+     */
+    @Override
+    public float backPropagateBatch(float[] inputs, int inputsOffset, float[] errors, int errorsOffset,
+                                    float[] prevErrors, int prevErrorsOffset, int batchSize) {
+        int n = batchSize * outputSize;
+        float errSum = 0.0f;
+        for (int j = 0; j < n; j++) {
+            errSum += Math.abs(errors[errorsOffset + j]);
+        }
+        return errSum / n;
+    }
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Utility
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -175,7 +203,7 @@ public class OjasLayer extends AbstractLayer {
                 input,
                 inputSize,
                 outputSize,
-                weight,
+                getWeights(),
                 bias
         );
 
@@ -28,6 +28,11 @@ package diuf.diva.dia.ms.ml.mlnn;
 
 import diuf.diva.dia.ms.ml.layer.NeuralLayer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -38,6 +43,8 @@ import java.util.Arrays;
  */
 public class MLNN implements Serializable {
 
+    private static final long serialVersionUID = -5290432942061743389L;
+
     /**
      * Layers of the network
      */
@@ -102,6 +109,33 @@ public class MLNN implements Serializable {
         input = base.getInputArray();
     }
 
+    /**
+     * Creates a replica of the network: a copy whose layers share the weights
+     * of this network, but which has its own outputs and errors. The input
+     * array of the replica has to be set with setInput().
+     * @return a replica of the network
+     * @throws UnsupportedOperationException if the network cannot be copied
+     */
+    public MLNN replicate() {
+        MLNN replica;
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+                oos.writeObject(this);
+            }
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+                replica = (MLNN) ois.readObject();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new UnsupportedOperationException("cannot copy the MLNN", e);
+        }
+
+        for (int l = 0; l < layers.size(); l++) {
+            replica.layers.get(l).shareWeights(layers.get(l));
+        }
+        return replica;
+    }
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Computing
     ///////////////////////////////////////////////////////////////////////////////////////////////
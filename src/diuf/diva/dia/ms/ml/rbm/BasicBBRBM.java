@@ -25,15 +25,51 @@
  ******************************************************************************/
 
 package diuf.diva.dia.ms.ml.rbm;
+import diuf.diva.dia.ms.ml.layer.Kernels;
+import diuf.diva.dia.ms.util.Rng;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.SplittableRandom;
+
 import static java.lang.Math.*;
 
 /**
  * Basic Binary-Binary RBM, based on the following web page:
  * http://blog.echen.me/2011/07/18/introduction-to-restricted-boltzmann-machines/
+ * <p>
+ * The training samples are gathered in mini-batches, and the RBM is trained
+ * with CD-k, or persistent CD, on each batch: the batch is processed as a
+ * matrix and one averaged update is applied. The statistics of the hidden
+ * units use their probabilities rather than sampled states.
  * @author Mathias Seuret
  */
 public class BasicBBRBM implements Serializable {
+
+    private static final long serialVersionUID = 1528724231582595641L;
+
+    /**
+     * Serialized fields. The learning rate is stored as a double, as it was
+     * by the older versions, whose weights were double[nbVisible][nbHidden]
+     * and biases double arrays.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("nbVisible", int.class),
+            new ObjectStreamField("nbHidden", int.class),
+            new ObjectStreamField("visible", int[].class),
+            new ObjectStreamField("hidden", int[].class),
+            new ObjectStreamField("w", float[].class),
+            new ObjectStreamField("vb", float[].class),
+            new ObjectStreamField("hb", float[].class),
+            new ObjectStreamField("eps", double.class),
+            new ObjectStreamField("batchSize", int.class),
+            new ObjectStreamField("cdSteps", int.class),
+            new ObjectStreamField("persistent", boolean.class)
+    };
+
     /**
      * Number of visible units - of inputs.
      */
@@ -55,36 +91,89 @@ public class BasicBBRBM implements Serializable {
     int[] hidden;
     
     /**
-     * Weights.
+     * Weights, the ones of the visible unit v start at v*nbHidden.
      */
-    double[][] w;
+    float[] w;
     
     /**
-     * Positive values for CD, with some extra space
-     * for the bias.
+     * Bias weights for visible units.
      */
-    double[][] positive;
+    float[] vb;
     
     /**
-     * Negative values for CD, with some extra space
-     * for the bias.
+     * Bias weights for hidden units.
      */
-    double[][] negative;
+    float[] hb;
     
     /**
-     * Bias weights for visible units.
+     * Learning eps
      */
-    double[] vb;
+    float eps = 1e-3f;
     
     /**
-     * Bias weights for hidden units.
+     * Number of samples per mini-batch.
      */
-    double[] hb;
+    int batchSize = 1;
     
     /**
-     * Learning eps
+     * Number of Gibbs steps of the CD.
+     */
+    int cdSteps = 1;
+    
+    /**
+     * True if the negative chains persist from one batch to the next one.
+     */
+    boolean persistent = false;
+    
+    /**
+     * Visible vectors of the current batch, one row per sample.
+     */
+    transient float[] data;
+    
+    /**
+     * Number of samples in the current batch.
+     */
+    transient int nbSamples;
+    
+    /**
+     * Probabilities of the hidden units given the data.
+     */
+    transient float[] posHidden;
+    
+    /**
+     * Visible states of the negative chains.
+     */
+    transient float[] chainVisible;
+    
+    /**
+     * Hidden states of the negative chains.
+     */
+    transient float[] chainHidden;
+    
+    /**
+     * Probabilities of the hidden units given the visible states of the chains.
+     */
+    transient float[] negHidden;
+    
+    /**
+     * Reconstruction of the data, used for the error of the persistent CD.
      */
-    double eps = 1e-3;
+    transient float[] reconstruction;
+    
+    /**
+     * Weighted sums of the hidden units, for a single sample.
+     */
+    transient float[] hiddenSum;
+    
+    /**
+     * True once the persistent chains have been initialized.
+     */
+    transient boolean chainsStarted;
+    
+    /**
+     * Reconstruction error of the last batch.
+     */
+    transient float lastError;
     
     /**
      * Creates an RBM.
@@ -98,18 +187,13 @@ public class BasicBBRBM implements Serializable {
         visible = new int[nbVisible];
         hidden  = new int[nbHidden];
         
-        w = new double[nbVisible][nbHidden];
-        for (int v=0; v<nbVisible; v++) {
-            for (int h=0; h<nbHidden; h++) {
-                w[v][h] = randomInitialWeight();
-            }
+        w = new float[nbVisible*nbHidden];
+        for (int i=0; i<w.length; i++) {
+            w[i] = randomInitialWeight();
         }
         
-        positive = new double[nbVisible+1][nbHidden+1];
-        negative = new double[nbVisible+1][nbHidden+1];
-        
-        vb = new double[nbVisible];
-        hb = new double[nbHidden];
+        vb = new float[nbVisible];
+        hb = new float[nbHidden];
     }
     
     /**
@@ -117,8 +201,29 @@ public class BasicBBRBM implements Serializable {
      * the values between -0.04 and +0.04.
      * @return a float
      */
-    private double randomInitialWeight() {
-        return sqrt(-2*0.0001*log(random()))*signum(random()-0.5);
+    private float randomInitialWeight() {
+        SplittableRandom rand = Rng.get();
+        return (float)(sqrt(-2*0.0001*log(rand.nextDouble()))*signum(rand.nextDouble()-0.5));
+    }
+    
+    /**
+     * Sets how the RBM is trained. The batches being averaged, larger batches
+     * make smaller steps per sample.
+     * @param batchSize number of samples per mini-batch
+     * @param cdSteps number of Gibbs steps of the CD
+     * @param persistent true for persistent CD
+     */
+    public void setTraining(int batchSize, int cdSteps, boolean persistent) {
+        if (batchSize<1) {
+            throw new IllegalArgumentException("the batch size must be at least 1, got "+batchSize);
+        }
+        if (cdSteps<1) {
+            throw new IllegalArgumentException("the number of CD steps must be at least 1, got "+cdSteps);
+        }
+        this.batchSize  = batchSize;
+        this.cdSteps    = cdSteps;
+        this.persistent = persistent;
+        data = null;
     }
     
     /**
@@ -170,35 +275,160 @@ public class BasicBBRBM implements Serializable {
     }
     
     /**
-     * Trains the RBM.
-     * @return the number of reconstruction differences divided by the number of visible units
+     * Adds the visible values to the current batch, and trains the RBM
+     * on the batch when it is full.
+     * @return the number of reconstruction differences of the last trained
+     *         batch divided by the number of visible units and of samples
      */
     public float train() {
-        updateHidden();
-        computePos();
+        if (data==null) {
+            allocateBatch();
+        }
+        int offset = nbSamples*nbVisible;
+        for (int v=0; v<nbVisible; v++) {
+            data[offset+v] = visible[v];
+        }
+        if (++nbSamples==batchSize) {
+            lastError = trainBatch(batchSize) / (float)(nbVisible*batchSize);
+            nbSamples = 0;
+        }
+        return lastError;
+    }
+    
+    /**
+     * Trains the RBM on the samples of the incomplete batch, if there are
+     * some. Call this when the training is over.
+     */
+    public void trainingDone() {
+        if (nbSamples>0) {
+            lastError = trainBatch(nbSamples) / (float)(nbVisible*nbSamples);
+            nbSamples = 0;
+        }
+    }
+    
+    /**
+     * Allocates the arrays used for training on batches.
+     */
+    private void allocateBatch() {
+        data           = new float[batchSize*nbVisible];
+        chainVisible   = new float[batchSize*nbVisible];
+        reconstruction = new float[batchSize*nbVisible];
+        posHidden      = new float[batchSize*nbHidden];
+        chainHidden    = new float[batchSize*nbHidden];
+        negHidden      = new float[batchSize*nbHidden];
+        nbSamples      = 0;
+        chainsStarted  = false;
+    }
+    
+    /**
+     * Applies the CD on the first samples of the current batch.
+     * @param n number of samples in the batch
+     * @return the number of reconstruction differences
+     */
+    private int trainBatch(int n) {
+        SplittableRandom rand = Rng.get();
         
-        // Could iterate several times on these
-        int diff = updateVisible();
-        updateHidden();
+        // Positive phase
+        hiddenProbabilities(data, posHidden, n);
+        int diff = 0;
+        if (persistent) {
+            visibleProbabilities(posHidden, reconstruction, n);
+            for (int i=0; i<n*nbVisible; i++) {
+                diff += ((reconstruction[i]<0.5f ? 0 : 1)!=data[i]) ? 1 : 0;
+            }
+        }
+        if (!persistent || !chainsStarted) {
+            sample(posHidden, chainHidden, n*nbHidden, rand);
+            chainsStarted = true;
+        }
         
-        computeNeg();
-        applyCD();
+        // Negative phase
+        for (int k=0; k<cdSteps; k++) {
+            visibleProbabilities(chainHidden, chainVisible, n);
+            sample(chainVisible, chainVisible, n*nbVisible, rand);
+            if (k==0 && !persistent) {
+                for (int i=0; i<n*nbVisible; i++) {
+                    diff += (chainVisible[i]!=data[i]) ? 1 : 0;
+                }
+            }
+            hiddenProbabilities(chainVisible, negHidden, n);
+            sample(negHidden, chainHidden, n*nbHidden, rand);
+        }
         
-        return diff / (float)nbVisible;
+        // Averaged update
+        Kernels kernels = Kernels.get();
+        float rate = eps / n;
+        for (int s=0; s<n; s++) {
+            int vOffset = s*nbVisible;
+            int hOffset = s*nbHidden;
+            for (int v=0; v<nbVisible; v++) {
+                float pos = data[vOffset+v];
+                float neg = chainVisible[vOffset+v];
+                if (pos!=0) {
+                    kernels.axpy(rate*pos, posHidden, hOffset, w, v*nbHidden, nbHidden);
+                }
+                if (neg!=0) {
+                    kernels.axpy(-rate*neg, negHidden, hOffset, w, v*nbHidden, nbHidden);
+                }
+                vb[v] += rate * (pos-neg);
+            }
+            for (int h=0; h<nbHidden; h++) {
+                hb[h] += rate * (posHidden[hOffset+h]-negHidden[hOffset+h]);
+            }
+        }
+        
+        return diff;
     }
     
     /**
-     * Computes the positive values used for the CD algo
+     * Computes the probabilities of the hidden units for each sample of a batch.
+     * @param vis visible values, one row per sample
+     * @param dst destination of the probabilities, one row per sample
+     * @param n number of samples
      */
-    public void computePos() {
-        computePosNeg(positive);
+    private void hiddenProbabilities(float[] vis, float[] dst, int n) {
+        Kernels kernels = Kernels.get();
+        for (int s=0; s<n; s++) {
+            int vOffset = s*nbVisible;
+            int hOffset = s*nbHidden;
+            System.arraycopy(hb, 0, dst, hOffset, nbHidden);
+            for (int v=0; v<nbVisible; v++) {
+                if (vis[vOffset+v]!=0) {
+                    kernels.axpy(vis[vOffset+v], w, v*nbHidden, dst, hOffset, nbHidden);
+                }
+            }
+            FastSigmoid.apply(dst, hOffset, nbHidden);
+        }
     }
     
     /**
-     * Computes the negative values used for teh CD algo
+     * Computes the probabilities of the visible units for each sample of a batch.
+     * @param hid hidden values, one row per sample
+     * @param dst destination of the probabilities, one row per sample
+     * @param n number of samples
      */
-    public void computeNeg() {
-        computePosNeg(negative);
+    private void visibleProbabilities(float[] hid, float[] dst, int n) {
+        Kernels kernels = Kernels.get();
+        for (int s=0; s<n; s++) {
+            for (int v=0; v<nbVisible; v++) {
+                dst[s*nbVisible+v] = FastSigmoid.get(
+                        kernels.dot(vb[v], w, v*nbHidden, hid, s*nbHidden, nbHidden)
+                );
+            }
+        }
+    }
+    
+    /**
+     * Samples binary states.
+     * @param p probabilities
+     * @param dst destination of the states, can be p
+     * @param length number of states to sample
+     * @param rand random numbers generator
+     */
+    private static void sample(float[] p, float[] dst, int length, SplittableRandom rand) {
+        for (int i=0; i<length; i++) {
+            dst[i] = (rand.nextDouble()<p[i]) ? 1 : 0;
+        }
     }
     
     /**
@@ -206,12 +436,7 @@ public class BasicBBRBM implements Serializable {
      */
     public void decode() {
         for (int v=0; v<nbVisible; v++) {
-            double sum = vb[v];
-            for (int h=0; h<nbHidden; h++) {
-                sum += hidden[h]*w[v][h];
-            }
-            double p = activation(sum);
-            visible[v] = (p<0.5) ? 0 : 1;
+            visible[v] = (activation(visibleSum(v))<0.5) ? 0 : 1;
         }
     }
     
@@ -219,13 +444,23 @@ public class BasicBBRBM implements Serializable {
      * Updates the hidden units from the visible units.
      */
     public void updateHidden() {
-        for (int h=0; h<nbHidden; h++) {
-            double sum = hb[h];
-            for (int v=0; v<nbVisible; v++) {
-                sum += visible[v]*w[v][h];
+        SplittableRandom rand = Rng.get();
+        if (hiddenSum==null) {
+            hiddenSum = new float[nbHidden];
+        }
+        float[] sum = hiddenSum;
+        System.arraycopy(hb, 0, sum, 0, nbHidden);
+        for (int v=0; v<nbVisible; v++) {
+            if (visible[v]!=0) {
+                int offset = v*nbHidden;
+                for (int h=0; h<nbHidden; h++) {
+                    sum[h] += w[offset+h];
+                }
             }
-            double p = activation(sum);
-            hidden[h] = (random()<p) ? 1 : 0;
+        }
+        for (int h=0; h<nbHidden; h++) {
+            double p = activation(sum[h]);
+            hidden[h] = (rand.nextDouble()<p) ? 1 : 0;
         }
     }
     
@@ -235,13 +470,10 @@ public class BasicBBRBM implements Serializable {
      */
     public int updateVisible() {
         int diff = 0;
+        SplittableRandom rand = Rng.get();
         for (int v=0; v<nbVisible; v++) {
-            double sum = vb[v];
-            for (int h=0; h<nbHidden; h++) {
-                sum += hidden[h]*w[v][h];
-            }
-            double p = activation(sum);
-            int n = (random()<p) ? 1 : 0;
+            double p = activation(visibleSum(v));
+            int n = (rand.nextDouble()<p) ? 1 : 0;
             diff += (visible[v]!=n) ? 1 : 0;
             visible[v] = n;
         }
@@ -249,44 +481,27 @@ public class BasicBBRBM implements Serializable {
     }
     
     /**
-     * Activation function.
-     * @param x value
-     * @return for now a sigmoid
+     * @param v visible unit
+     * @return the weighted sum of the hidden units for the visible unit v
      */
-    public double activation(double x) {
-        return 1 / (1+exp(-x));
-    }
-    
-    /**
-     * Computes the positive or negative array, depending on the current
-     * state of the RBM.
-     * @param dst destination array
-     */
-    private void computePosNeg(double[][] dst) {
-        for (int v=0; v<nbVisible; v++) {
-            dst[v][nbHidden] = visible[v];
-            for (int h=0; h<nbHidden; h++) {
-                dst[v][h] = visible[v]*hidden[h];
-            }
-        }
+    private float visibleSum(int v) {
+        float sum = vb[v];
+        int offset = v*nbHidden;
         for (int h=0; h<nbHidden; h++) {
-            dst[nbVisible][h] = hidden[h];
+            if (hidden[h]!=0) {
+                sum += w[offset+h];
+            }
         }
+        return sum;
     }
     
     /**
-     * Applies the CD using the positive and negative arrays.
+     * Activation function.
+     * @param x value
+     * @return for now a sigmoid
      */
-    private void applyCD() {
-        for (int v=0; v<nbVisible; v++) {
-            vb[v] += eps * (positive[v][nbHidden]-negative[v][nbHidden]);
-            for (int h=0; h<nbHidden; h++) {
-                w[v][h] += eps * (positive[v][h]-negative[v][h]);
-            }
-        }
-        for (int h=0; h<nbHidden; h++) {
-            hb[h] += eps * (positive[nbVisible][h]-negative[nbVisible][h]);
-        }
+    public double activation(double x) {
+        return FastSigmoid.get((float)x);
     }
     
     /**
@@ -309,11 +524,80 @@ public class BasicBBRBM implements Serializable {
         for (int v=0; v<nbVisible; v++) {
             sb.append(String.format("V-%d     %8.5f", v, vb[v]));
             for (int h=0; h<nbHidden; h++) {
-                sb.append(String.format(" %8.5f", w[v][h]));
+                sb.append(String.format(" %8.5f", w[v*nbHidden+h]));
             }
             sb.append("\n");
         }
         
         return sb.toString();
     }
+
+    /**
+     * Serializes the RBM.
+     * @param out output stream
+     * @throws IOException if the RBM cannot be written
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("nbVisible", nbVisible);
+        fields.put("nbHidden", nbHidden);
+        fields.put("visible", visible);
+        fields.put("hidden", hidden);
+        fields.put("w", w);
+        fields.put("vb", vb);
+        fields.put("hb", hb);
+        fields.put("eps", (double) eps);
+        fields.put("batchSize", batchSize);
+        fields.put("cdSteps", cdSteps);
+        fields.put("persistent", persistent);
+        out.writeFields();
+    }
+
+    /**
+     * Deserializes the RBM, converting the weights and biases of the older
+     * versions.
+     * @param in input stream
+     * @throws IOException if the RBM cannot be read
+     * @throws ClassNotFoundException if the stream is not valid
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        nbVisible  = fields.get("nbVisible", 0);
+        nbHidden   = fields.get("nbHidden", 0);
+        visible    = (int[]) fields.get("visible", null);
+        hidden     = (int[]) fields.get("hidden", null);
+        eps        = (float) fields.get("eps", 1e-3);
+        batchSize  = fields.get("batchSize", 1);
+        cdSteps    = fields.get("cdSteps", 1);
+        persistent = fields.get("persistent", false);
+        
+        Object ow = fields.get("w", null);
+        if (ow instanceof double[][]) {
+            double[][] old = (double[][]) ow;
+            w = new float[nbVisible*nbHidden];
+            for (int v=0; v<nbVisible; v++) {
+                for (int h=0; h<nbHidden; h++) {
+                    w[v*nbHidden+h] = (float) old[v][h];
+                }
+            }
+            vb = toFloats((double[]) fields.get("vb", null));
+            hb = toFloats((double[]) fields.get("hb", null));
+        } else {
+            w  = (float[]) ow;
+            vb = (float[]) fields.get("vb", null);
+            hb = (float[]) fields.get("hb", null);
+        }
+    }
+    
+    /**
+     * @param a an array
+     * @return a float copy of the array
+     */
+    private static float[] toFloats(double[] a) {
+        float[] res = new float[a.length];
+        for (int i=0; i<a.length; i++) {
+            res[i] = (float) a[i];
+        }
+        return res;
+    }
 }
@@ -26,11 +26,17 @@
 
 package diuf.diva.dia.ms.ml.rbm;
 
+import diuf.diva.dia.ms.ml.layer.Kernels;
+import diuf.diva.dia.ms.util.Rng;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.SplittableRandom;
+
 import static java.lang.Math.abs;
 import static java.lang.Math.exp;
 import static java.lang.Math.log;
-import static java.lang.Math.random;
 import static java.lang.Math.signum;
 import static java.lang.Math.sqrt;
 
@@ -38,9 +44,17 @@ import static java.lang.Math.sqrt;
  * Basig Gaussian-Binary RBM, based on "Improved Learning of
  * Gaussian-Bernoulli Restricted Boltzmann Machines", Cho et
  * al, 2011.
+ * <p>
+ * The training samples are gathered in mini-batches, and the RBM is trained
+ * with CD-k, or persistent CD, on each batch: the batch is processed as a
+ * matrix and one averaged update is applied. The statistics of the hidden
+ * units use their probabilities rather than sampled states.
  * @author Mathias Seuret
  */
 public class BasicGBRBM implements Serializable {
+
+    private static final long serialVersionUID = 1466029591206357470L;
+
     /**
      * Number of visible units.
      */
@@ -62,9 +76,9 @@ public class BasicGBRBM implements Serializable {
     int[] hidden;
     
     /**
-     * Weights.
+     * Weights, the ones of the visible unit v start at v*nbHidden.
      */
-    float[][] w;
+    float[] w;
     
     /**
      * Bias for the visible units.
@@ -89,49 +103,74 @@ public class BasicGBRBM implements Serializable {
     float[] eZ;
     
     /**
-     * Positive values for the weights.
+     * Learning speed
      */
-    float[][] pW;
+    float eps = 1e-4f;
     
     /**
-     * Negative values for the weights.
+     * Number of samples per mini-batch.
      */
-    float[][] nW;
+    int batchSize = 1;
     
     /**
-     * Positive values for the bias of the visible units.
+     * Number of Gibbs steps of the CD.
      */
-    float[] pB;
+    int cdSteps = 3;
     
     /**
-     * Negative values for the bias of the visible units.
+     * True if the negative chains persist from one batch to the next one.
      */
-    float[] nB;
+    boolean persistent = false;
     
     /**
-     * Positive values for the bias of the hidden units.
+     * Visible vectors of the current batch, one row per sample.
      */
-    float[] pC;
+    transient float[] data;
     
     /**
-     * Negative values for the bias of the hidden units.
+     * Number of samples in the current batch.
      */
-    float[] nC;
+    transient int nbSamples;
     
     /**
-     * Positive values for the log of the variance of the visible units.
+     * Probabilities of the hidden units given the data.
      */
-    float[] pZ;
+    transient float[] posHidden;
     
     /**
-     * Negative values for the log of the variance of the visible units.
+     * Visible states of the negative chains.
      */
-    float[] nZ;
+    transient float[] chainVisible;
     
     /**
-     * Learning speed
+     * Hidden states of the negative chains.
      */
-    float eps = 1e-4f;
+    transient float[] chainHidden;
+    
+    /**
+     * Probabilities of the hidden units given the visible states of the chains.
+     */
+    transient float[] negHidden;
+    
+    /**
+     * Gradient of the log of the variances.
+     */
+    transient float[] zGradient;
+    
+    /**
+     * Weighted sums of the hidden units, for a single sample.
+     */
+    transient float[] hiddenSum;
+    
+    /**
+     * True once the persistent chains have been initialized.
+     */
+    transient boolean chainsStarted;
+    
+    /**
+     * Reconstruction error of the last batch.
+     */
+    transient float lastError;
     
     /**
      * Constructs a GBRBM.
@@ -146,27 +185,15 @@ public class BasicGBRBM implements Serializable {
         this.nbHidden  = nbHidden;
         visible = new float[nbVisible];
         hidden  = new int[nbHidden];
-        w       = new float[nbVisible][nbHidden];
+        w       = new float[nbVisible*nbHidden];
         b       = new float[nbVisible];
         c       = new float[nbHidden];
         z       = new float[nbVisible];
         eZ      = new float[nbVisible];
         
-        pW      = new float[nbVisible][nbHidden];
-        pB      = new float[nbVisible];
-        pC      = new float[nbHidden];
-        pZ      = new float[nbVisible];
-        
-        nW      = new float[nbVisible][nbHidden];
-        nB      = new float[nbVisible];
-        nC      = new float[nbHidden];
-        nZ      = new float[nbVisible];
-        
         // init weights
-        for (int v=0; v<nbVisible; v++) {
-            for (int h=0; h<nbHidden; h++) {
-                w[v][h] = randomInitialWeight();
-            }
+        for (int i=0; i<w.length; i++) {
+            w[i] = randomInitialWeight();
         }
         
         for (int v=0; v<nbVisible; v++) {
@@ -181,7 +208,28 @@ public class BasicGBRBM implements Serializable {
      * @return a float
      */
     private float randomInitialWeight() {
-        return (float)(sqrt(-2*0.0001*log(random()))*signum(random()-0.5));
+        SplittableRandom rand = Rng.get();
+        return (float)(sqrt(-2*0.0001*log(rand.nextDouble()))*signum(rand.nextDouble()-0.5));
+    }
+    
+    /**
+     * Sets how the RBM is trained. The batches being averaged, larger batches
+     * make smaller steps per sample.
+     * @param batchSize number of samples per mini-batch
+     * @param cdSteps number of Gibbs steps of the CD
+     * @param persistent true for persistent CD
+     */
+    public void setTraining(int batchSize, int cdSteps, boolean persistent) {
+        if (batchSize<1) {
+            throw new IllegalArgumentException("the batch size must be at least 1, got "+batchSize);
+        }
+        if (cdSteps<1) {
+            throw new IllegalArgumentException("the number of CD steps must be at least 1, got "+cdSteps);
+        }
+        this.batchSize  = batchSize;
+        this.cdSteps    = cdSteps;
+        this.persistent = persistent;
+        data = null;
     }
     
     /**
@@ -211,80 +259,170 @@ public class BasicGBRBM implements Serializable {
     }
     
     /**
-     * Trains the RBM on a given sample.
+     * Adds a sample to the current batch, and trains the RBM on the batch
+     * when it is full.
      * @param sample a float array
-     * @return an estimation of the reconstruction error
+     * @return an estimation of the reconstruction error of the last trained batch
      */
     public float train(float[] sample) {
-        load(sample);
-        
-        updateHidden();
-        computePos();
-        
-        float d = updateVisible();
-        updateHidden();
+        assert (sample.length==nbVisible);
         
-        for (int n=0; n<2; n++) {
-            updateVisible();
-            updateHidden();
+        if (data==null) {
+            allocateBatch();
         }
-        
-        computeNeg();
-        
-        applyCD();
-        
-        return d;
+        System.arraycopy(sample, 0, data, nbSamples*nbVisible, nbVisible);
+        if (++nbSamples==batchSize) {
+            lastError = trainBatch(batchSize) / (nbVisible*batchSize);
+            nbSamples = 0;
+        }
+        return lastError;
     }
     
     /**
-     * Computes the positive values.
+     * Trains the RBM on the samples of the incomplete batch, if there are
+     * some. Call this when the training is over.
      */
-    public void computePos() {
-        computePosNeg(pW, pB, pC, pZ);
+    public void trainingDone() {
+        if (nbSamples>0) {
+            lastError = trainBatch(nbSamples) / (nbVisible*nbSamples);
+            nbSamples = 0;
+        }
     }
     
     /**
-     * Computes the negative values.
+     * Allocates the arrays used for training on batches.
      */
-    public void computeNeg() {
-        computePosNeg(nW, nB, nC, nZ);
+    private void allocateBatch() {
+        data          = new float[batchSize*nbVisible];
+        chainVisible  = new float[batchSize*nbVisible];
+        posHidden     = new float[batchSize*nbHidden];
+        chainHidden   = new float[batchSize*nbHidden];
+        negHidden     = new float[batchSize*nbHidden];
+        zGradient     = new float[nbVisible];
+        nbSamples     = 0;
+        chainsStarted = false;
     }
     
     /**
-     * Generic method for computing positive and negative values.
-     * @param pnW positive or negative weight array
-     * @param pnB positive or negative bias of the visible units
-     * @param pnC positive or negative bias of the hidden units
-     * @param pnZ positive or negative variances of the visible units
+     * Applies the CD on the first samples of the current batch.
+     * @param n number of samples in the batch
+     * @return the sum of the absolute reconstruction differences
      */
-    public void computePosNeg(float[][] pnW, float[] pnB, float[] pnC, float[] pnZ) {
+    private float trainBatch(int n) {
+        SplittableRandom rand = Rng.get();
         for (int v=0; v<nbVisible; v++) {
-            float s = (float)exp(z[v]);
-            pnZ[v] = 0.5f*(visible[v]-b[v])*(visible[v]-b[v]);
+            eZ[v] = (float)exp(z[v]);
+        }
+        
+        // Positive phase
+        hiddenProbabilities(data, posHidden, n);
+        float diff = 0;
+        if (persistent) {
+            for (int s=0; s<n; s++) {
+                for (int v=0; v<nbVisible; v++) {
+                    float rec = b[v] + visibleSum(v, posHidden, s*nbHidden);
+                    diff += abs(rec-data[s*nbVisible+v]);
+                }
+            }
+        }
+        if (!persistent || !chainsStarted) {
+            sample(posHidden, chainHidden, n*nbHidden, rand);
+            chainsStarted = true;
+        }
+        
+        // Negative phase
+        for (int k=0; k<cdSteps; k++) {
+            for (int s=0; s<n; s++) {
+                for (int v=0; v<nbVisible; v++) {
+                    float sign = (rand.nextDouble()<0.5) ? -1.0f : 1.0f;
+                    float vis = b[v] + visibleSum(v, chainHidden, s*nbHidden)
+                              + sign*(float)sqrt(-2*eZ[v]*log(rand.nextDouble()));
+                    if (k==0 && !persistent) {
+                        diff += abs(vis-data[s*nbVisible+v]);
+                    }
+                    chainVisible[s*nbVisible+v] = vis;
+                }
+            }
+            hiddenProbabilities(chainVisible, negHidden, n);
+            sample(negHidden, chainHidden, n*nbHidden, rand);
+        }
+        
+        // Gradient of the variances, computed before the weights are modified
+        for (int v=0; v<nbVisible; v++) {
+            float g = 0;
+            for (int s=0; s<n; s++) {
+                float pos = data[s*nbVisible+v];
+                float neg = chainVisible[s*nbVisible+v];
+                g += 0.5f*(pos-b[v])*(pos-b[v]) - pos*(visibleSum(v, posHidden, s*nbHidden)-b[v]);
+                g -= 0.5f*(neg-b[v])*(neg-b[v]) - neg*(visibleSum(v, negHidden, s*nbHidden)-b[v]);
+            }
+            zGradient[v] = g;
+        }
+        
+        // Averaged update
+        Kernels kernels = Kernels.get();
+        float rate = eps / n;
+        for (int s=0; s<n; s++) {
+            int vOffset = s*nbVisible;
+            int hOffset = s*nbHidden;
+            for (int v=0; v<nbVisible; v++) {
+                float pos = data[vOffset+v] / eZ[v];
+                float neg = chainVisible[vOffset+v] / eZ[v];
+                kernels.axpy(rate*pos, posHidden, hOffset, w, v*nbHidden, nbHidden);
+                kernels.axpy(-rate*neg, negHidden, hOffset, w, v*nbHidden, nbHidden);
+                b[v] += rate * (pos-neg);
+            }
             for (int h=0; h<nbHidden; h++) {
-                pnW[v][h] = 1.0f/s*visible[v]*hidden[h];
-                pnZ[v] -= visible[v]*hidden[h]*w[v][h];
+                c[h] += rate * (posHidden[hOffset+h]-negHidden[hOffset+h]);
             }
-            pnB[v] = 1/s*visible[v];
         }
-        for (int h=0; h<nbHidden; h++) {
-            pnC[h] = hidden[h];
+        for (int v=0; v<nbVisible; v++) {
+            z[v] += rate * exp(-z[v]) * zGradient[v];
         }
+        
+        return diff;
     }
     
     /**
-     * Applies the contrastive divergence.
+     * Computes the probabilities of the hidden units for each sample of a
+     * batch. The variances must be in eZ.
+     * @param vis visible values, one row per sample
+     * @param dst destination of the probabilities, one row per sample
+     * @param n number of samples
      */
-    public void applyCD() {
-        for (int v=0; v<nbVisible; v++) {
-            for (int h=0; h<nbHidden; h++) {
-                w[v][h] += eps * (pW[v][h]-nW[v][h]);
+    private void hiddenProbabilities(float[] vis, float[] dst, int n) {
+        Kernels kernels = Kernels.get();
+        for (int s=0; s<n; s++) {
+            int vOffset = s*nbVisible;
+            int hOffset = s*nbHidden;
+            System.arraycopy(c, 0, dst, hOffset, nbHidden);
+            for (int v=0; v<nbVisible; v++) {
+                kernels.axpy(vis[vOffset+v]/eZ[v], w, v*nbHidden, dst, hOffset, nbHidden);
             }
-            b[v] += eps * (pB[v]-nB[v]);
-            z[v] += eps * exp(-z[v])*(pZ[v]-nZ[v]);
+            FastSigmoid.apply(dst, hOffset, nbHidden);
         }
-        for (int h=0; h<nbHidden; h++) {
-            c[h] += eps * (pC[h]-nC[h]);
+    }
+    
+    /**
+     * @param v visible unit
+     * @param hid hidden values
+     * @param offset position of the hidden values in hid
+     * @return the bias of v plus the weighted sum of the hidden values
+     */
+    private float visibleSum(int v, float[] hid, int offset) {
+        return Kernels.get().dot(b[v], w, v*nbHidden, hid, offset, nbHidden);
+    }
+    
+    /**
+     * Samples binary states.
+     * @param p probabilities
+     * @param dst destination of the states
+     * @param length number of states to sample
+     * @param rand random numbers generator
+     */
+    private static void sample(float[] p, float[] dst, int length, SplittableRandom rand) {
+        for (int i=0; i<length; i++) {
+            dst[i] = (rand.nextDouble()<p[i]) ? 1 : 0;
         }
     }
     
@@ -292,16 +430,25 @@ public class BasicGBRBM implements Serializable {
      * Updates the hidden units.
      */
     public void updateHidden() {
+        SplittableRandom rand = Rng.get();
         for (int v=0; v<nbVisible; v++) {
             eZ[v] = (float)exp(z[v]);
         }
-        for (int h=0; h<nbHidden; h++) {
-            float sum = c[h];
-            for (int v=0; v<nbVisible; v++) {
-                sum += visible[v]*w[v][h]/eZ[v];
+        if (hiddenSum==null) {
+            hiddenSum = new float[nbHidden];
+        }
+        float[] sum = hiddenSum;
+        System.arraycopy(c, 0, sum, 0, nbHidden);
+        for (int v=0; v<nbVisible; v++) {
+            float x = visible[v]/eZ[v];
+            int offset = v*nbHidden;
+            for (int h=0; h<nbHidden; h++) {
+                sum[h] += x*w[offset+h];
             }
-            float p = sigmoid(sum);
-            hidden[h] = (random()<p) ? 1 : 0;
+        }
+        for (int h=0; h<nbHidden; h++) {
+            float p = sigmoid(sum[h]);
+            hidden[h] = (rand.nextDouble()<p) ? 1 : 0;
         }
     }
     
@@ -311,7 +458,7 @@ public class BasicGBRBM implements Serializable {
      * @return the sigmoid of x
      */
     public float sigmoid(float x) {
-        return 1.0f / (1.0f+(float)exp(-x));
+        return FastSigmoid.get(x);
     }
     
     /**
@@ -320,14 +467,12 @@ public class BasicGBRBM implements Serializable {
      */
     public float updateVisible() {
         float diff = 0;
+        SplittableRandom rand = Rng.get();
         for (int v=0; v<nbVisible; v++) {
-            float sum = b[v];
-            for (int h=0; h<nbHidden; h++) {
-                sum += hidden[h]*w[v][h];
-            }
-            float sign = (random()<0.5) ? -1.0f : 1.0f;
+            float sum = visibleSum(v);
+            float sign = (rand.nextDouble()<0.5) ? -1.0f : 1.0f;
             float s = (float)exp(z[v]);
-            float vis = b[v] + sum + sign*(float)sqrt(-2*s*log(random()));
+            float vis = b[v] + sum + sign*(float)sqrt(-2*s*log(rand.nextDouble()));
             diff += abs(vis-visible[v]);
             visible[v] = vis;
         }
@@ -340,12 +485,23 @@ public class BasicGBRBM implements Serializable {
      */
     public void decode() {
         for (int v=0; v<nbVisible; v++) {
-            float sum = b[v];
-            for (int h=0; h<nbHidden; h++) {
-                sum += hidden[h]*w[v][h];
+            visible[v] = b[v] + visibleSum(v);
+        }
+    }
+    
+    /**
+     * @param v visible unit
+     * @return the bias of v plus the weighted sum of the hidden units
+     */
+    private float visibleSum(int v) {
+        float sum = b[v];
+        int offset = v*nbHidden;
+        for (int h=0; h<nbHidden; h++) {
+            if (hidden[h]!=0) {
+                sum += w[offset+h];
             }
-            visible[v] = b[v] + sum;
         }
+        return sum;
     }
     
     /**
@@ -384,11 +540,45 @@ public class BasicGBRBM implements Serializable {
         for (int v=0; v<nbVisible; v++) {
             sb.append(String.format("V-%d     %8.5f", v, b[v]));
             for (int h=0; h<nbHidden; h++) {
-                sb.append(String.format(" %8.5f", w[v][h]));
+                sb.append(String.format(" %8.5f", w[v*nbHidden+h]));
             }
             sb.append("\n");
         }
         
         return sb.toString();
     }
+
+    /**
+     * Deserializes the RBM. The older versions stored the weights in a
+     * float[nbVisible][nbHidden] array, they are converted.
+     * @param in input stream
+     * @throws IOException if the RBM cannot be read
+     * @throws ClassNotFoundException if the stream is not valid
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        nbVisible  = fields.get("nbVisible", 0);
+        nbHidden   = fields.get("nbHidden", 0);
+        visible    = (float[]) fields.get("visible", null);
+        hidden     = (int[]) fields.get("hidden", null);
+        b          = (float[]) fields.get("b", null);
+        c          = (float[]) fields.get("c", null);
+        z          = (float[]) fields.get("z", null);
+        eZ         = (float[]) fields.get("eZ", null);
+        eps        = fields.get("eps", 1e-4f);
+        batchSize  = fields.get("batchSize", 1);
+        cdSteps    = fields.get("cdSteps", 3);
+        persistent = fields.get("persistent", false);
+        
+        Object ow = fields.get("w", null);
+        if (ow instanceof float[][]) {
+            float[][] old = (float[][]) ow;
+            w = new float[nbVisible*nbHidden];
+            for (int v=0; v<nbVisible; v++) {
+                System.arraycopy(old[v], 0, w, v*nbHidden, nbHidden);
+            }
+        } else {
+            w = (float[]) ow;
+        }
+    }
 }
@@ -0,0 +1,88 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.ml.rbm;
+
+/**
+ * Tabulated sigmoid function, used by the RBMs for computing the
+ * probabilities of their units without calling Math.exp for each of them.
+ * The table is linearly interpolated, the absolute error is below 1e-6.
+ * @author Mathias Seuret
+ */
+final class FastSigmoid {
+    /**
+     * Beyond this absolute value, the sigmoid is considered as saturated.
+     */
+    private static final float RANGE = 16;
+    /**
+     * Number of table entries per unit.
+     */
+    private static final int RESOLUTION = 256;
+    /**
+     * Values of the sigmoid between -RANGE and +RANGE.
+     */
+    private static final float[] TABLE = new float[(int) (2 * RANGE * RESOLUTION) + 1];
+
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            double x = (double) i / RESOLUTION - RANGE;
+            TABLE[i] = (float) (1 / (1 + Math.exp(-x)));
+        }
+    }
+
+    private FastSigmoid() {
+        // Only static methods
+    }
+
+    /**
+     * @param x value
+     * @return an approximation of the sigmoid of x
+     */
+    static float get(float x) {
+        float t = (x + RANGE) * RESOLUTION;
+        if (t <= 0) {
+            return TABLE[0];
+        }
+        if (t >= TABLE.length - 1) {
+            return TABLE[TABLE.length - 1];
+        }
+        int i = (int) t;
+        float f = t - i;
+        return TABLE[i] + f * (TABLE[i + 1] - TABLE[i]);
+    }
+
+    /**
+     * Replaces the values of an array by their sigmoid.
+     * @param a array
+     * @param offset first value
+     * @param n number of values
+     */
+    static void apply(float[] a, int offset, int n) {
+        for (int i = offset; i < offset + n; i++) {
+            a[i] = get(a[i]);
+        }
+    }
+}
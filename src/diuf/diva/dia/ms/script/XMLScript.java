@@ -31,7 +31,10 @@ import diuf.diva.dia.ms.ml.ae.scae.SCAE;
 import diuf.diva.dia.ms.script.command.*;
 import diuf.diva.dia.ms.util.Dataset;
 import diuf.diva.dia.ms.util.Image;
+import diuf.diva.dia.ms.util.Metrics;
 import diuf.diva.dia.ms.util.NoisyDataset;
+import diuf.diva.dia.ms.util.Parallel;
+import diuf.diva.dia.ms.util.Rng;
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
@@ -92,6 +95,11 @@ public class XMLScript {
      */
     public final HashMap<String, Classifier> classifiers = new HashMap<>();
     
+    /**
+     * File in which the metrics are saved at the end of the script, or null.
+     */
+    private String metricsFile = null;
+    
     /**
      * Constructs an XML script.
      * @param fname file name from which to read the XML file
@@ -103,6 +111,9 @@ public class XMLScript {
         Document xml = builder.build(new File(fname));
         root = xml.getRootElement();
         readColorspace();
+        readThreads();
+        readSeed();
+        readMetrics();
         prepareCommands();
     }
     
@@ -188,6 +199,64 @@ public class XMLScript {
         }
     }
     
+    /**
+     * Loads from the XML the number of threads used for parallel
+     * computations, if it is specified.
+     */
+    private void readThreads() {
+        String t = root.getAttributeValue("threads");
+        if (t==null) {
+            return;
+        }
+        try {
+            Parallel.setNbThreads(Integer.parseInt(t.trim()));
+        } catch (IllegalArgumentException e) {
+            throw new Error(
+                    "Invalid number of threads: "+t
+            );
+        }
+    }
+    
+    /**
+     * Loads from the XML the seed of the random numbers generators, if it
+     * is specified.
+     */
+    private void readSeed() {
+        String s = root.getAttributeValue("seed");
+        if (s==null) {
+            return;
+        }
+        try {
+            Rng.setSeed(Long.parseLong(s.trim()));
+        } catch (NumberFormatException e) {
+            throw new Error(
+                    "Invalid seed: "+s
+            );
+        }
+    }
+    
+    /**
+     * Loads from the XML whether the timing metrics have to be collected, and
+     * in which file they have to be saved, if it is specified. Giving a file
+     * enables the metrics.
+     */
+    private void readMetrics() {
+        String m = root.getAttributeValue("metrics");
+        metricsFile = root.getAttributeValue("metrics-file");
+        boolean enabled = metricsFile!=null;
+        if (m!=null) {
+            m = m.trim();
+            if (!m.equals("true") && !m.equals("false")) {
+                throw new Error(
+                        "Invalid metrics value: "+m
+                );
+            }
+            enabled |= m.equals("true");
+        }
+        Metrics.reset();
+        Metrics.setEnabled(enabled);
+    }
+    
     /**
      * Runs the script.
      * @return the output of the last command
@@ -195,19 +264,35 @@ public class XMLScript {
      */
     public String execute() throws Exception {
         String res = "";
-        for (Element e : root.getChildren()) {
-            String name = e.getName();
-            AbstractCommand cmd = commands.get(name);
-            if (cmd==null) {
-                throw new Error(
-                        "Cannot find command "+name
-                );
+        try {
+            for (Element e : root.getChildren()) {
+                String name = e.getName();
+                AbstractCommand cmd = commands.get(name);
+                if (cmd==null) {
+                    throw new Error(
+                            "Cannot find command "+name
+                    );
+                }
+                long t = Metrics.start();
+                String cmdRes;
+                try {
+                    cmdRes = cmd.execute(e);
+                } finally {
+                    Metrics.stop("command."+name, t);
+                }
+                if (res.equals("") || !cmdRes.equals("")) {
+                    res = cmdRes;
+                }
+                definitions.put("$ANS", String.valueOf(res));
             }
-            String cmdRes = cmd.execute(e);
-            if (res.equals("") || !cmdRes.equals("")) {
-                res = cmdRes;
+        } finally {
+            // The metrics are also reported when a command fails
+            if (Metrics.isEnabled()) {
+                System.out.println(Metrics.summary());
+                if (metricsFile!=null) {
+                    Metrics.save(metricsFile);
+                }
             }
-            definitions.put("$ANS", String.valueOf(res));
         }
         return res;
     }
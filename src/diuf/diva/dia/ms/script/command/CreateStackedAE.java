@@ -29,10 +29,20 @@ package diuf.diva.dia.ms.script.command;
 import diuf.diva.dia.ms.ml.ae.*;
 import diuf.diva.dia.ms.ml.ae.scae.SCAE;
 import diuf.diva.dia.ms.script.XMLScript;
+import diuf.diva.dia.ms.util.PCA;
 import org.jdom2.Element;
 
 /**
  * Creates an SCAE. Described in the doc.
+ * <p>
+ * The RBM units (BasicBBRBM and BasicGBRBM) also accept the optional tags
+ * batch (number of samples per mini-batch, 1 by default), cd-steps (number of
+ * Gibbs steps, 1 for BasicBBRBM and 3 for BasicGBRBM by default) and the empty
+ * tag persistent, which selects the persistent contrastive divergence.
+ * <p>
+ * The PCA unit accepts the optional tag solver: eigen (default) computes all
+ * components, randomized only computes the requested ones with a randomized
+ * subspace iteration, which is much faster for large patches.
  * @author Mathias Seuret, Michele Alberti
  */
 public class CreateStackedAE extends AbstractCommand {
@@ -110,22 +120,34 @@ public class CreateStackedAE extends AbstractCommand {
         
         if (type.equalsIgnoreCase("BasicBBRBM")) {
             int hidden = Integer.parseInt(readElement(unitEl, "hidden"));
-            unit = new BBRBMUnit(
+            BBRBMUnit rbm = new BBRBMUnit(
                     width,
                     height,
                     inputDepth,
                     hidden
             );
+            rbm.setTraining(
+                    readInt(unitEl, "batch", 1),
+                    readInt(unitEl, "cd-steps", 1),
+                    unitEl.getChild("persistent") != null
+            );
+            unit = rbm;
         }
         
         if (type.equalsIgnoreCase("BasicGBRBM")) {
             int hidden = Integer.parseInt(readElement(unitEl, "hidden"));
-            unit = new GBRBMUnit(
+            GBRBMUnit rbm = new GBRBMUnit(
                     width,
                     height,
                     inputDepth,
                     hidden
             );
+            rbm.setTraining(
+                    readInt(unitEl, "batch", 1),
+                    readInt(unitEl, "cd-steps", 3),
+                    unitEl.getChild("persistent") != null
+            );
+            unit = rbm;
         }
         
         if (type.equalsIgnoreCase("Binarization")) {
@@ -162,13 +184,24 @@ public class CreateStackedAE extends AbstractCommand {
             String layerClassName = readElement(unitEl, "layer");
 
             // Create the unit with specified parameters
-            unit = new PCAAutoEncoder(
+            PCAAutoEncoder pca = new PCAAutoEncoder(
                     width,
                     height,
                     inputDepth,
                     dim,
                     layerClassName
             );
+
+            // Parse the optional 'solver' text
+            if (unitEl.getChild("solver") != null) {
+                String solver = readElement(unitEl, "solver");
+                try {
+                    pca.setSolver(PCA.Solver.valueOf(solver.trim().toUpperCase()));
+                } catch (IllegalArgumentException e) {
+                    error("unknown PCA solver: " + solver + ", use eigen or randomized");
+                }
+            }
+            unit = pca;
         }
 
         if (type.equalsIgnoreCase("KMeans")) {
@@ -185,6 +218,18 @@ public class CreateStackedAE extends AbstractCommand {
         return "";
     }
     
+    /**
+     * Reads an optional integer child of an element.
+     * @param e the element
+     * @param name name of the child
+     * @param def value if the child is missing
+     * @return the value
+     */
+    private int readInt(Element e, String name, int def) {
+        Element c = e.getChild(name);
+        return (c==null) ? def : Integer.parseInt(readElement(c).trim());
+    }
+    
     protected String readId(Element e) {
         return readAttribute(e, "id");
     }
@@ -30,6 +30,7 @@ import diuf.diva.dia.ms.ml.Classifier;
 import diuf.diva.dia.ms.script.XMLScript;
 import diuf.diva.dia.ms.util.DataBlock;
 import diuf.diva.dia.ms.util.Dataset;
+import diuf.diva.dia.ms.util.Parallel;
 import org.jdom2.Element;
 
 import javax.imageio.ImageIO;
@@ -37,7 +38,10 @@ import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.IntConsumer;
 
 /**
  * Evaluates the classification accuracy and stores the classification result.
@@ -50,8 +54,18 @@ import java.util.Arrays;
  *      <offset-y>int</offset-y>                                // Not all pixel are going to be evaluated, this specifies the y-offset
  *      <method>enum(single-class,multiple-classes)</method>    // Specifies whether the error should be computed single or multi class*
  *      <output-folder>stringPATH</output-folder>               // Path of the output folder
+ *      <dense/>                                                // Optional, computes the features once for the whole page
+ *      <parallel/>                                             // Optional, evaluates several images at the same time
  *  </evaluate-classifier>
  *
+ * With the dense option, classifiers whose windows share their features (e.g., the AEClassifier)
+ * compute the feature maps of each image only once instead of recomputing them for every
+ * evaluated pixel. The results are the same, but it requires more memory.
+ *
+ * With the parallel option, the images are evaluated concurrently by replicas of the classifier
+ * sharing its weights. The scores of the images are summed in the order of the dataset, so the
+ * reported values are the same as with a sequential evaluation.
+ *
  * @author Mathias Seuret, Michele Alberti
  */
 public class EvaluateClassifier extends AbstractCommand {
@@ -127,26 +141,63 @@ public class EvaluateClassifier extends AbstractCommand {
             error(outPath + " is not a folder");
         }
 
+        // Dense evaluation
+        boolean dense = element.getChild("dense") != null;
+
+        // Parallel evaluation
+        boolean parallel = element.getChild("parallel") != null;
+
         // Starting
         script.println("Start evaluating classifier: " + classifier.name());
+        if (dense && !classifier.setDenseInput(null)) {
+            script.println("The classifier does not support dense evaluation, evaluating each pixel separately");
+            dense = false;
+        }
 
-        float[] cumulatedError = {0, 0};
-        for (int i = 0; i < ds.size(); i++) {
-
-            switch (et) {
-                case SINGLE_CLASS:
-                    float e = getSingleClassError(ds.get(i), gt.get(i), classifier, offsetX, offsetY, outPath + "/" + classifier.name() + "-" + i);
-                    script.println("Classified image " + (i + 1) + "/" + ds.size() + " : ACC=" + String.format("%.3f", e));
-                    cumulatedError[0] += e;
-                    break;
-
-                case MULTIPLE_CLASSES:
-                    script.print("Classified image " + (i + 1) + "/" + ds.size() + " :");
-                    float[] rv = getMultipleClassesError(ds.get(i), gt.get(i), classifier, offsetX, offsetY, outPath + "/" + classifier.name() + "-" + i);
-                    cumulatedError[0] += rv[0];
-                    cumulatedError[1] += rv[1];
-                    break;
+        // Classifiers which are not used by an image, replicas are created when needed
+        ConcurrentLinkedQueue<Classifier> pool = new ConcurrentLinkedQueue<>();
+        if (parallel) {
+            try {
+                pool.add(classifier.replicate());
+            } catch (CloneNotSupportedException e) {
+                script.println("The classifier cannot be replicated, evaluating the images sequentially");
+                parallel = false;
+            }
+        }
+        if (!parallel) {
+            pool.add(classifier);
+        }
+
+        // Scores of each image, they are summed in the order of the dataset at the end
+        float[][] scores = new float[ds.size()][];
+        final boolean isDense = dense;
+        final ErrorType type = et;
+        IntConsumer task = i -> {
+            Classifier c = pool.poll();
+            if (c == null) {
+                c = replicate(classifier);
             }
+            try {
+                scores[i] = evaluate(c, ds.get(i), gt.get(i), i, ds.size(), type, isDense, offsetX, offsetY, outPath + "/" + classifier.name() + "-" + i);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                pool.add(c);
+            }
+        };
+
+        if (parallel) {
+            Parallel.forEach(ds.size(), task);
+        } else {
+            for (int i = 0; i < ds.size(); i++) {
+                task.accept(i);
+            }
+        }
+
+        float[] cumulatedError = {0, 0};
+        for (float[] score : scores) {
+            cumulatedError[0] += score[0];
+            cumulatedError[1] += score[1];
         }
 
         // Print results over all images
@@ -162,6 +213,62 @@ public class EvaluateClassifier extends AbstractCommand {
         return String.valueOf(cumulatedError[0] / ds.size());
     }
 
+    /**
+     * Evaluates the classifier on one image and prints the result.
+     *
+     * @param classifier the classifier, or a replica of it, not used by another thread
+     * @param img        the image
+     * @param gt         the ground truth for the image
+     * @param n          number of the image
+     * @param nbImages   number of images in the dataset
+     * @param et         type of evaluation
+     * @param dense      true if the classifier should compute dense features
+     * @param ox         the X-axis offset, see getSingleClassError()
+     * @param oy         the Y-axis offset, see getSingleClassError()
+     * @param out        path of the output file(s), without extension
+     * @return ACC and 0 for the single class evaluation, PRE and REC for the multiple classes evaluation
+     * @throws IOException if the output images cannot be written
+     */
+    private float[] evaluate(Classifier classifier, DataBlock img, DataBlock gt, int n, int nbImages, ErrorType et, boolean dense, int ox, int oy, String out) throws IOException {
+        if (dense) {
+            classifier.setDenseInput(img);
+        }
+
+        float[] rv = {0, 0};
+        switch (et) {
+            case SINGLE_CLASS:
+                rv[0] = getSingleClassError(img, gt, classifier, ox, oy, out);
+                script.println("Classified image " + (n + 1) + "/" + nbImages + " : ACC=" + String.format("%.3f", rv[0]));
+                break;
+
+            case MULTIPLE_CLASSES:
+                rv = getMultipleClassesError(img, gt, classifier, ox, oy, out, "Classified image " + (n + 1) + "/" + nbImages + " :");
+                break;
+        }
+
+        if (dense) {
+            classifier.setDenseInput(null);
+        }
+        return rv;
+    }
+
+    /**
+     * Creates a replica of the classifier. The replicas are made one at a time,
+     * as replicating may modify the input of the classifier.
+     *
+     * @param classifier the classifier
+     * @return a replica
+     */
+    private static Classifier replicate(Classifier classifier) {
+        synchronized (classifier) {
+            try {
+                return classifier.replicate();
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException("could not replicate " + classifier.name(), e);
+            }
+        }
+    }
+
     /**
      * This methods evaluates the classifier expecting single classes prediction. The cumulated error is computed as
      * sum of all misclassified evaluation. Every mistake count as 1. Optimally the output result image is fully green
@@ -206,7 +313,7 @@ public class EvaluateClassifier extends AbstractCommand {
                 classifier.compute();
 
                 // Take the correct classification value from GT
-                int correctClass = Math.round((gt.getValues(x, y)[index] + 1) * 255.0f / 2.0f);
+                int correctClass = Math.round((gt.getValue(index, x, y) + 1) * 255.0f / 2.0f);
 
                 // Taking output class
                 int outputClass = classifier.getOutputClass(false);
@@ -256,10 +363,11 @@ public class EvaluateClassifier extends AbstractCommand {
      *                   single pixel is going to be evaluated.
      * @param oy         the Y-axis offset. See ox for details.
      * @param out        path of the output file (which corresponds to a colored img with right/wrong classified pixels)
+     * @param prefix     text printed before the results, on the same line
      * @return ratio of corrected prediction over total evaluation
      * @throws IOException possible since it's writing a file on disk
      */
-    private float[] getMultipleClassesError(DataBlock img, DataBlock gt, Classifier classifier, int ox, int oy, String out) throws IOException {
+    private float[] getMultipleClassesError(DataBlock img, DataBlock gt, Classifier classifier, int ox, int oy, String out, String prefix) throws IOException {
         int patchSizeX = classifier.getInputWidth();
         int patchSizeY = classifier.getInputHeight();
         int nbClasses = classifier.getOutputSize();
@@ -293,7 +401,7 @@ public class EvaluateClassifier extends AbstractCommand {
                 classifier.compute();
 
                 // Take the correct classification value from GT
-                int correctClass = Math.round((gt.getValues(x, y)[index] + 1) * 255 / 2.0f);
+                int correctClass = Math.round((gt.getValue(index, x, y) + 1) * 255 / 2.0f);
                 // Convert int to bit-wise indicator. Example: 3(0011) -> 4th(1000)
                 correctClass = 0x01 << correctClass;
 
@@ -383,7 +491,8 @@ public class EvaluateClassifier extends AbstractCommand {
             s.append(" ]");
         }
 
-        System.out.println(s.toString());
+        // Printed at once, as several images can be evaluated at the same time
+        script.println(prefix + s.toString());
 
         return new float[]{precision[0], recall[0]};
 
@@ -30,7 +30,10 @@ import diuf.diva.dia.ms.script.XMLScript;
 import diuf.diva.dia.ms.util.BiDataBlock;
 import diuf.diva.dia.ms.util.Dataset;
 import diuf.diva.dia.ms.util.Image;
+import diuf.diva.dia.ms.util.LazyDataset;
+import diuf.diva.dia.ms.util.Metrics;
 import diuf.diva.dia.ms.util.NoisyDataset;
+import diuf.diva.dia.ms.util.Rng;
 import org.jdom2.Element;
 
 import javax.imageio.ImageIO;
@@ -39,9 +42,22 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.SplittableRandom;
 
 /**
  * This class loads a dataset and stores it in memory
+ * <p>
+ * XML syntax to use this feature:
+ *
+ * <load-dataset id="stringID">
+ * <folder>stringPATH</folder>
+ * <size-limit>int</size-limit>              // 0 for no limit
+ * <cache-size>int</cache-size>              // optional: in megabytes
+ * </load-dataset>
+ *
+ * With a cache size, only the paths of the images are stored and the images
+ * are loaded when they are used, the least recently used ones being dropped
+ * when the cache is full.
  *
  * @author Mathias Seuret, Michele Alberti
  */
@@ -85,7 +101,16 @@ public class LoadDataset extends AbstractCommand {
             limit = Integer.MAX_VALUE;
         }
         
-        Dataset ds = new Dataset(folder, script.colorspace, limit);
+        Dataset ds;
+        if (element.getChild("cache-size") != null) {
+            long cacheSize = Long.parseLong(readElement(element, "cache-size"));
+            if (cacheSize < 0) {
+                error("the cache size cannot be negative, got " + cacheSize);
+            }
+            ds = new LazyDataset(folder, script.colorspace, limit, cacheSize * 1024 * 1024);
+        } else {
+            ds = new Dataset(folder, script.colorspace, limit);
+        }
         
         script.datasets.put(id, ds);
         
@@ -96,6 +121,9 @@ public class LoadDataset extends AbstractCommand {
         if (script.colorspace!=Image.Colorspace.RGB) {
             throw new Error("<buffered/> allowed only when the RGB colorspace is used");
         }
+        if (element.getChild("cache-size") != null) {
+            error("<cache-size> cannot be used with <buffered/>");
+        }
         
         String id     = readAttribute(element, "id");
         String folder = readElement(element, "folder");
@@ -106,8 +134,9 @@ public class LoadDataset extends AbstractCommand {
         
         File ff = new File(folder);
         String[] lst = ff.list();
+        SplittableRandom rand = Rng.get();
         for (int i=0; i<lst.length; i++) {
-            int j = (int)(Math.random()*lst.length);
+            int j = rand.nextInt(lst.length);
             String s = lst[i];
             lst[i] = lst[j];
             lst[j] = s;
@@ -129,6 +158,7 @@ public class LoadDataset extends AbstractCommand {
                 continue;
             }
             script.println("Loading " + folder + File.separator + lst[i]);
+            long t = Metrics.start();
             BufferedImage bi = ImageIO.read(
                     new File(
                             folder+File.separator+lst[i]
@@ -138,6 +168,7 @@ public class LoadDataset extends AbstractCommand {
                 BufferedImage b = resize(bi, aScale);
                 ds.add(new BiDataBlock(b));
             }
+            Metrics.stop("dataset.load-image", t);
         }
         
         script.datasets.put(id, ds);
@@ -26,15 +26,19 @@
 
 package diuf.diva.dia.ms.script.command;
 
+import diuf.diva.dia.ms.ml.ae.scae.Recoder;
 import diuf.diva.dia.ms.ml.ae.scae.SCAE;
 import diuf.diva.dia.ms.script.XMLScript;
 import diuf.diva.dia.ms.util.DataBlock;
 import diuf.diva.dia.ms.util.Dataset;
 import diuf.diva.dia.ms.util.Image;
+import diuf.diva.dia.ms.util.Parallel;
 import org.jdom2.Element;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -91,23 +95,19 @@ public class Recode extends AbstractCommand {
 
         script.println("SCAE Starting recoding {offset:" + offsetX + "," + offsetY + "}");
 
-        for (int n=0; n<ds.size(); n++) {
-            DataBlock db = ds.get(n);
-            DataBlock res = new DataBlock(db.getWidth(), db.getHeight(), db.getDepth());
-
-            for (int x = 0; x < db.getWidth() - scae.getInputPatchWidth(); x += offsetX) {
-                for (int y = 0; y < db.getHeight() - scae.getInputPatchHeight(); y += offsetY) {
-                    scae.setInput(db, x, y);
-                    scae.forward();
-                    scae.setInput(res, x, y);
-                    scae.backward();
-                }
-            }
-            
-            res.normalizeWeights();
+        // Pages are recoded concurrently, and each one is written as soon as it is done
+        Recoder recoder = new Recoder(scae, offsetX, offsetY);
+        AtomicInteger done = new AtomicInteger();
+        Parallel.forEach(ds.size(), n -> {
+            DataBlock res = recoder.recode(ds.get(n));
             res.setColorspace(script.colorspace);
-            res.getImage().write(dst+"/"+n+".png");
-        }
+            try {
+                res.getImage().write(dst + "/" + n + ".png");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            script.println("Recoded " + done.incrementAndGet() + "/" + ds.size());
+        });
         
         return "";
     }
@@ -118,17 +118,7 @@ public class Recode extends AbstractCommand {
     }
 
     public static DataBlock recode(SCAE scae, DataBlock db, Image.Colorspace colorspace) {
-        DataBlock res = new DataBlock(db.getWidth(), db.getHeight(), db.getDepth());
-        for (int x = 0; x <= db.getWidth() - scae.getInputPatchWidth(); x += scae.getInputPatchWidth()) {
-            for (int y = 0; y <= db.getHeight() - scae.getInputPatchHeight(); y += scae.getInputPatchHeight()) {
-                scae.setInput(db, x, y);
-                scae.forward();
-                scae.setInput(res, x, y);
-                scae.backward();
-            }
-        }
-
-        res.normalizeWeights();
+        DataBlock res = new Recoder(scae).recode(db);
         res.setColorspace(colorspace);
         return res;
     }
@@ -151,17 +141,7 @@ public class Recode extends AbstractCommand {
         img.convertTo(script.colorspace);
         DataBlock db = new DataBlock(img);
         
-        DataBlock res = new DataBlock(db.getWidth(), db.getHeight(), db.getDepth());
-        for (int x = 0; x <= db.getWidth() - scae.getInputPatchWidth(); x += scae.getInputPatchWidth()) {
-            for (int y = 0; y <= db.getHeight() - scae.getInputPatchHeight(); y += scae.getInputPatchHeight()) {
-                scae.setInput(db, x, y);
-                scae.forward();
-                scae.setInput(res, x, y);
-                scae.backward();
-            }
-        }
-
-        res.normalizeWeights();
+        DataBlock res = new Recoder(scae).recode(db);
         res.setColorspace(script.colorspace);
         res.getImage().write(dst);
         
@@ -31,16 +31,20 @@
  */
 package diuf.diva.dia.ms.script.command;
 
+import diuf.diva.dia.ms.ml.ae.scae.DenseSCAE;
 import diuf.diva.dia.ms.ml.ae.scae.SCAE;
 import diuf.diva.dia.ms.script.XMLScript;
 import diuf.diva.dia.ms.util.DataBlock;
 import diuf.diva.dia.ms.util.Image;
+import diuf.diva.dia.ms.util.Parallel;
 import org.jdom2.Element;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
 /**
  *
@@ -59,38 +63,45 @@ public class ShowFeatureActivations extends AbstractCommand {
         String res = readElement(element, "result");
 
         SCAE scae = script.scae.get(ref);
+        if (scae == null) {
+            error("cannot find SCAE " + ref);
+        }
         Image img = new Image(doc);
         img.convertTo(script.colorspace);
         DataBlock idb = new DataBlock(img);
-        
-        BufferedImage bi = new BufferedImage(idb.getWidth(), idb.getHeight(), BufferedImage.TYPE_INT_RGB);
+
+        // All features are computed in a single dense pass, the map of the
+        // top stage at (x,y) holds the SCAE's output when its input is at (x,y)
+        int top = scae.getLayers().size() - 1;
+        DenseSCAE dense = new DenseSCAE(scae, idb);
+        int w = idb.getWidth() - scae.getInputPatchWidth();
+        int h = idb.getHeight() - scae.getInputPatchHeight();
+        for (int x = 0; x < w; x++) {
+            for (int y = 0; y < h; y++) {
+                dense.compute(top, x, y);
+            }
+        }
+        dense.release();
+        DataBlock activations = dense.getFeatureMap(top);
+        script.println("Feature activations computed, writing " + scae.getOutputDepth() + " images");
 
         int dx = scae.getInputPatchWidth() / 2;
         int dy = scae.getInputPatchHeight() / 2;
-        for (int i=0; i<scae.getOutputDepth(); i++) {
-            float min = Float.MAX_VALUE;
-            float max = Float.MIN_VALUE;
-            for (int x = 0; x < idb.getWidth() - scae.getInputPatchWidth(); x++) {
-                int mm = bi.getWidth() - scae.getInputPatchWidth();
-                System.out.println(i+"/"+scae.getOutputDepth()+": "+(float)x/mm*100+"%");
-                for (int y = 0; y < idb.getHeight() - scae.getInputPatchHeight(); y++) {
-                    scae.setInput(idb, x, y);
-                    float act = scae.forward()[i];
+        Parallel.forEach(scae.getOutputDepth(), i -> {
+            BufferedImage bi = new BufferedImage(idb.getWidth(), idb.getHeight(), BufferedImage.TYPE_INT_RGB);
+            for (int x = 0; x < w; x++) {
+                for (int y = 0; y < h; y++) {
+                    float act = activations.getValue(i, x, y);
                     float hue = (act+1)/2 * 0.4f; // Hue (note 0.4 = Green, see huge chart below)
                     bi.setRGB(x+dx, y+dy, Color.getHSBColor(hue, 0.9f, 0.9f).getRGB());
-                    
-                    if (act<min) {
-                        min = act;
-                    }
-                    if (act>max) {
-                        max = act;
-                    }
                 }
             }
-            ImageIO.write(bi, "png", new File(res+"-"+i+".png"));
-            //System.out.println("Reconstruction range: ["+min+", "+max+"]");
-            //System.out.println("Class: "+scae.getLayer(scae.getLayers().size()-1).getAE().getClass().getSimpleName());
-        }
+            try {
+                ImageIO.write(bi, "png", new File(res+"-"+i+".png"));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
         
         return "";
     }
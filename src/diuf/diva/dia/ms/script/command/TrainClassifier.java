@@ -27,9 +27,13 @@
 package diuf.diva.dia.ms.script.command;
 
 import diuf.diva.dia.ms.ml.Classifier;
+import diuf.diva.dia.ms.ml.ae.ffcnn.FFCNN;
+import diuf.diva.dia.ms.ml.ae.ffcnn.ParallelTrainer;
 import diuf.diva.dia.ms.script.XMLScript;
 import diuf.diva.dia.ms.util.DataBlock;
 import diuf.diva.dia.ms.util.Dataset;
+import diuf.diva.dia.ms.util.Parallel;
+import diuf.diva.dia.ms.util.Rng;
 import diuf.diva.dia.ms.util.Tracer;
 import org.jdom2.Element;
 
@@ -62,13 +66,25 @@ public class TrainClassifier extends AbstractCommand {
      */
     private Tracer tracer;
     /**
-     * Size of the minibatch training
+     * Size of the minibatch training: number of samples whose gradients are
+     * accumulated before the weights are updated
      */
-    private final int BATCHSIZE = 1;
+    private int batchSize;
     /**
      * Number of layers to be trained from the top
      */
     private int nbLayers;
+    /**
+     * Trainer processing the mini-batches in parallel, null if the batches are processed sequentially
+     */
+    private ParallelTrainer trainer;
+    /**
+     * Samples of the current mini-batch, used only by the parallel trainer
+     */
+    private DataBlock[] batchImg;
+    private int[] batchX;
+    private int[] batchY;
+    private int[] batchClass;
 
     @Override
     public String execute(Element element) throws Exception {
@@ -83,6 +99,15 @@ public class TrainClassifier extends AbstractCommand {
             nbLayers = Integer.parseInt(readElement(element, "numLayers"));
         }
 
+        // Fetching the optional size of the mini-batches
+        batchSize = 1;
+        if (element.getChild("batch-size") != null) {
+            batchSize = Integer.parseInt(readElement(element, "batch-size"));
+            if (batchSize < 1) {
+                error("the batch size must be at least 1, got " + batchSize);
+            }
+        }
+
         // Fetching datasets
         String dataset = readElement(element, "dataset");
         String groundTruth = readElement(element, "groundTruth");
@@ -118,7 +143,7 @@ public class TrainClassifier extends AbstractCommand {
 
 
         // Train the classifier
-        script.println("\"SCAE Starting training[" + ref + "] {maximum time:" + MAXTIME + "m, samples:" + SAMPLES + "}");
+        script.println("\"SCAE Starting training[" + ref + "] {maximum time:" + MAXTIME + "m, samples:" + SAMPLES + ", batch size:" + batchSize + "}");
 
         long startTime = System.currentTimeMillis();
 
@@ -169,16 +194,25 @@ public class TrainClassifier extends AbstractCommand {
      * <groundTruth>stringID</groundTruth>   // ID of the ground truth data set
      * <samples>int</samples>
      * <max-time>int</max-time>
+     * <batch-size>int</batch-size>                         // optional: default 1
      * <display-progress>200</display-progress> 			// optional
      * <save-progress>stringPATH</save-progress> 			// optional: but make no sense if display progress is not there
      * </train-classifier>
      *
+     * With a batch size of n, the gradients of n samples are accumulated (summed, not averaged)
+     * and the weights are updated once per batch. The learning speed might thus have to be
+     * reduced accordingly.
+     *
+     * FFCNNs trained with mini-batches use all the threads of the script: the samples of
+     * a batch are processed in parallel by replicas of the FFCNN, see ParallelTrainer.
+     *
      * @param classifier the classifier which is going to be trained
      * @param dsImg      the dataset containing the images which will be used for training
      * @param dsGt       the dataset containing the ground truth for the provided dataset
      *                   is immediately interrupted and the result returned
+     * @throws CloneNotSupportedException if the classifier cannot be replicated for parallel training
      */
-    private void trainPixelBasedClassifiers(Classifier classifier, Dataset dsImg, Dataset dsGt) {
+    private void trainPixelBasedClassifiers(Classifier classifier, Dataset dsImg, Dataset dsGt) throws CloneNotSupportedException {
         long startTime = System.currentTimeMillis();
 
         // Counter that keeps track on how many samples have been already executed
@@ -197,6 +231,17 @@ public class TrainClassifier extends AbstractCommand {
         // Batch handling
         int batch = 0;
 
+        // Parallel training of the batches, when possible
+        trainer = null;
+        if (classifier instanceof FFCNN && batchSize > 1 && Parallel.getNbThreads() > 1) {
+            trainer = new ParallelTrainer((FFCNN) classifier);
+            batchImg = new DataBlock[batchSize];
+            batchX = new int[batchSize];
+            batchY = new int[batchSize];
+            batchClass = new int[batchSize];
+            script.println("Training the batches with " + trainer.getNbReplicas() + " replicas");
+        }
+
         // Verify input size for the whole dataset
         for (int i = 0; i < dsImg.size(); i++) {
             DataBlock img = dsImg.get(i);
@@ -249,34 +294,50 @@ public class TrainClassifier extends AbstractCommand {
                     }
                     
 
-                    // Set input to classifier
-                    classifier.centerInput(dsImg.get(i), p.x, p.y);
-
-                    // Forward
-                    classifier.compute();
-
-                    // Set the expected values to 0 for all outputs neurons and 1 for the correct class
-                    for (int j = 0; j < classifier.getOutputSize(); j++) {
-                        classifier.setExpected(j, (j == c) ? 1 : 0);
+                    if (trainer != null) {
+                        // Store the sample, the batch is processed at once
+                        batchImg[batch] = dsImg.get(i);
+                        batchX[batch] = p.x;
+                        batchY[batch] = p.y;
+                        batchClass[batch] = c;
+                    } else {
+                        // Set input to classifier
+                        classifier.centerInput(dsImg.get(i), p.x, p.y);
+
+                        // Forward
+                        classifier.compute();
+
+                        // Set the expected values to 0 for all outputs neurons and 1 for the correct class
+                        for (int j = 0; j < classifier.getOutputSize(); j++) {
+                            classifier.setExpected(j, (j == c) ? 1 : 0);
+                        }
+
+                        // Learning the classifier
+                        err += classifier.backPropagate(nbLayers);
                     }
 
-                    // Learning the classifier
-                    err += classifier.backPropagate(nbLayers);
-
                     // Increase counters
                     sample++;
                     epochSize++;
                     batch++;
 
                     // If is the end of the mini-batch
-                    if (batch >= BATCHSIZE) {
-                        batch = 0;
+                    if (batch >= batchSize) {
                         // Update weights
-                        classifier.learn(nbLayers);
+                        err += learnBatch(classifier, batch);
+                        batch = 0;
                     }
 
                     // Stop execution if MAXTIME reached
                     if (((int) (System.currentTimeMillis() - startTime) / 60000) >= MAXTIME) {
+                        // Apply the gradients of the incomplete mini-batch
+                        if (batch > 0) {
+                            err += learnBatch(classifier, batch);
+                        }
+                        if (tracer != null) {
+                            // Log the error of the interrupted epoch
+                            tracer.addPoint(sample, err / epochSize);
+                        }
                         // Complete the logging progress
                         System.out.println("]");
                         script.println("Maximum training time (" + MAXTIME + ") reached after " + epoch + " epochs");
@@ -285,6 +346,12 @@ public class TrainClassifier extends AbstractCommand {
                 }
             }
 
+            // Apply the gradients of the incomplete mini-batch at the end of the training
+            if (sample >= SAMPLES && batch > 0) {
+                err += learnBatch(classifier, batch);
+                batch = 0;
+            }
+
             if (tracer != null) {
                 // Log the error at each epoch
                 tracer.addPoint(sample, err / epochSize);
@@ -299,6 +366,23 @@ public class TrainClassifier extends AbstractCommand {
         System.out.println(" 100%]");
     }
 
+    /**
+     * Updates the weights at the end of a mini-batch. With the parallel trainer, the
+     * samples stored for the batch are computed and backpropagated first.
+     *
+     * @param classifier the classifier which is trained
+     * @param n          number of samples in the batch
+     * @return the error of the samples computed here, 0 if they have already been backpropagated
+     * @throws CloneNotSupportedException if the classifier cannot be replicated for parallel training
+     */
+    private double learnBatch(Classifier classifier, int n) throws CloneNotSupportedException {
+        if (trainer != null) {
+            return trainer.train(batchImg, batchX, batchY, batchClass, n, nbLayers);
+        }
+        classifier.learn(nbLayers);
+        return 0;
+    }
+
     @Override
     public String tagName() {
         return "train-classifier";
@@ -340,7 +424,7 @@ public class TrainClassifier extends AbstractCommand {
             int index = gt.getDepth()-1;
             for (int x = classifier.getInputWidth() / 2; x <= gt.getWidth() - classifier.getInputWidth(); x++) {
                 for (int y = classifier.getInputHeight() / 2; y <= gt.getHeight() - classifier.getInputHeight(); y++) {
-                    int correctClass = Math.round((gt.getValues(x, y)[index] + 1) * 255 / 2.0f);
+                    int correctClass = Math.round((gt.getValue(index, x, y) + 1) * 255 / 2.0f);
                     if (!data.containsKey(correctClass)) {
                         data.put(correctClass, new ArrayList<>());
                     }
@@ -393,7 +477,7 @@ public class TrainClassifier extends AbstractCommand {
          * @return the next pixel on the list
          */
         public Pixel getRandomRepresentative(int c) {
-            return (data.get(c) != null) ? data.get(c).get((int) (Math.random() * data.get(c).size())) : null;
+            return (data.get(c) != null) ? data.get(c).get(Rng.get().nextInt(data.get(c).size())) : null;
         }
 
         @Override
@@ -33,7 +33,7 @@ import org.jdom2.Element;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Random;
+import java.util.SplittableRandom;
 
 /**
  * Trains an autoencoder or a denoising autoencoder. It allows to display and save on file a plot of the training
@@ -45,12 +45,25 @@ import java.util.Random;
  *      <dataset>ds</dataset>
  *      <samples>SAMPLES</samples>
  *      <max-time>MAXTIME</max-time>
+ *      <prefetch threads="1">64</prefetch>                // optional
+ *      <asynchronous/>                                     // optional
  *      <display-features>200</display-features> 			// optional
  *      <display-recoding>stringPATH</display-recoding> 	// optional
  *      <display-progress>200</display-progress> 			// optional
  *      <save-progress>stringPATH</save-progress> 			// optional: but make no sense if display progress is not there
  *  </train-scae>
  *
+ * With prefetch, the given number of patches are prepared in advance by background
+ * threads (1 by default), so that the training does not wait for the images to be loaded.
+ * It is not used for denoising autoencoders. With several prefetching threads, the order of
+ * the patches depends on the scheduling, so a seeded training cannot be reproduced.
+ *
+ * With asynchronous, each thread of the pool trains its own replica of the SCAE on its share
+ * of the samples of an epoch. The replicas share the weights and update them without any
+ * synchronization, so an update can be based on slightly outdated weights, which the training
+ * tolerates. This is only possible for autoencoders trained through their layers (e.g., the
+ * standard autoencoder), and not for denoising autoencoders.
+ *
  * @author Mathias Seuret, Michele Alberti
  */
 public class TrainSCAE extends AbstractCommand {
@@ -76,6 +89,18 @@ public class TrainSCAE extends AbstractCommand {
      */
     int tracerFeaturesUpdateStep = 1000;
     int currTracerFeatures = 0;
+    /**
+     * Number of patches prepared in advance, 0 if the patches are not prefetched
+     */
+    private int prefetch;
+    /**
+     * Number of threads preparing the patches
+     */
+    private int prefetchThreads;
+    /**
+     * True if replicas of the SCAE are trained asynchronously
+     */
+    private boolean asynchronous;
 
     @Override
     public String execute(Element element) throws Exception {
@@ -113,6 +138,29 @@ public class TrainSCAE extends AbstractCommand {
             MAXTIME = Integer.MAX_VALUE;
         }
 
+        // Parse the optional prefetching
+        prefetch = 0;
+        prefetchThreads = 1;
+        if (element.getChild("prefetch") != null) {
+            prefetch = Integer.parseInt(readElement(element, "prefetch"));
+            if (prefetch < 1) {
+                error("the number of prefetched patches must be at least 1, got " + prefetch);
+            }
+            if (element.getChild("prefetch").getAttribute("threads") != null) {
+                prefetchThreads = Integer.parseInt(readAttribute(element.getChild("prefetch"), "threads"));
+                if (prefetchThreads < 1) {
+                    error("the number of prefetching threads must be at least 1, got " + prefetchThreads);
+                }
+            }
+        }
+
+        // Parse the optional asynchronous training
+        asynchronous = element.getChild("asynchronous") != null;
+        if (asynchronous && (!scae.canTrainAsynchronously() || Parallel.getNbThreads() < 2)) {
+            script.println("The SCAE cannot be trained asynchronously with " + Parallel.getNbThreads() + " thread(s), training it sequentially");
+            asynchronous = false;
+        }
+
         // If display-progress is present, init the tracer
         tracer = null;
         if (element.getChild("save-progress") != null) {
@@ -244,75 +292,135 @@ public class TrainSCAE extends AbstractCommand {
         int epoch = 0;
         
         // Random numbers generator
-        Random rand = new Random();
+        SplittableRandom rand = Rng.get();
+
+        // Patches prepared in the background, if asked for
+        PatchSampler sampler = null;
+        DataBlock patch = null;
+        if (prefetch > 0) {
+            sampler = new PatchSampler(
+                    ds,
+                    scae.getInputPatchWidth(),
+                    scae.getInputPatchHeight(),
+                    scae.getInputPatchDepth(),
+                    prefetch,
+                    prefetchThreads
+            );
+            patch = sampler.createPatch();
+        }
+
+        // Replicas of the SCAE sharing its weights, and their patches, for the asynchronous training
+        SCAE[] replicas = null;
+        DataBlock[] patches = null;
+        SplittableRandom[] rands = null;
+        if (asynchronous) {
+            replicas = new SCAE[Parallel.getNbThreads()];
+            patches = new DataBlock[replicas.length];
+            rands = new SplittableRandom[replicas.length];
+            for (int t = 0; t < replicas.length; t++) {
+                replicas[t] = scae.replicate();
+                patches[t] = (sampler != null) ? sampler.createPatch() : null;
+                rands[t] = Rng.split();
+            }
+        }
 
         // Iterate until enough samples has been evaluated
-        while (sample <= SAMPLES) {
+        try {
+            while (sample <= SAMPLES) {
+
+                // Shuffle the dataset at each epoch, the sampler does it on its own
+                if (sampler == null) {
+                    ds.randomPermutation();
+                }
 
-            // Shuffle the dataset at each epoch
-            ds.randomPermutation();
+                // Epoch-wise error
+                err = 0;
 
-            // Epoch-wise error
-            err = 0;
+                // Log every ~10% the progress of training
+                if (((sample - 1) * 10) / SAMPLES >= loggingProgress) {
+                    System.out.print(loggingProgress * 10 + "% ");
+                    if (loggingProgress > 1) {
+                        System.out.print(" ");
+                    }
+                    loggingProgress = (sample * 10) / SAMPLES + 1;
 
-            // Log every ~10% the progress of training
-            if (((sample - 1) * 10) / SAMPLES >= loggingProgress) {
-                System.out.print(loggingProgress * 10 + "% ");
-                if (loggingProgress > 1) {
-                    System.out.print(" ");
                 }
-                loggingProgress = (sample * 10) / SAMPLES + 1;
 
-            }
+                // At each epoch we iterate over all images in the dataset
+                if (replicas != null) {
+                    int epochSize = (sampler != null) ? sampler.size() : ds.size();
+                    err = trainAsynchronously(replicas, patches, rands, ds, sampler, epochSize);
+                    sample += epochSize;
+                    currTracerFeatures += epochSize;
+                } else if (sampler != null) {
+                    for (int n = 0; n < sampler.size(); n++) {
 
-            // At each epoch we iterate over all images in the dataset
-            for (DataBlock db : ds) {
+                        // Get a patch of a random image at a random position
+                        sampler.next(patch);
+                        scae.setInput(patch, 0, 0);
 
-                int x = rand.nextInt(db.getWidth() - scae.getInputPatchWidth());
-                int y = rand.nextInt(db.getHeight() - scae.getInputPatchHeight());
+                        // Train
+                        err += scae.train();
 
-                // Set input
-                scae.setInput(db, x, y);
+                        // Increase counter of examined samples
+                        sample++;
 
-                // Train
-                err += scae.train();
+                        currTracerFeatures++;
+                    }
+                } else {
+                    for (DataBlock db : ds) {
 
-                // Increase counter of examined samples
-                sample++;
+                        int x = rand.nextInt(db.getWidth() - scae.getInputPatchWidth());
+                        int y = rand.nextInt(db.getHeight() - scae.getInputPatchHeight());
 
-                currTracerFeatures++;
-            }
+                        // Set input
+                        scae.setInput(db, x, y);
 
-            // Add the new epoch point to the plot
-            if (tracer != null) {
-                // Log the error at each epoch
-                tracer.addPoint(sample, err);
-            }
+                        // Train
+                        err += scae.train();
 
-            // Feature display update
-            if (fd!=null && currTracerFeatures>=tracerFeaturesUpdateStep) {
-                fd.update();
-            }
+                        // Increase counter of examined samples
+                        sample++;
 
-            // Recoding update
-            if (rd!=null) {
-                rd.update();
-            }
+                        currTracerFeatures++;
+                    }
+                }
 
-            // Log the number of epochs
-            epoch++;
+                // Add the new epoch point to the plot
+                if (tracer != null) {
+                    // Log the error at each epoch
+                    tracer.addPoint(sample, err);
+                }
 
-            // Update the cumulated error
-            cumulatedError += err;
+                // Feature display update
+                if (fd!=null && currTracerFeatures>=tracerFeaturesUpdateStep) {
+                    fd.update();
+                }
 
-            // Stop execution if MAXTIME reached
-            if (((int) (System.currentTimeMillis() - startTime) / 60000) >= MAXTIME) {
-                // Complete the logging progress
-                System.out.println("]");
-                script.println("Maximum training time (" + MAXTIME + ") reached after " + epoch + " epochs");
-                break;
-            }
+                // Recoding update
+                if (rd!=null) {
+                    rd.update();
+                }
+
+                // Log the number of epochs
+                epoch++;
+
+                // Update the cumulated error
+                cumulatedError += err;
 
+                // Stop execution if MAXTIME reached
+                if (((int) (System.currentTimeMillis() - startTime) / 60000) >= MAXTIME) {
+                    // Complete the logging progress
+                    System.out.println("]");
+                    script.println("Maximum training time (" + MAXTIME + ") reached after " + epoch + " epochs");
+                    break;
+                }
+
+            }
+        } finally {
+            if (sampler != null) {
+                sampler.close();
+            }
         }
 
         // Complete the logging progress
@@ -325,6 +433,44 @@ public class TrainSCAE extends AbstractCommand {
         return cumulatedError;
     }
 
+    /**
+     * Trains replicas of an SCAE on one epoch, each thread of the pool using its
+     * own replica. The weights are shared and updated without synchronization.
+     *
+     * @param replicas replicas of the SCAE, one per thread
+     * @param patches  patches for the sampler, one per thread, or null
+     * @param rands    random numbers generators, one per thread
+     * @param ds       the dataset, whose order is used if there is no sampler
+     * @param sampler  the patch sampler, or null
+     * @param nbSamples number of samples of the epoch
+     * @return training error of the epoch
+     */
+    private double trainAsynchronously(SCAE[] replicas, DataBlock[] patches, SplittableRandom[] rands, Dataset ds, PatchSampler sampler, int nbSamples) {
+        double[] errors = new double[replicas.length];
+        Parallel.forChunks(nbSamples, (chunk, from, to) -> {
+            SCAE replica = replicas[chunk];
+            SplittableRandom rand = rands[chunk];
+            for (int n = from; n < to; n++) {
+                if (sampler != null) {
+                    sampler.next(patches[chunk]);
+                    replica.setInput(patches[chunk], 0, 0);
+                } else {
+                    DataBlock db = ds.get(n);
+                    int x = rand.nextInt(db.getWidth() - replica.getInputPatchWidth());
+                    int y = rand.nextInt(db.getHeight() - replica.getInputPatchHeight());
+                    replica.setInput(db, x, y);
+                }
+                errors[chunk] += replica.train();
+            }
+        });
+
+        double err = 0;
+        for (double e : errors) {
+            err += e;
+        }
+        return err;
+    }
+
     /**
      * Train a denoising auto encoder
      *
@@ -380,8 +526,9 @@ public class TrainSCAE extends AbstractCommand {
              * we need the clean and noisy dataset to be shuffled in the same way otherwise we lose the
              * reference between clean and noisy data.
              */
+            SplittableRandom rand = Rng.get();
             for (int i=0; i<index.length; i++) {
-                int j = (int)(index.length*Math.random());
+                int j = rand.nextInt(index.length);
                 int k = index[i];
                 index[i] = index[j];
                 index[j] = k;
@@ -393,8 +540,8 @@ public class TrainSCAE extends AbstractCommand {
                 DataBlock noisy = ds.getNoisy(n);
 
                 // Get random pixel
-                int x = (int) (Math.random() * (clean.getWidth() - scae.getInputPatchWidth()));
-                int y = (int) (Math.random() * (clean.getHeight() - scae.getInputPatchHeight()));
+                int x = rand.nextInt(clean.getWidth() - scae.getInputPatchWidth());
+                int y = rand.nextInt(clean.getHeight() - scae.getInputPatchHeight());
 
                 // Train scae
                 err += scae.trainDenoising(clean, noisy, x, y);
@@ -43,6 +43,8 @@ import java.io.IOException;
  */
 public class BiDataBlock extends DataBlock {
 
+    private static final long serialVersionUID = 20818765371226898L;
+
     /**
      * Buffered image
      */
@@ -89,6 +91,30 @@ public class BiDataBlock extends DataBlock {
         return rv;
     }
 
+    @Override
+    public void setValues(int x, int y, float[] z) {
+        for (int c = 0; c < z.length; c++) {
+            setValue(c, x, y, z[c]);
+        }
+    }
+
+    /**
+     * The values are stored in the buffered image, there is no array.
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public float[] getData() {
+        throw new UnsupportedOperationException("a BiDataBlock stores its values in a BufferedImage");
+    }
+
+    /**
+     * @return false, the values are stored in the buffered image
+     */
+    @Override
+    public boolean hasData() {
+        return false;
+    }
+
     @Override
     public void setValue(int channel, int x, int y, float v) {
         int rgb = bi.getRGB(x, y);
@@ -140,11 +166,25 @@ public class BiDataBlock extends DataBlock {
         assert (source.getWidth() + px < getWidth());
         assert (source.getHeight() + py < getHeight());
 
-        for (int x=0; x<getWidth(); x++) {
-            for (int y=0; y<getHeight(); y++) {
+        for (int x=0; x<source.getWidth(); x++) {
+            for (int y=0; y<source.getHeight(); y++) {
                 weightedPaste(source.getValues(x, y), 0, px + x, py + y);
             }
         }
     }
 
+    @Override
+    public void patchToArray(float[] arr, int offset, int posX, int posY, int w, int h) {
+        assert (offset + w * h * getDepth() <= arr.length);
+
+        int i = offset;
+        for (int x=posX; x<posX+w; x++) {
+            for (int y=posY; y<posY+h; y++) {
+                float[] v = getValues(x, y);
+                System.arraycopy(v, 0, arr, i, v.length);
+                i += v.length;
+            }
+        }
+    }
+
 }
@@ -0,0 +1,205 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.util;
+
+import Jama.Matrix;
+
+/**
+ * Accumulates the mean and the covariance matrix of a stream of samples,
+ * without storing them. Each sample is folded into running sums with the
+ * Welford update, so the memory is quadratic in the dimension of the samples
+ * and does not depend on their number. Two accumulators filled separately,
+ * e.g., by different threads, can be merged.
+ * @author Mathias Seuret, Michele Alberti
+ */
+public class CovarianceAccumulator {
+    /**
+     * Dimension of the samples.
+     */
+    private final int dim;
+    /**
+     * Number of samples added.
+     */
+    private long count;
+    /**
+     * Running mean of the samples.
+     */
+    private final double[] mean;
+    /**
+     * Sums of the products of the deviations from the mean, only the upper
+     * triangle (j &gt;= i) of the row-major dim x dim matrix is filled.
+     */
+    private final double[] scatter;
+    /**
+     * Deviations of the current sample from the previous mean.
+     */
+    private final double[] delta;
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates an empty accumulator.
+     * @param dim dimension of the samples
+     */
+    public CovarianceAccumulator(int dim) {
+        if (dim < 1) {
+            throw new IllegalArgumentException("the dimension must be at least 1, got " + dim);
+        }
+        this.dim = dim;
+        mean = new double[dim];
+        scatter = new double[dim * dim];
+        delta = new double[dim];
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Accumulating
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Adds a sample.
+     * @param x array containing the sample
+     * @param offset position of the sample in x
+     */
+    public void add(float[] x, int offset) {
+        count++;
+        for (int i = 0; i < dim; i++) {
+            double v = x[offset + i];
+            if (v != v) {
+                throw new RuntimeException("NaN detected. Something went wrong.");
+            }
+            delta[i] = v - mean[i];
+            mean[i] += delta[i] / count;
+        }
+
+        // The deviation from the new mean is (n-1)/n times the one from the old mean
+        double f = (count - 1) / (double) count;
+        for (int i = 0; i < dim; i++) {
+            double di = delta[i] * f;
+            if (di == 0) {
+                continue;
+            }
+            int row = i * dim;
+            for (int j = i; j < dim; j++) {
+                scatter[row + j] += di * delta[j];
+            }
+        }
+    }
+
+    /**
+     * Adds the samples of another accumulator to this one.
+     * @param other accumulator of samples of the same dimension
+     */
+    public void merge(CovarianceAccumulator other) {
+        if (other.dim != dim) {
+            throw new IllegalArgumentException("cannot merge accumulators of dimensions " + dim + " and " + other.dim);
+        }
+        if (other.count == 0) {
+            return;
+        }
+        long n = count + other.count;
+        double f = (double) count * other.count / n;
+        for (int i = 0; i < dim; i++) {
+            delta[i] = other.mean[i] - mean[i];
+        }
+        for (int i = 0; i < dim; i++) {
+            int row = i * dim;
+            for (int j = i; j < dim; j++) {
+                scatter[row + j] += other.scatter[row + j] + f * delta[i] * delta[j];
+            }
+        }
+        for (int i = 0; i < dim; i++) {
+            mean[i] += delta[i] * other.count / n;
+        }
+        count = n;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return the dimension of the samples
+     */
+    public int getDimension() {
+        return dim;
+    }
+
+    /**
+     * @return the number of samples added
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return a copy of the mean of the samples
+     */
+    public double[] getMeans() {
+        return mean.clone();
+    }
+
+    /**
+     * Computes the sample covariance matrix, i.e., the scatter matrix divided
+     * by the number of samples minus one.
+     * @return a new dim x dim symmetric matrix
+     */
+    public Matrix getCovariance() {
+        if (count < 2) {
+            throw new IllegalStateException("at least two samples are needed for a covariance, got " + count);
+        }
+        double[][] c = new double[dim][dim];
+        double f = 1.0 / (count - 1);
+        for (int i = 0; i < dim; i++) {
+            for (int j = i; j < dim; j++) {
+                c[i][j] = scatter[i * dim + j] * f;
+                c[j][i] = c[i][j];
+            }
+        }
+        return new Matrix(c);
+    }
+
+    /**
+     * Computes the sample covariance matrix in single precision.
+     * @return a new row-major dim x dim array
+     */
+    public float[] getCovarianceArray() {
+        if (count < 2) {
+            throw new IllegalStateException("at least two samples are needed for a covariance, got " + count);
+        }
+        float[] c = new float[dim * dim];
+        double f = 1.0 / (count - 1);
+        for (int i = 0; i < dim; i++) {
+            for (int j = i; j < dim; j++) {
+                c[i * dim + j] = (float) (scatter[i * dim + j] * f);
+                c[j * dim + i] = c[i * dim + j];
+            }
+        }
+        return c;
+    }
+}
@@ -29,38 +29,47 @@ package diuf.diva.dia.ms.util;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.util.Arrays;
 
 /**
  * This corresponds to a 3-dimensions array, with some additional features.
+ * <p>
+ * The values are stored in a single array, x-major: the values of the position
+ * (x,y) start at the index getIndex(x,y) = (x*height+y)*depth and are followed
+ * by the values of (x,y+1). A column of a patch is thus contiguous in memory,
+ * in the same order as in the arrays produced by patchToArray().
  *
  * @author Mathias Seuret, Michele Alberti
  */
 public class DataBlock implements Serializable, Cloneable {
+
+    private static final long serialVersionUID = -3340562718392256796L;
+
     
     /**
-     * Width of the array.
+     * Width of the array. Not final because of readObject().
      */
-    private final int width;
+    private int width;
     
     /**
      * Height of the array.
      */
-    private final int height;
+    private int height;
     
     /**
      * Depth of the array.
      */
-    private final int depth;
+    private int depth;
     
     /**
-     * The array.
+     * The values, see getIndex() for the layout.
      */
-    private final float[][][] value;
+    private float[] value;
     
     /**
-     * The weights.
+     * The weights, one per position, the weight of (x,y) is at x*height+y.
      */
-    protected final float[][] weight;
+    protected float[] weight;
 
     /**
      * Colorspace of the image
@@ -81,8 +90,8 @@ public class DataBlock implements Serializable, Cloneable {
         this.width  = width;
         this.height = height;
         this.depth  = depth;
-        value = new float[width][height][depth];
-        weight = new float[width][height];
+        value = new float[width * height * depth];
+        weight = new float[width * height];
     }
 
     /**
@@ -180,7 +189,7 @@ public class DataBlock implements Serializable, Cloneable {
      * @return a float
      */
     public float getValue(int channel, int x, int y) {
-        return value[x][y][channel];
+        return value[getIndex(x, y) + channel];
     }
 
     /**
@@ -191,29 +200,65 @@ public class DataBlock implements Serializable, Cloneable {
      * @param v new value
      */
     public void setValue(int channel, int x, int y, float v) {
-        value[x][y][channel] = v;
+        value[getIndex(x, y) + channel] = v;
     }
 
     /**
      * Returns the values at (x,y,:) coordinates.
      * @param x coordinate
      * @param y coordinate
-     * @return the array, not a copy
+     * @return a copy of the values, use getData() for accessing them directly
      */
     public float[] getValues(int x, int y) {
-        return value[x][y];
+        float[] res = new float[depth];
+        System.arraycopy(value, getIndex(x, y), res, 0, depth);
+        return res;
     }
 
     /**
      * Sets the values at (x,y,:) coordinates.
      * @param x coordinate
      * @param y coordinate
-     * @param z the array that's going to be set at (x,y,:)
+     * @param z the values that are going to be copied at (x,y,:)
      */
     public void setValues(int x, int y, float[] z) {
         assert (z.length == depth);
 
-        value[x][y] = z;
+        System.arraycopy(z, 0, value, getIndex(x, y), depth);
+    }
+
+    /**
+     * Gives a direct access to the values, for the computations which
+     * have to read or write them without copying them.
+     * @return the array storing the values, not a copy
+     */
+    public float[] getData() {
+        return value;
+    }
+
+    /**
+     * @param x coordinate
+     * @param y coordinate
+     * @return the index in getData() of the first value at (x,y)
+     */
+    public int getIndex(int x, int y) {
+        return (x * height + y) * depth;
+    }
+
+    /**
+     * The values of a column are consecutive in getData(), so a patch of
+     * height h is made of runs of h*depth values separated by this stride.
+     * @return the distance in getData() between two horizontally adjacent values
+     */
+    public int getColumnStride() {
+        return height * depth;
+    }
+
+    /**
+     * @return true if the values are stored in the array returned by getData()
+     */
+    public boolean hasData() {
+        return true;
     }
 
     public Image.Colorspace getColorspace() {
@@ -266,16 +311,14 @@ public class DataBlock implements Serializable, Cloneable {
      * Divides the values by the weights, then reset the weights to 1.0f
      */
     public void normalizeWeights() {
-        for (int x=0; x<width; x++) {
-            for (int y=0; y<height; y++) {
-                if (weight[x][y] == 0.0f || weight[x][y] == 1.0f) {
-                    continue;
-                }
-                for (int i = 0; i < value[x][y].length; i++) {
-                    value[x][y][i] /= weight[x][y];
-                }
-                weight[x][y] = 1.0f;
+        for (int p = 0; p < weight.length; p++) {
+            if (weight[p] == 0.0f || weight[p] == 1.0f) {
+                continue;
             }
+            for (int i = p * depth; i < (p + 1) * depth; i++) {
+                value[i] /= weight[p];
+            }
+            weight[p] = 1.0f;
         }
     }
 
@@ -303,12 +346,8 @@ public class DataBlock implements Serializable, Cloneable {
         assert (dst.getHeight() >= getHeight() + posY);
 
         for (int x = 0; x < getWidth(); x++) {
-            for (int y = 0; y < getHeight(); y++) {
-                for (int z = 0; z < getDepth(); z++) {
-                    dst.setValue(z, x + posX, y + posY, value[x][y][z]);
-                }
-                dst.weight[x][y] = weight[x][y];
-            }
+            System.arraycopy(value, getIndex(x, 0), dst.value, dst.getIndex(x + posX, posY), height * depth);
+            System.arraycopy(weight, x * height, dst.weight, (x + posX) * dst.height + posY, height);
         }
     }
 
@@ -316,14 +355,8 @@ public class DataBlock implements Serializable, Cloneable {
      * Erases the content of the block and sets the weights to 0.
      */
     public void clear() {
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                for (int z = 0; z < depth; z++) {
-                    value[x][y][z] = 0;
-                }
-                weight[x][y] = 0;
-            }
-        }
+        Arrays.fill(value, 0);
+        Arrays.fill(weight, 0);
     }
 
     /**
@@ -336,12 +369,13 @@ public class DataBlock implements Serializable, Cloneable {
      * @param y      coordinate
      */
     public void weightedPaste(float[] source, int from, int x, int y) {
-        assert (source.length >= value[x][y].length + from);
+        assert (source.length >= depth + from);
 
-        for (int i = 0; i < value[x][y].length; i++) {
-            value[x][y][i] += source[from + i];
+        int index = getIndex(x, y);
+        for (int i = 0; i < depth; i++) {
+            value[index + i] += source[from + i];
         }
-        weight[x][y] += 1.0f;
+        weight[x * height + y] += 1.0f;
     }
 
     /**
@@ -354,15 +388,35 @@ public class DataBlock implements Serializable, Cloneable {
      * @param height height of the patch
      */
     public void weightedPatchPaste(float[] arr, int posX, int posY, int width, int height) {
+        weightedPatchPaste(arr, posX, posY, width, height, posX, posX + width);
+    }
+
+    /**
+     * Puts the values from an array to the part of a patch lying in some
+     * columns of the block. Several threads can paste overlapping patches
+     * at the same time, as long as their column ranges are disjoint.
+     *
+     * @param arr    array storing the whole patch
+     * @param posX   position of the patch
+     * @param posY   position of the patch
+     * @param width  width of the patch
+     * @param height height of the patch
+     * @param fromX  first column of the block which can be modified
+     * @param toX    column after the last one which can be modified
+     */
+    public void weightedPatchPaste(float[] arr, int posX, int posY, int width, int height, int fromX, int toX) {
         assert (arr.length == width * height * getDepth());
 
-        int n = 0;
-        for (int x = posX; x < posX + width; x++) {
+        int length = height * depth;
+        int x0 = Math.max(posX, fromX);
+        int n = (x0 - posX) * length;
+        for (int x = x0; x < Math.min(posX + width, toX); x++) {
+            int index = getIndex(x, posY);
+            for (int i = 0; i < length; i++) {
+                value[index + i] += arr[n++];
+            }
             for (int y = posY; y < posY + height; y++) {
-                for (int z = 0; z < getDepth(); z++) {
-                    setValue(z, x, y, getValue(z, x, y) + arr[n++]);
-                }
-                weight[x][y] += 1.0f;
+                weight[x * this.height + y] += 1.0f;
             }
         }
     }
@@ -380,8 +434,8 @@ public class DataBlock implements Serializable, Cloneable {
         assert (source.getWidth() + x < width);
         assert (source.getHeight() + y < height);
 
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
+        for (int i = 0; i < source.getWidth(); i++) {
+            for (int j = 0; j < source.getHeight(); j++) {
                 weightedPaste(source.getValues(i, j), 0, x + i, y + j);
             }
         }
@@ -398,13 +452,24 @@ public class DataBlock implements Serializable, Cloneable {
     public void patchToArray(float[] arr, int posX, int posY, int w, int h) {
         assert (arr.length == w * h * depth);
 
-        int i = 0;
-        for (int x=posX; x<posX+w; x++) {
-            for (int y=posY; y<posY+h; y++) {
-                for (int z = 0; z < depth; z++) {
-                    arr[i++] = getValue(z, x, y);
-                }
-            }
+        patchToArray(arr, 0, posX, posY, w, h);
+    }
+
+    /**
+     * Puts the values from a patch into a part of an array.
+     * @param arr target array
+     * @param offset index of the first value in the array
+     * @param posX coordinate of the patch
+     * @param posY coordinate of the patch
+     * @param w width of the patch
+     * @param h height of the patch
+     */
+    public void patchToArray(float[] arr, int offset, int posX, int posY, int w, int h) {
+        assert (offset + w * h * depth <= arr.length);
+
+        int length = h * depth;
+        for (int x = 0; x < w; x++) {
+            System.arraycopy(value, getIndex(posX + x, posY), arr, offset + x * length, length);
         }
     }
 
@@ -418,14 +483,7 @@ public class DataBlock implements Serializable, Cloneable {
      */
     public float[] patchToArray(int posX, int posY, int w, int h) {
         float[] returnValue = new float[w * h * depth];
-        int i = 0;
-        for (int x = posX; x < posX + w; x++) {
-            for (int y = posY; y < posY + h; y++) {
-                for (int z = 0; z < depth; z++) {
-                    returnValue[i++] = getValue(z, x, y);
-                }
-            }
-        }
+        patchToArray(returnValue, posX, posY, w, h);
         return returnValue;
     }
 
@@ -440,14 +498,12 @@ public class DataBlock implements Serializable, Cloneable {
     public void arrayToPatch(float[] arr, int posX, int posY, int width, int height) {
         assert (arr.length==width*height*getDepth());
         
-        int n = 0;
-        
+        int length = height * getDepth();
+
         for (int x=posX; x<posX+width; x++) {
+            System.arraycopy(arr, (x - posX) * length, value, getIndex(x, posY), length);
             for (int y=posY; y<posY+height; y++) {
-                for (int z=0; z<getDepth(); z++) {
-                    setValue(z, x, y, arr[n++]);
-                }
-                weight[x][y] += 1.0f;
+                weight[x * this.height + y] += 1.0f;
             }
         }
     }
@@ -506,6 +562,41 @@ public class DataBlock implements Serializable, Cloneable {
         return db;
     }
 
+    /**
+     * Deserializes the datablock. Older versions stored the values in a
+     * float[width][height][depth] array and the weights in a float[width][height]
+     * array, they are converted to the current layout.
+     *
+     * @param in input stream
+     * @throws IOException            if the datablock cannot be read
+     * @throws ClassNotFoundException if the stream is not valid
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        width = fields.get("width", 0);
+        height = fields.get("height", 0);
+        depth = fields.get("depth", 0);
+        type = (Image.Colorspace) fields.get("type", null);
+
+        Object v = fields.get("value", null);
+        Object w = fields.get("weight", null);
+        if (v instanceof float[][][]) {
+            float[][][] oldValue = (float[][][]) v;
+            float[][] oldWeight = (float[][]) w;
+            value = new float[width * height * depth];
+            weight = new float[width * height];
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    System.arraycopy(oldValue[x][y], 0, value, getIndex(x, y), depth);
+                    weight[x * height + y] = oldWeight[x][y];
+                }
+            }
+        } else {
+            value = (float[]) v;
+            weight = (float[]) w;
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Image Datablock features
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -32,6 +32,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.SplittableRandom;
 
 /**
  * This is a set of datablocks which can be used for training
@@ -92,6 +93,7 @@ public class Dataset implements Collection<DataBlock> {
             if (fName.equals(".DS_Store")) {
                 continue;
             }
+            long t = Metrics.start();
             if (colorspace==Image.Colorspace.RGB && buffered) {
                 BiDataBlock bid = new BiDataBlock(path + "/" + fName);
                 data.add(bid);
@@ -101,6 +103,7 @@ public class Dataset implements Collection<DataBlock> {
                 DataBlock db = new DataBlock(img);
                 data.add(db);
             }
+            Metrics.stop("dataset.load-image", t);
             if (sizeLimit!=0 && ++size>=sizeLimit) {
                 break;
             }
@@ -122,15 +125,16 @@ public class Dataset implements Collection<DataBlock> {
      * @return a valid random index
      */
     public int getRandomIndex() {
-        return (int)(data.size() * Math.random());
+        return Rng.get().nextInt(size());
     }
     
     /**
      * Tosses the dataset.
      */
     public void randomPermutation() {
+        SplittableRandom rand = Rng.get();
         for (int i=0; i<data.size(); i++) {
-            int j = (int)(Math.random()*data.size());
+            int j = rand.nextInt(data.size());
             DataBlock k = data.get(i);
             data.set(i, data.get(j));
             data.set(j, k);
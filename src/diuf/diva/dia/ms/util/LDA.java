@@ -26,18 +26,22 @@
 
 package diuf.diva.dia.ms.util;
 
+import Jama.CholeskyDecomposition;
 import Jama.EigenvalueDecomposition;
 import Jama.Matrix;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 
 /**
  * This code computes linear discriminant analysis (LDA).
- * It is a direct adaptation of my LDA implementation in MATLAB. Unfortunately being not
- * present in JAVA a direct translation for mldivide() (which is a\b in MATLAB), I had
- * to use Matrix.inverse() which is not the fastest solution.
+ * It is a direct adaptation of my LDA implementation in MATLAB. The within-class
+ * scatter matrix is accumulated in parallel, and the generalized eigenproblem
+ * Sb v = l Sw v is solved through the Cholesky decomposition Sw = R R' instead
+ * of inverting Sw: the eigenvectors of the symmetric matrix R^-1 Sb R^-T are
+ * mapped back with R^-T.
  *
  * @author Michele Alberti
  */
@@ -73,9 +77,9 @@ public class LDA {
      */
     private final int numSamples;
     /**
-     * Data split into separated classes
+     * Number of samples of every class
      */
-    private final ArrayList<double[]>[] subset;
+    private final int[] classSize;
     /**
      * Within-class scatter matrix
      */
@@ -118,37 +122,33 @@ public class LDA {
         numFeatures = data[0].length;
         numSamples = data.length;
 
-        // Split data into subsets for easier management
-        subset = new ArrayList[numClasses];
+        // Class index of every sample
+        HashMap<Integer, Integer> classIndex = new HashMap<>();
         for (int c = 0; c < numClasses; c++) {
-            subset[c] = new ArrayList<>();
-            for (int i = 0; i < numSamples; i++) {
-                if (labels[i] == classLabel.get(c)) {
-                    subset[c].add(data[i]);
-                }
-            }
+            classIndex.put(classLabel.get(c), c);
         }
-
-        // Compute per class means
-        mu = new double[numClasses][numFeatures];
-        for (int c = 0; c < numClasses; c++) {
-            for (int i = 0; i < subset[c].size(); i++) {
-                for (int f = 0; f < numFeatures; f++) {
-                    mu[c][f] += subset[c].get(i)[f];
-                }
-            }
-            for (int f = 0; f < numFeatures; f++) {
-                mu[c][f] /= subset[c].size();
-            }
+        int[] classOf = new int[numSamples];
+        for (int i = 0; i < numSamples; i++) {
+            classOf[i] = classIndex.get(labels[i]);
         }
 
-        // Compute overall mean
+        // Compute per class means and overall mean
+        mu = new double[numClasses][numFeatures];
         omu = new double[numFeatures];
+        classSize = new int[numClasses];
         for (int i = 0; i < numSamples; i++) {
+            int c = classOf[i];
+            classSize[c]++;
             for (int f = 0; f < numFeatures; f++) {
+                mu[c][f] += data[i][f];
                 omu[f] += data[i][f];
             }
         }
+        for (int c = 0; c < numClasses; c++) {
+            for (int f = 0; f < numFeatures; f++) {
+                mu[c][f] /= classSize[c];
+            }
+        }
         for (int f = 0; f < numFeatures; f++) {
             omu[f] /= numSamples;
         }
@@ -156,60 +156,92 @@ public class LDA {
         // Compute mean number of point per class
         nmu = numSamples / numClasses;
 
-        // Compute within class scatter matrix
-        double[][] tmp = new double[1][numFeatures];
-        double[][][] psw = new double[numClasses][numFeatures][numFeatures];
+        /* Compute within class scatter matrix. Each sample is weighted so as to
+         * balance class influence (ignore size of class in final SW), so that
+         * all classes can be accumulated in the same matrix. Each thread fills
+         * the upper triangle of its own matrix. */
+        double[] weight = new double[numClasses];
         for (int c = 0; c < numClasses; c++) {
-            for (int i = 0; i < subset[c].size(); i++) {
-                tmp[0] = subtract(subset[c].get(i), mu[c]);
-                psw[c] = add(psw[c], multiply(transpose(tmp), tmp));
+            weight[c] = (double) nmu / classSize[c];
+        }
+        double[][] partial = new double[Math.min(Parallel.getNbThreads(), numSamples)][];
+        Parallel.forChunks(numSamples, (chunk, from, to) -> {
+            double[] s = new double[numFeatures * numFeatures];
+            double[] d = new double[numFeatures];
+            for (int i = from; i < to; i++) {
+                int c = classOf[i];
+                for (int f = 0; f < numFeatures; f++) {
+                    d[f] = data[i][f] - mu[c][f];
+                }
+                for (int f = 0; f < numFeatures; f++) {
+                    double wd = weight[c] * d[f];
+                    int row = f * numFeatures;
+                    for (int g = f; g < numFeatures; g++) {
+                        s[row + g] += wd * d[g];
+                    }
+                }
             }
-            // Balance class influence (ignore size of class in final SW)
+            partial[chunk] = s;
+        });
+        sw = new double[numFeatures][numFeatures];
+        for (double[] s : partial) {
             for (int i = 0; i < numFeatures; i++) {
-                for (int j = 0; j < numFeatures; j++) {
-                    psw[c][i][j] /= subset[c].size();
+                for (int j = i; j < numFeatures; j++) {
+                    sw[i][j] += s[i * numFeatures + j];
                 }
             }
         }
-        sw = new double[numFeatures][numFeatures];
         for (int i = 0; i < numFeatures; i++) {
-            for (int j = 0; j < numFeatures; j++) {
-                for (int c = 0; c < numClasses; c++) {
-                    sw[i][j] += psw[c][i][j] * nmu;
-                }
+            for (int j = 0; j < i; j++) {
+                sw[i][j] = sw[j][i];
             }
         }
 
         // Compute the between-classes scatter matrix
-        double[][][] psb = new double[numClasses][numFeatures][numFeatures];
+        sb = new double[numFeatures][numFeatures];
+        double[] d = new double[numFeatures];
         for (int c = 0; c < numClasses; c++) {
-            tmp[0] = subtract(mu[c], omu);
-            psb[c] = multiply(transpose(tmp), tmp);
+            for (int f = 0; f < numFeatures; f++) {
+                d[f] = mu[c][f] - omu[f];
+            }
+            for (int i = 0; i < numFeatures; i++) {
+                for (int j = 0; j < numFeatures; j++) {
+                    sb[i][j] += d[i] * d[j] * nmu;
+                }
+            }
         }
 
-        sb = new double[numFeatures][numFeatures];
-        for (int i = 0; i < numFeatures; i++) {
-            for (int j = 0; j < numFeatures; j++) {
-                for (int c = 0; c < numClasses; c++) {
-                    sb[i][j] += psb[c][i][j] * nmu;
-                }
+        // Cholesky decomposition of Sw, slightly regularized if Sw is singular
+        CholeskyDecomposition chol = new Matrix(sw).chol();
+        if (!chol.isSPD()) {
+            double trace = 0;
+            for (int i = 0; i < numFeatures; i++) {
+                trace += sw[i][i];
+            }
+            Matrix reg = new Matrix(sw);
+            for (int i = 0; i < numFeatures; i++) {
+                reg.set(i, i, sw[i][i] + 1e-9 * trace / numFeatures + Double.MIN_NORMAL);
+            }
+            chol = reg.chol();
+            if (!chol.isSPD()) {
+                throw new RuntimeException("The within-class scatter matrix is not positive definite.");
             }
         }
+        double[][] R = chol.getL().getArray();
 
-        // Compute J
-        Matrix J = new Matrix(sw).inverse().times(new Matrix(sb));
+        // Compute J = R^-1 Sb R^-T, which is symmetric
+        double[][] tmp = forwardSubstitution(R, sb);
+        double[][] J = forwardSubstitution(R, transpose(tmp));
+        for (int i = 0; i < numFeatures; i++) {
+            for (int j = 0; j < i; j++) {
+                J[i][j] = J[j][i] = (J[i][j] + J[j][i]) / 2;
+            }
+        }
 
         // Compute eigenvectors & eigenvalues
-        EigenvalueDecomposition eig = J.eig();
-        double[][] V = new double[numFeatures + 1][numFeatures];
+        EigenvalueDecomposition eig = new Matrix(J).eig();
         double[] D = eig.getRealEigenvalues();
-        tmp = eig.getV().getArray();
-        for (int j = 0; j < numFeatures; j++) {
-            for (int i = 0; i < numFeatures; i++) {
-                V[i][j] = tmp[i][j];
-            }
-            V[numFeatures][j] = D[j];
-        }
+        double[][] V = backSubstitution(R, eig.getV().getArray());
 
         // Init the index that we will use to sort the eigenvalues
         Integer[] index = new Integer[numFeatures];
@@ -217,22 +249,19 @@ public class LDA {
             index[i] = i;
         }
 
-
         // Sort the index according to the eigenvalues
-        Arrays.sort(index, (a, b) -> {
-            if (V[numFeatures][a] > V[numFeatures][b]) {
-                return -1;
-            } else if (V[numFeatures][a] < V[numFeatures][b]) {
-                return 1;
-            }
-            return 0;
-        });
+        Arrays.sort(index, (a, b) -> Double.compare(D[b], D[a]));
 
-        // Compose L from the sorted eigenvectors
+        // Compose L from the sorted eigenvectors, normalized
         L = new double[numFeatures][numFeatures];
         for (int j = 0; j < numFeatures; j++) {
+            double norm = 0;
             for (int i = 0; i < numFeatures; i++) {
-                L[i][j] = V[i][index[j]];
+                norm += V[i][index[j]] * V[i][index[j]];
+            }
+            norm = Math.sqrt(norm);
+            for (int i = 0; i < numFeatures; i++) {
+                L[i][j] = V[i][index[j]] / norm;
             }
         }
     }
@@ -268,19 +297,36 @@ public class LDA {
     // Private
     ///////////////////////////////////////////////////////////////////////////////////////////////
 
-    // Return c = a * b
-    private double[][] multiply(double[][] a, double[][] b) {
-        int m1 = a.length;
-        int n1 = a[0].length;
-        int m2 = b.length;
-        int n2 = b[0].length;
-        if (n1 != m2) throw new RuntimeException("Illegal matrix dimensions.");
-        double[][] c = new double[m1][n2];
-        for (int i = 0; i < m1; i++)
-            for (int j = 0; j < n2; j++)
-                for (int k = 0; k < n1; k++)
-                    c[i][j] += a[i][k] * b[k][j];
-        return c;
+    // Return X such that R X = B, R being lower triangular
+    private double[][] forwardSubstitution(double[][] r, double[][] b) {
+        int n = r.length;
+        int m = b[0].length;
+        double[][] x = new double[n][m];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < m; j++) {
+                double v = b[i][j];
+                for (int k = 0; k < i; k++)
+                    v -= r[i][k] * x[k][j];
+                x[i][j] = v / r[i][i];
+            }
+        }
+        return x;
+    }
+
+    // Return X such that R^T X = B, R being lower triangular
+    private double[][] backSubstitution(double[][] r, double[][] b) {
+        int n = r.length;
+        int m = b[0].length;
+        double[][] x = new double[n][m];
+        for (int i = n - 1; i >= 0; i--) {
+            for (int j = 0; j < m; j++) {
+                double v = b[i][j];
+                for (int k = i + 1; k < n; k++)
+                    v -= r[k][i] * x[k][j];
+                x[i][j] = v / r[i][i];
+            }
+        }
+        return x;
     }
 
     // Return B = A^T
@@ -294,26 +340,6 @@ public class LDA {
         return b;
     }
 
-    // Return c = a + b
-    private double[][] add(double[][] a, double[][] b) {
-        int m = a.length;
-        int n = a[0].length;
-        double[][] c = new double[m][n];
-        for (int i = 0; i < m; i++)
-            for (int j = 0; j < n; j++)
-                c[i][j] = a[i][j] + b[i][j];
-        return c;
-    }
-
-    // Return c = a - b
-    private double[] subtract(double[] a, double[] b) {
-        int n = a.length;
-        double[] c = new double[n];
-        for (int i = 0; i < n; i++)
-            c[i] = a[i] - b[i];
-        return c;
-    }
-
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Getters&Setters
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,338 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+
+/**
+ * Dataset which stores only the paths of the images, and loads them
+ * when they are needed. The loaded datablocks are kept in a cache whose
+ * size is limited to a given number of bytes; when it is full, the least
+ * recently used datablocks are removed from it.
+ * <p>
+ * The order of the images is the same as in a Dataset loaded from the
+ * same folder, so that a dataset and its ground truth can be matched by
+ * index. The datablocks returned by get() must not be modified, as they
+ * are shared with the cache and can be loaded again at any time.
+ * @author Mathias Seuret
+ */
+public class LazyDataset extends Dataset {
+
+    /**
+     * Paths of the images.
+     */
+    private final List<String> files = new ArrayList<>();
+
+    /**
+     * Loaded datablocks, ordered from the least to the most recently used.
+     */
+    private final LinkedHashMap<String, DataBlock> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Maximum number of bytes used by the datablocks of the cache.
+     */
+    private final long cacheSize;
+
+    /**
+     * Number of bytes used by the datablocks of the cache.
+     */
+    private long cachedBytes;
+
+    /**
+     * Creates a lazy dataset.
+     * @param path containing the images
+     * @param colorspace colorspace to use
+     * @param sizeLimit maximum number of images to use, 0 for no limit
+     * @param cacheSize maximum number of bytes used by the loaded images
+     */
+    public LazyDataset(String path, Image.Colorspace colorspace, int sizeLimit, long cacheSize) {
+        super(colorspace);
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("the cache size cannot be negative, got " + cacheSize);
+        }
+        this.cacheSize = cacheSize;
+
+        File fold = new File(path);
+        if (!fold.exists()) {
+            throw new Error("The path " + path + " does not exist.");
+        }
+        if (!fold.isDirectory()) {
+            throw new Error(path + " is not a directory.");
+        }
+        String[] fList = fold.list();
+        Arrays.sort(fList);
+        for (String fName : fList) {
+            if (fName.equals(".DS_Store")) {
+                continue;
+            }
+            files.add(path + "/" + fName);
+            if (sizeLimit != 0 && files.size() >= sizeLimit) {
+                break;
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Loading
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the selected element of the dataset, loading it if it is not
+     * in the cache. This method can be called by several threads at the
+     * same time.
+     * @param n index
+     * @return the n-th datablock
+     */
+    @Override
+    public DataBlock get(int n) {
+        String fName;
+        synchronized (this) {
+            fName = files.get(n);
+            DataBlock db = cache.get(fName);
+            if (db != null) {
+                return db;
+            }
+        }
+
+        // Loading outside of the lock, so that other threads can use the cache
+        DataBlock db = load(fName);
+
+        synchronized (this) {
+            DataBlock other = cache.get(fName);
+            if (other != null) {
+                // Loaded at the same time by another thread
+                return other;
+            }
+            long bytes = getBytes(db);
+            if (bytes <= cacheSize) {
+                Iterator<DataBlock> it = cache.values().iterator();
+                while (cachedBytes + bytes > cacheSize) {
+                    cachedBytes -= getBytes(it.next());
+                    it.remove();
+                }
+                cache.put(fName, db);
+                cachedBytes += bytes;
+            }
+        }
+        return db;
+    }
+
+    /**
+     * Loads an image and converts it to the colorspace of the dataset.
+     * @param fName file name
+     * @return a new datablock
+     */
+    private DataBlock load(String fName) {
+        long t = Metrics.start();
+        try {
+            Image img = new Image(fName);
+            img.convertTo(colorspace);
+            return new DataBlock(img);
+        } catch (IOException e) {
+            throw new Error("Cannot load " + fName, e);
+        } finally {
+            Metrics.stop("dataset.load-image", t);
+        }
+    }
+
+    /**
+     * @param db a datablock
+     * @return the number of bytes used by the values and weights of the datablock
+     */
+    private static long getBytes(DataBlock db) {
+        return 4L * db.getWidth() * db.getHeight() * (db.getDepth() + 1);
+    }
+
+    /**
+     * Removes all datablocks from the cache.
+     */
+    public synchronized void clearCache() {
+        cache.clear();
+        cachedBytes = 0;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return the maximum number of bytes used by the loaded images
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * @return the number of bytes currently used by the loaded images
+     */
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Collection
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Tosses the dataset. The cache is not modified.
+     */
+    @Override
+    public synchronized void randomPermutation() {
+        SplittableRandom rand = Rng.get();
+        for (int i = 0; i < files.size(); i++) {
+            int j = rand.nextInt(files.size());
+            Collections.swap(files, i, j);
+        }
+    }
+
+    /**
+     * So that we can do a for-each, the images are loaded one after the other.
+     * @return an iterator
+     */
+    @Override
+    public Iterator<DataBlock> iterator() {
+        randomPermutation();
+        return new Iterator<DataBlock>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size();
+            }
+
+            @Override
+            public DataBlock next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(next++);
+            }
+        };
+    }
+
+    @Override
+    public synchronized int size() {
+        return files.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Loads all the images, use it with care.
+     * @param o object
+     * @return true if the dataset contains the object
+     */
+    @Override
+    public boolean contains(Object o) {
+        for (DataBlock db : this) {
+            if (db.equals(o)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Loads all the images, use it with care.
+     * @return an array with all the datablocks
+     */
+    @Override
+    public Object[] toArray() {
+        return toArray(new DataBlock[0]);
+    }
+
+    /**
+     * Loads all the images, use it with care.
+     * @param a an array
+     * @return an array with all the datablocks
+     */
+    @Override
+    public <T> T[] toArray(T[] a) {
+        List<DataBlock> all = new ArrayList<>(size());
+        for (int n = 0; n < size(); n++) {
+            all.add(get(n));
+        }
+        return all.toArray(a);
+    }
+
+    @Override
+    public boolean add(DataBlock db) {
+        throw new UnsupportedOperationException("datablocks cannot be added to a lazy dataset");
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException("datablocks cannot be removed from a lazy dataset");
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> c) {
+        for (Object o : c) {
+            if (!contains(o)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends DataBlock> c) {
+        throw new UnsupportedOperationException("datablocks cannot be added to a lazy dataset");
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        throw new UnsupportedOperationException("datablocks cannot be removed from a lazy dataset");
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        throw new UnsupportedOperationException("datablocks cannot be removed from a lazy dataset");
+    }
+
+    /**
+     * Removes all images from the dataset.
+     */
+    @Override
+    public synchronized void clear() {
+        files.clear();
+        clearCache();
+    }
+}
@@ -0,0 +1,289 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.util;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of timers measuring where the computation time goes, e.g., in the
+ * commands of a script or in the layers. A measured block looks like:
+ * <pre>
+ *     long t = Metrics.start();
+ *     ...
+ *     Metrics.stop("NeuralLayer.compute", t);
+ * </pre>
+ * When the metrics are disabled, which is the default, start() returns 0 and
+ * stop() returns immediately, so that the instrumentation costs nearly nothing.
+ * The metrics are enabled in the XML script with the metrics="true" attribute
+ * of the root element; a summary table is then printed at the end of the script,
+ * and the attribute metrics-file="file.json" additionally saves them as JSON.
+ * <p>
+ * Times are inclusive: the time of a convolution includes the time of the layers
+ * it computes. Timers can be used by several threads at the same time, in which
+ * case their total can exceed the wall-clock time.
+ * @author Mathias Seuret, Michele Alberti
+ */
+public final class Metrics {
+    /**
+     * Number of buckets of the histograms, bucket b counts the durations
+     * between 2^b and 2^(b+1) nanoseconds.
+     */
+    private static final int BUCKETS = 64;
+    /**
+     * True if the timers record.
+     */
+    private static volatile boolean enabled;
+    /**
+     * Timers, by name.
+     */
+    private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    /**
+     * Counts the calls and durations of a measured block.
+     */
+    public static final class Timer {
+        private final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        private Timer(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Records a duration.
+         * @param ns duration in nanoseconds
+         */
+        void record(long ns) {
+            if (ns < 0) {
+                ns = 0;
+            }
+            count.increment();
+            total.add(ns);
+            histogram.incrementAndGet(63 - Long.numberOfLeadingZeros(ns | 1));
+            long m = max.get();
+            while (ns > m && !max.compareAndSet(m, ns)) {
+                m = max.get();
+            }
+        }
+
+        /**
+         * @return the name of the timer
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the number of recorded durations
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @return the sum of the durations, in nanoseconds
+         */
+        public long getTotal() {
+            return total.sum();
+        }
+
+        /**
+         * @return the longest duration, in nanoseconds
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Estimates a percentile from the histogram, up to a factor 2.
+         * @param p percentile between 0 and 1
+         * @return the upper bound of the bucket containing the percentile, in nanoseconds
+         */
+        public long getPercentile(double p) {
+            long n = getCount();
+            long rank = (long) Math.ceil(p * n);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += histogram.get(b);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(getMax(), (b == 62) ? Long.MAX_VALUE : (2L << b) - 1);
+                }
+            }
+            return getMax();
+        }
+    }
+
+    private Metrics() {
+        // Only static methods
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Measuring
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Starts measuring a block.
+     * @return the current time, or 0 if the metrics are disabled
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Stops measuring a block and records its duration.
+     * @param name name of the timer
+     * @param start value returned by start()
+     */
+    public static void stop(String name, long start) {
+        if (start != 0) {
+            record(name, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records a duration if the metrics are enabled.
+     * @param name name of the timer
+     * @param ns duration in nanoseconds
+     */
+    public static void record(String name, long ns) {
+        if (enabled) {
+            timers.computeIfAbsent(name, Timer::new).record(ns);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Reporting
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return the timers, sorted by decreasing total time
+     */
+    public static List<Timer> getTimers() {
+        List<Timer> list = new ArrayList<>(timers.values());
+        list.sort((a, b) -> Long.compare(b.getTotal(), a.getTotal()));
+        return list;
+    }
+
+    /**
+     * @return a table with one line per timer, sorted by decreasing total time
+     */
+    public static String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-40s %12s %12s %12s %12s %12s %12s%n",
+                "Timer", "Calls", "Total [ms]", "Mean [us]", "p50 [us]", "p99 [us]", "Max [us]"));
+        for (Timer t : getTimers()) {
+            long n = t.getCount();
+            sb.append(String.format("%-40s %12d %12.1f %12.2f %12.2f %12.2f %12.2f%n",
+                    t.getName(),
+                    n,
+                    t.getTotal() / 1e6,
+                    (n == 0) ? 0 : t.getTotal() / 1e3 / n,
+                    t.getPercentile(0.5) / 1e3,
+                    t.getPercentile(0.99) / 1e3,
+                    t.getMax() / 1e3));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the timers as a JSON object, durations being in nanoseconds
+     */
+    public static String toJson() {
+        StringBuilder sb = new StringBuilder("{\n  \"timers\": [");
+        String sep = "\n";
+        for (Timer t : getTimers()) {
+            sb.append(sep);
+            sep = ",\n";
+            sb.append("    {\"name\": \"").append(t.getName().replace("\\", "\\\\").replace("\"", "\\\""))
+              .append("\", \"count\": ").append(t.getCount())
+              .append(", \"total_ns\": ").append(t.getTotal())
+              .append(", \"max_ns\": ").append(t.getMax())
+              .append(", \"p50_ns\": ").append(t.getPercentile(0.5))
+              .append(", \"p99_ns\": ").append(t.getPercentile(0.99))
+              .append(", \"histogram_log2_ns\": [");
+            int last = BUCKETS - 1;
+            while (last > 0 && t.histogram.get(last) == 0) {
+                last--;
+            }
+            for (int b = 0; b <= last; b++) {
+                sb.append((b == 0) ? "" : ", ").append(t.histogram.get(b));
+            }
+            sb.append("]}");
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Saves the timers as JSON.
+     * @param fileName name of the file
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(String fileName) throws IOException {
+        try (Writer w = new FileWriter(fileName)) {
+            w.write(toJson());
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return true if the timers record
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the timers.
+     * @param state true for recording
+     */
+    public static void setEnabled(boolean state) {
+        enabled = state;
+    }
+
+    /**
+     * Deletes all timers.
+     */
+    public static void reset() {
+        timers.clear();
+    }
+}
@@ -0,0 +1,364 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary container for the models (SCAE, classifiers). The structure of the
+ * model is stored with the Java serialization, but the weights of the layers
+ * are moved out of it and stored as raw blocks of floats, which are memory-mapped
+ * when the model is loaded. The gradients are not stored.
+ * <p>
+ * Layout of a file, all numbers being little-endian:
+ * <pre>
+ * offset  size
+ *  0      4       magic number "NLNM"
+ *  4      4       version of the format
+ *  8      8       offset of the structure
+ * 16      8       size of the structure in bytes
+ * 24      4       number of blocks
+ * 28      4       reserved, 0
+ * 32      16*n    for each block: offset (8 bytes) and number of floats (8 bytes)
+ * ...             the blocks of floats, then the structure
+ * </pre>
+ * A class takes part in this by checking in its writeObject() and readObject()
+ * methods whether the stream is an Output or an Input, see AbstractLayer.
+ * @author Mathias Seuret, Michele Alberti
+ */
+public final class ModelFile {
+    /**
+     * Current version of the format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * First bytes of a model file.
+     */
+    private static final byte[] MAGIC = {'N', 'L', 'N', 'M'};
+    /**
+     * Size of the fixed part of the header.
+     */
+    private static final int HEADER_SIZE = 32;
+    /**
+     * Size of an entry of the block table.
+     */
+    private static final int ENTRY_SIZE = 16;
+    /**
+     * Size of the buffer used for writing the blocks.
+     */
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private ModelFile() {
+        // Only static methods
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Saving
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Saves a model to a file.
+     * @param fileName file name
+     * @param model the model
+     * @throws IOException if the file cannot be written to
+     */
+    public static void save(String fileName, Serializable model) throws IOException {
+        // Serializing first, as this collects the blocks
+        ByteArrayOutputStream structure = new ByteArrayOutputStream();
+        List<float[]> blocks;
+        try (Output oos = new Output(structure)) {
+            oos.writeObject(model);
+            oos.flush();
+            blocks = oos.blocks;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + ENTRY_SIZE * blocks.size()).order(ByteOrder.LITTLE_ENDIAN);
+        long offset = header.capacity();
+        header.position(HEADER_SIZE);
+        for (float[] b : blocks) {
+            header.putLong(offset);
+            header.putLong(b.length);
+            offset += 4L * b.length;
+        }
+        header.position(0);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(offset);
+        header.putLong(structure.size());
+        header.putInt(blocks.size());
+        header.putInt(0);
+        header.position(0);
+
+        try (FileChannel fc = FileChannel.open(
+                Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(fc, header);
+
+            ByteBuffer buf = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            FloatBuffer fb = buf.asFloatBuffer();
+            for (float[] b : blocks) {
+                for (int pos = 0; pos < b.length; pos += fb.capacity()) {
+                    int n = Math.min(fb.capacity(), b.length - pos);
+                    fb.clear();
+                    fb.put(b, pos, n);
+                    buf.clear();
+                    buf.limit(4 * n);
+                    writeFully(fc, buf);
+                }
+            }
+
+            writeFully(fc, ByteBuffer.wrap(structure.toByteArray()));
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer.
+     * @param fc channel
+     * @param buf buffer
+     * @throws IOException if the bytes cannot be written
+     */
+    private static void writeFully(FileChannel fc, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            fc.write(buf);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Loading
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Checks whether a file has been written by save().
+     * @param fileName file name
+     * @return true if the file starts with the magic number
+     * @throws IOException if the file cannot be read
+     */
+    public static boolean isModelFile(String fileName) throws IOException {
+        byte[] start = new byte[MAGIC.length];
+        try (DataInputStream is = new DataInputStream(new FileInputStream(fileName))) {
+            is.readFully(start);
+        } catch (EOFException e) {
+            return false;
+        }
+        return Arrays.equals(start, MAGIC);
+    }
+
+    /**
+     * Loads a model. Files which are not model files are read as serialized
+     * objects, as they were written by older versions.
+     * @param fileName file name
+     * @return the model
+     * @throws IOException if the file cannot be read or has an unknown version
+     * @throws ClassNotFoundException if the file contains an unknown class
+     */
+    public static Object load(String fileName) throws IOException, ClassNotFoundException {
+        if (!isModelFile(fileName)) {
+            try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(fileName)))) {
+                return ois.readObject();
+            }
+        }
+
+        try (FileChannel fc = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            ByteBuffer header = fc.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.position(MAGIC.length);
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(fileName + " has version " + version + " of the model format, expected " + VERSION);
+            }
+            long structureOffset = header.getLong();
+            long structureSize = header.getLong();
+            int nbBlocks = header.getInt();
+            if (structureSize > Integer.MAX_VALUE) {
+                throw new IOException(fileName + " has a too large structure");
+            }
+
+            ByteBuffer table = fc.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long) ENTRY_SIZE * nbBlocks)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            long[] offsets = new long[nbBlocks];
+            int[] lengths = new int[nbBlocks];
+            for (int b = 0; b < nbBlocks; b++) {
+                offsets[b] = table.getLong();
+                long length = table.getLong();
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException(fileName + " has a too large block");
+                }
+                lengths[b] = (int) length;
+            }
+
+            byte[] structure = new byte[(int) structureSize];
+            fc.map(FileChannel.MapMode.READ_ONLY, structureOffset, structureSize).get(structure);
+
+            // Mapping all blocks at once, unless there are more than 2GB of them
+            long dataStart = HEADER_SIZE + (long) ENTRY_SIZE * nbBlocks;
+            long dataSize = structureOffset - dataStart;
+            FloatBuffer data = null;
+            if (dataSize <= Integer.MAX_VALUE) {
+                data = fc.map(FileChannel.MapMode.READ_ONLY, dataStart, dataSize)
+                        .order(ByteOrder.LITTLE_ENDIAN)
+                        .asFloatBuffer();
+            }
+
+            try (Input ois = new Input(new ByteArrayInputStream(structure), fc, data, dataStart, offsets, lengths)) {
+                return ois.readObject();
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Streams
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Stream used for serializing the structure of a model. The arrays given
+     * to addBlock() are stored outside of the structure.
+     */
+    public static final class Output extends ObjectOutputStream {
+        /**
+         * Blocks to be written.
+         */
+        private final List<float[]> blocks = new ArrayList<>();
+        /**
+         * Number of the blocks, an array referenced twice is stored once.
+         */
+        private final Map<float[], Integer> ids = new IdentityHashMap<>();
+
+        private Output(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        /**
+         * Stores an array outside of the structure.
+         * @param block array of floats, can be null
+         * @return number of the block, to be given to Input.getBlock() when loading
+         */
+        public int addBlock(float[] block) {
+            if (block == null) {
+                return -1;
+            }
+            Integer id = ids.get(block);
+            if (id == null) {
+                id = blocks.size();
+                blocks.add(block);
+                ids.put(block, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Stream used for deserializing the structure of a model.
+     */
+    public static final class Input extends ObjectInputStream {
+        /**
+         * File containing the blocks.
+         */
+        private final FileChannel fc;
+        /**
+         * All blocks mapped at once, null if they are mapped one by one.
+         */
+        private final FloatBuffer data;
+        /**
+         * Offset of the mapped blocks in the file.
+         */
+        private final long dataStart;
+        /**
+         * Offset of the blocks in the file.
+         */
+        private final long[] offsets;
+        /**
+         * Number of floats of the blocks.
+         */
+        private final int[] lengths;
+        /**
+         * Blocks which have already been read, so that shared arrays stay shared.
+         */
+        private final float[][] loaded;
+
+        private Input(InputStream in, FileChannel fc, FloatBuffer data, long dataStart,
+                      long[] offsets, int[] lengths) throws IOException {
+            super(in);
+            this.fc = fc;
+            this.data = data;
+            this.dataStart = dataStart;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.loaded = new float[offsets.length][];
+        }
+
+        /**
+         * Reads a block from the memory-mapped file.
+         * @param id number returned by Output.addBlock()
+         * @return the array, null if a null array was stored
+         * @throws IOException if the block cannot be read
+         */
+        public float[] getBlock(int id) throws IOException {
+            if (id == -1) {
+                return null;
+            }
+            if (id < 0 || id >= offsets.length) {
+                throw new IOException("invalid block number " + id);
+            }
+            if (loaded[id] == null) {
+                float[] block = new float[lengths[id]];
+                if (data != null) {
+                    FloatBuffer fb = data.duplicate();
+                    fb.position((int) ((offsets[id] - dataStart) / 4));
+                    fb.get(block);
+                } else {
+                    fc.map(FileChannel.MapMode.READ_ONLY, offsets[id], 4L * lengths[id])
+                            .order(ByteOrder.LITTLE_ENDIAN)
+                            .asFloatBuffer()
+                            .get(block);
+                }
+                loaded[id] = block;
+            }
+            return loaded[id];
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package diuf.diva.dia.ms.util;
 
+import Jama.EigenvalueDecomposition;
 import Jama.Matrix;
 import com.mkobos.pca_transform.Assume;
 import com.mkobos.pca_transform.covmatrixevd.CovarianceMatrixEVDCalculator;
@@ -7,6 +8,8 @@ import com.mkobos.pca_transform.covmatrixevd.EVDResult;
 import com.mkobos.pca_transform.covmatrixevd.SVDBased;
 import diuf.diva.dia.ms.util.misc.EVDT;
 
+import java.util.Arrays;
+
 /**
  * This is a class for doing PCAs, highly
  * based on https://github.com/mkobos/pca_transform
@@ -30,6 +33,20 @@ public final class PCA {
     private final double[] means;
     private final double threshold;
 
+    /**
+     * Methods for computing the components from a covariance matrix.
+     */
+    public enum Solver {
+        /**
+         * Full eigenvalue decomposition, in double precision.
+         */
+        EIGEN,
+        /**
+         * Randomized subspace iteration computing only the wanted components, in single precision.
+         */
+        RANDOMIZED
+    }
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Constructor
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -66,27 +83,66 @@ public final class PCA {
      * @param nbComponents dimensionality of the transformation matrix (dimensions of the sub subspace)
      */
     public PCA(Matrix data, CovarianceMatrixEVDCalculator evdCalc, int nbComponents) {
-        if (data.getColumnDimension() < nbComponents) {
-            throw new IllegalArgumentException(
-                    "[ERROR][PCA] The data has not enough dimension(" + data.getColumnDimension() + ")"
-            );
-        }
+        this(getColumnsMeans(checkData(data, nbComponents)), data, evdCalc, nbComponents);
+    }
 
-        for (int r = 0; r < data.getRowDimension(); r++) {
-            for (int c = 0; c < data.getColumnDimension(); c++) {
-                if (data.get(r, c) != data.get(r, c)) {
-                    throw new RuntimeException("what the hell");
-                }
-            }
-        }
+    /**
+     * Create the PCA transformation from the covariance of samples accumulated
+     * in a stream, without needing the data matrix. The eigenvalue decomposition
+     * of the covariance matrix gives the same components as the SVD of the
+     * centered data, up to their signs.
+     *
+     * @param covariance accumulator to which the samples have been added
+     * @param nbComponents dimensionality of the transformation matrix (dimensions of the sub subspace)
+     */
+    public PCA(CovarianceAccumulator covariance, int nbComponents) {
+        this(covariance, nbComponents, Solver.EIGEN);
+    }
 
-        // Get the number of input dimensions.
-        this.means = getColumnsMeans(data);
+    /**
+     * Create the PCA transformation from the covariance of samples accumulated
+     * in a stream, with the given solver. With the randomized solver, only the
+     * requested components are computed, so belongsToGeneratedSubspace() only
+     * considers the discarded ones among them.
+     *
+     * @param covariance accumulator to which the samples have been added
+     * @param nbComponents dimensionality of the transformation matrix (dimensions of the sub subspace)
+     * @param solver method used for computing the components
+     */
+    public PCA(CovarianceAccumulator covariance, int nbComponents, Solver solver) {
+        this(
+                checkDimension(covariance.getDimension(), nbComponents),
+                covariance.getMeans(),
+                (solver == Solver.RANDOMIZED)
+                        ? SubspaceIteration.run(covariance.getCovarianceArray(), covariance.getDimension(), nbComponents)
+                        : sortedEigenDecomposition(covariance.getCovariance())
+        );
+    }
 
+    /**
+     * Create the PCA transformation of a data matrix whose means are known.
+     *
+     * @param means means of the columns of the data
+     * @param data data matrix, rows are the samples
+     * @param evdCalc method of computing eigenvalue decomposition of data's covariance matrix
+     * @param nbComponents dimensionality of the transformation matrix
+     */
+    private PCA(double[] means, Matrix data, CovarianceMatrixEVDCalculator evdCalc, int nbComponents) {
         // Center the data matrix columns about zero
-        data = shiftColumns(data, means);
+        this(nbComponents, means, evdCalc.run(shiftColumns(data, means)));
+    }
+
+    /**
+     * Create the PCA transformation from the eigenvalue decomposition of the
+     * covariance matrix.
+     *
+     * @param nbComponents dimensionality of the transformation matrix
+     * @param means means of the data
+     * @param evd eigenvalue decomposition, sorted by decreasing eigenvalues
+     */
+    private PCA(int nbComponents, double[] means, EVDResult evd) {
+        this.means = means;
 
-        EVDResult evd = evdCalc.run(data);
         EVDT evdT = new EVDT(evd);
 
         // A 3-sigma-like ad-hoc rule
@@ -107,6 +163,42 @@ public final class PCA {
 
     }
 
+    /**
+     * Verifies that the data has enough dimensions and no NaN.
+     *
+     * @param data data matrix
+     * @param nbComponents dimensionality of the transformation matrix
+     * @return the data
+     */
+    private static Matrix checkData(Matrix data, int nbComponents) {
+        checkDimension(data.getColumnDimension(), nbComponents);
+
+        for (int r = 0; r < data.getRowDimension(); r++) {
+            for (int c = 0; c < data.getColumnDimension(); c++) {
+                if (data.get(r, c) != data.get(r, c)) {
+                    throw new RuntimeException("what the hell");
+                }
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Verifies that the data has enough dimensions.
+     *
+     * @param dim dimension of the data
+     * @param nbComponents dimensionality of the transformation matrix
+     * @return nbComponents
+     */
+    private static int checkDimension(int dim, int nbComponents) {
+        if (dim < nbComponents) {
+            throw new IllegalArgumentException(
+                    "[ERROR][PCA] The data has not enough dimension(" + dim + ")"
+            );
+        }
+        return nbComponents;
+    }
+
     ///////////////////////////////////////////////////////////////////////////////////////////////
     // Public
     ///////////////////////////////////////////////////////////////////////////////////////////////
@@ -221,6 +313,38 @@ public final class PCA {
         return shiftColumns(data, getColumnsMeans(data));
     }
 
+    /**
+     * Computes the eigenvalue decomposition of a symmetric matrix, with the
+     * eigenvalues sorted in decreasing order. Negative eigenvalues, caused by
+     * rounding errors, are set to zero.
+     *
+     * @param c a symmetric matrix, e.g., a covariance matrix
+     * @return the eigenvalues on the diagonal of d, and the eigenvectors in the columns of v
+     */
+    public static EVDResult sortedEigenDecomposition(Matrix c) {
+        EigenvalueDecomposition evd = c.eig();
+        double[] values = evd.getRealEigenvalues();
+        Matrix vectors = evd.getV();
+        int n = values.length;
+
+        // Jama returns the eigenvalues of symmetric matrices in increasing order
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(values[b], values[a]));
+
+        Matrix d = new Matrix(n, n);
+        Matrix v = new Matrix(vectors.getRowDimension(), n);
+        for (int i = 0; i < n; i++) {
+            d.set(i, i, Math.max(0, values[order[i]]));
+            for (int r = 0; r < vectors.getRowDimension(); r++) {
+                v.set(r, i, vectors.get(r, order[i]));
+            }
+        }
+        return new EVDResult(d, v);
+    }
+
     /**
      * Subsamples a matrix
      *
@@ -0,0 +1,186 @@
+/*****************************************************
+  N-light-N
+
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Pool of threads shared by all the parallel computations of the library,
+ * so that no thread has to be created when something is computed in parallel.
+ * The number of threads can be set in the XML script with the threads
+ * attribute of the root element, by default all processors are used.
+ * <p>
+ * Parallel computations can be nested: a task running in the pool can
+ * start other parallel computations, they will share the same threads.
+ * @author Mathias Seuret, Michele Alberti
+ */
+public final class Parallel {
+    /**
+     * Number of threads used. It is read without locking, as it is checked
+     * in the inner loops. It is only changed under the lock, with the pool.
+     */
+    private static volatile int nbThreads = Runtime.getRuntime().availableProcessors();
+    /**
+     * The pool, created when it is needed for the first time.
+     */
+    private static ForkJoinPool pool;
+
+    /**
+     * Task working on a range of indices.
+     */
+    @FunctionalInterface
+    public interface RangeTask {
+        /**
+         * Processes the indices from (included) to (excluded).
+         * @param chunk number of the chunk, between 0 and getNbThreads()-1,
+         *              two chunks running at the same time never have the same number
+         * @param from first index
+         * @param to last index + 1
+         */
+        void run(int chunk, int from, int to);
+    }
+
+    private Parallel() {
+        // Only static methods
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Computing
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Splits the indices 0..n-1 into at most getNbThreads() contiguous chunks
+     * and processes them in parallel. Returns when all chunks are done. The
+     * chunk number can be used for selecting data owned by a single thread,
+     * e.g., a replica of an autoencoder.
+     * @param n number of indices
+     * @param task what to do with the chunks
+     */
+    public static void forChunks(int n, RangeTask task) {
+        int nbChunks = Math.min(getNbThreads(), n);
+        if (nbChunks <= 1) {
+            if (n > 0) {
+                task.run(0, 0, n);
+            }
+            return;
+        }
+
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[nbChunks];
+        for (int c = 0; c < nbChunks; c++) {
+            final int chunk = c;
+            final int from = (int) ((long) n * c / nbChunks);
+            final int to = (int) ((long) n * (c + 1) / nbChunks);
+            tasks[c] = ForkJoinTask.adapt(() -> task.run(chunk, from, to));
+        }
+        invokeAll(tasks);
+    }
+
+    /**
+     * Processes the indices 0..n-1 in parallel, each index being a separate
+     * task. Use it for big independent jobs, e.g., one image per index.
+     * Returns when all indices have been processed.
+     * @param n number of indices
+     * @param task what to do with an index
+     */
+    public static void forEach(int n, IntConsumer task) {
+        if (getNbThreads() <= 1 || n <= 1) {
+            for (int i = 0; i < n; i++) {
+                task.accept(i);
+            }
+            return;
+        }
+
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[n];
+        for (int i = 0; i < n; i++) {
+            final int index = i;
+            tasks[i] = ForkJoinTask.adapt(() -> task.accept(index));
+        }
+        invokeAll(tasks);
+    }
+
+    /**
+     * Runs the tasks in the pool and waits for them.
+     * @param tasks the tasks
+     */
+    private static void invokeAll(final ForkJoinTask<?>[] tasks) {
+        ForkJoinPool p = getPool();
+        if (ForkJoinTask.getPool() == p) {
+            // Already inside of the pool, the current thread helps
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            p.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    ForkJoinTask.invokeAll(tasks);
+                }
+            });
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return the number of threads used for parallel computations
+     */
+    public static int getNbThreads() {
+        return nbThreads;
+    }
+
+    /**
+     * Sets the number of threads used for parallel computations. With
+     * a single thread, everything is computed by the calling thread.
+     * @param n number of threads
+     */
+    public static synchronized void setNbThreads(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("the number of threads must be at least 1, got " + n);
+        }
+        if (n == nbThreads) {
+            return;
+        }
+        nbThreads = n;
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * @return the pool of threads
+     */
+    public static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(nbThreads);
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,281 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.util;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Prepares training patches in the background. Producer threads select
+ * images of a dataset, select random positions in them and copy the
+ * patches into a ring buffer, while the training thread takes the patches
+ * out of it. Loading the images, e.g., from a LazyDataset, is thus done
+ * by the producers and the training thread does not wait for it.
+ * <p>
+ * The images are selected in the order of a random permutation of the
+ * dataset, which is shuffled again each time all images have been used,
+ * so that an epoch of size() patches uses each image once.
+ * <p>
+ * The generators of the sampler are split from Rng when it is created. With
+ * a seed and a single producer, the sequence of patches can be reproduced.
+ * With several producers, the order in which they fill the buffer depends on
+ * the scheduling of the threads, so seeded runs are not reproducible.
+ * @author Mathias Seuret
+ */
+public class PatchSampler implements AutoCloseable {
+
+    /**
+     * Dataset from which the patches are taken.
+     */
+    private final Dataset ds;
+
+    /**
+     * Width of the patches.
+     */
+    private final int width;
+
+    /**
+     * Height of the patches.
+     */
+    private final int height;
+
+    /**
+     * Depth of the patches.
+     */
+    private final int depth;
+
+    /**
+     * Number of values of a patch.
+     */
+    private final int patchLength;
+
+    /**
+     * Values of all patches of the ring buffer, one after the other.
+     */
+    private final float[] buffer;
+
+    /**
+     * Slots of the buffer which can be filled by the producers.
+     */
+    private final BlockingQueue<Integer> free;
+
+    /**
+     * Slots of the buffer containing a patch, in the order in which they were filled.
+     */
+    private final BlockingQueue<Integer> filled;
+
+    /**
+     * Producer threads.
+     */
+    private final Thread[] producers;
+
+    /**
+     * Order in which the images are used.
+     */
+    private final int[] order;
+
+    /**
+     * Position of the next image in the order.
+     */
+    private int nextImage;
+
+    /**
+     * Generator used for shuffling the order, shared by the producers.
+     */
+    private final SplittableRandom shuffleRand;
+
+    /**
+     * Reason why a producer stopped, null if none did.
+     */
+    private volatile Throwable failure;
+
+    /**
+     * Slot value telling the training thread that a producer failed.
+     */
+    private static final int FAILED = -1;
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a sampler and starts its producer threads.
+     * @param ds dataset, all its images must be larger than the patches
+     * @param width width of the patches
+     * @param height height of the patches
+     * @param depth depth of the patches, must be the depth of the images
+     * @param capacity number of patches prepared in advance
+     * @param nbProducers number of producer threads
+     */
+    public PatchSampler(Dataset ds, int width, int height, int depth, int capacity, int nbProducers) {
+        if (ds.isEmpty()) {
+            throw new IllegalArgumentException("cannot sample patches from an empty dataset");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("the capacity must be at least 1, got " + capacity);
+        }
+        if (nbProducers < 1) {
+            throw new IllegalArgumentException("the number of producers must be at least 1, got " + nbProducers);
+        }
+
+        this.ds = ds;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.patchLength = width * height * depth;
+        this.buffer = new float[capacity * patchLength];
+
+        free = new ArrayBlockingQueue<>(capacity);
+        filled = new ArrayBlockingQueue<>(capacity + nbProducers);
+        for (int s = 0; s < capacity; s++) {
+            free.add(s);
+        }
+
+        order = new int[ds.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        nextImage = order.length;
+        shuffleRand = Rng.split();
+
+        producers = new Thread[nbProducers];
+        for (int p = 0; p < nbProducers; p++) {
+            SplittableRandom rand = Rng.split();
+            producers[p] = new Thread(() -> produce(rand), "patch-sampler-" + p);
+            producers[p].setDaemon(true);
+            producers[p].start();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Producing
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Body of the producer threads: fills free slots until interrupted.
+     * @param rand generator of the thread
+     */
+    private void produce(SplittableRandom rand) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                int slot = free.take();
+                DataBlock db = ds.get(nextImage());
+
+                int x = rand.nextInt(db.getWidth() - width);
+                int y = rand.nextInt(db.getHeight() - height);
+                db.patchToArray(buffer, slot * patchLength, x, y, width, height);
+
+                filled.put(slot);
+            }
+        } catch (InterruptedException e) {
+            // The sampler has been closed
+        } catch (Throwable t) {
+            failure = t;
+            filled.offer(FAILED);
+        }
+    }
+
+    /**
+     * @return index of the next image to use
+     */
+    private synchronized int nextImage() {
+        if (nextImage == order.length) {
+            for (int i = 0; i < order.length; i++) {
+                int j = shuffleRand.nextInt(order.length);
+                int k = order[i];
+                order[i] = order[j];
+                order[j] = k;
+            }
+            nextImage = 0;
+        }
+        return order[nextImage++];
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Consuming
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Copies the next patch into a datablock, waiting for it if needed.
+     * @param dst datablock having the size of the patches
+     */
+    public void next(DataBlock dst) {
+        assert (dst.getWidth() == width);
+        assert (dst.getHeight() == height);
+        assert (dst.getDepth() == depth);
+
+        int slot;
+        try {
+            slot = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Error("interrupted while waiting for a patch", e);
+        }
+        if (slot == FAILED) {
+            filled.offer(FAILED);
+            throw new Error("the patch sampler failed: " + failure, failure);
+        }
+
+        // A datablock covering exactly the patch has the layout of patchToArray()
+        System.arraycopy(buffer, slot * patchLength, dst.getData(), 0, patchLength);
+        free.add(slot);
+    }
+
+    /**
+     * Creates a datablock of the size of the patches, to be used with next().
+     * @return a new datablock
+     */
+    public DataBlock createPatch() {
+        return new DataBlock(width, height, depth);
+    }
+
+    /**
+     * @return the number of images of the dataset, i.e., the number of patches of an epoch
+     */
+    public int size() {
+        return order.length;
+    }
+
+    /**
+     * Stops the producer threads.
+     */
+    @Override
+    public void close() {
+        for (Thread t : producers) {
+            t.interrupt();
+        }
+        for (Thread t : producers) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.util;
+
+import java.util.SplittableRandom;
+
+/**
+ * Random numbers generators used by the library instead of Math.random(),
+ * whose single shared seed is a contention point for parallel computations
+ * and makes the results impossible to reproduce.
+ * <p>
+ * Each thread obtains its own generator with get(), and tasks which must not
+ * depend on the thread running them can obtain a dedicated generator with
+ * split(). All generators are derived from a root generator, which can be
+ * seeded in the XML script with the seed attribute of the root element. With
+ * a seed, the computations done by a single thread, or by tasks using split
+ * generators created in a fixed order, can be reproduced. Results depending
+ * on how threads interleave, e.g., patches prefetched by several producers of
+ * a PatchSampler, are not reproducible even with a seed.
+ * @author Mathias Seuret, Michele Alberti
+ */
+public final class Rng {
+    /**
+     * Generator from which all other generators are split.
+     */
+    private static SplittableRandom root = new SplittableRandom();
+    /**
+     * Incremented when the seed changes, so that the threads replace their generators.
+     */
+    private static volatile int generation;
+    /**
+     * Generator of each thread.
+     */
+    private static final ThreadLocal<Generator> generators = new ThreadLocal<>();
+
+    /**
+     * Generator owned by a thread.
+     */
+    private static final class Generator {
+        final int generation;
+        final SplittableRandom random;
+
+        Generator(int generation, SplittableRandom random) {
+            this.generation = generation;
+            this.random = random;
+        }
+    }
+
+    private Rng() {
+        // Only static methods
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Generators
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the generator of the current thread. It must not be given to
+     * other threads.
+     * @return the generator of the current thread
+     */
+    public static SplittableRandom get() {
+        Generator g = generators.get();
+        if (g == null || g.generation != generation) {
+            g = newGenerator();
+            generators.set(g);
+        }
+        return g.random;
+    }
+
+    /**
+     * Creates a new generator, independent of the other ones. Use it for
+     * giving each task its own generator before starting them.
+     * @return a new generator
+     */
+    public static synchronized SplittableRandom split() {
+        return root.split();
+    }
+
+    /**
+     * @return a generator for the current thread
+     */
+    private static synchronized Generator newGenerator() {
+        return new Generator(generation, root.split());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Seeds the root generator. The generators of the threads are replaced
+     * the next time they are used.
+     * @param seed the seed
+     */
+    public static synchronized void setSeed(long seed) {
+        root = new SplittableRandom(seed);
+        generation++;
+    }
+}
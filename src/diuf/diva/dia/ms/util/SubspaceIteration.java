@@ -0,0 +1,190 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.util;
+
+import Jama.Matrix;
+import com.mkobos.pca_transform.covmatrixevd.EVDResult;
+import diuf.diva.dia.ms.ml.layer.Kernels;
+
+import java.util.SplittableRandom;
+
+/**
+ * Randomized subspace iteration computing only the leading eigenvectors of a
+ * symmetric matrix, e.g., a covariance matrix, in single precision. A random
+ * basis slightly larger than the number of wanted components is multiplied
+ * several times by the matrix and orthonormalized; the eigenvectors are then
+ * extracted from the small projection of the matrix on this basis.
+ * <p>
+ * With m dimensions and k components, this costs O(m*m*k) operations instead
+ * of the O(m*m*m) of a full decomposition. The products are computed in
+ * parallel, and the result matches the full decomposition closely as long as
+ * the k-th eigenvalue is well separated from the following ones.
+ * @author Mathias Seuret, Michele Alberti
+ */
+public final class SubspaceIteration {
+    /**
+     * Number of additional basis vectors, improving the accuracy of the last components.
+     */
+    public static final int OVERSAMPLING = 10;
+    /**
+     * Number of multiplications of the basis by the matrix.
+     */
+    public static final int ITERATIONS = 6;
+
+    private SubspaceIteration() {
+        // Only static methods
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+    // Computing
+    ///////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Computes the leading eigenvectors with the default parameters.
+     * @param c symmetric m x m matrix, row-major
+     * @param m dimension of the matrix
+     * @param k number of components
+     * @return the k largest eigenvalues on the diagonal of d, and their eigenvectors in the columns of v
+     */
+    public static EVDResult run(float[] c, int m, int k) {
+        return run(c, m, k, OVERSAMPLING, ITERATIONS);
+    }
+
+    /**
+     * Computes the leading eigenvectors.
+     * @param c symmetric m x m matrix, row-major
+     * @param m dimension of the matrix
+     * @param k number of components
+     * @param oversampling number of additional basis vectors
+     * @param iterations number of multiplications of the basis by the matrix
+     * @return the k largest eigenvalues on the diagonal of d, and their eigenvectors in the columns of v
+     */
+    public static EVDResult run(float[] c, int m, int k, int oversampling, int iterations) {
+        if (k < 1 || k > m) {
+            throw new IllegalArgumentException("cannot compute " + k + " components of a " + m + "x" + m + " matrix");
+        }
+        int l = Math.min(m, k + oversampling);
+
+        // Random starting basis, one vector per row
+        float[] q = new float[l * m];
+        SplittableRandom rand = Rng.get();
+        for (int i = 0; i < q.length; i++) {
+            q[i] = (float) (Math.sqrt(-2 * Math.log(1 - rand.nextDouble())) * Math.cos(2 * Math.PI * rand.nextDouble()));
+        }
+        orthonormalize(q, l, m);
+
+        float[] y = new float[l * m];
+        for (int it = 0; it < iterations; it++) {
+            multiply(c, m, q, y, l);
+            float[] t = q;
+            q = y;
+            y = t;
+            orthonormalize(q, l, m);
+        }
+
+        // Projection of the matrix on the basis: B = Q' C Q
+        multiply(c, m, q, y, l);
+        Kernels kernels = Kernels.get();
+        Matrix b = new Matrix(l, l);
+        for (int i = 0; i < l; i++) {
+            for (int j = i; j < l; j++) {
+                double v = kernels.dot(0, q, i * m, y, j * m, m);
+                v = (v + kernels.dot(0, q, j * m, y, i * m, m)) / 2;
+                b.set(i, j, v);
+                b.set(j, i, v);
+            }
+        }
+        EVDResult small = PCA.sortedEigenDecomposition(b);
+
+        // Eigenvectors of the matrix: V = Q' U, keeping the k leading ones
+        Matrix d = new Matrix(k, k);
+        Matrix v = new Matrix(m, k);
+        for (int col = 0; col < k; col++) {
+            d.set(col, col, small.d.get(col, col));
+            for (int a = 0; a < l; a++) {
+                double u = small.v.get(a, col);
+                for (int i = 0; i < m; i++) {
+                    v.set(i, col, v.get(i, col) + u * q[a * m + i]);
+                }
+            }
+        }
+        return new EVDResult(d, v);
+    }
+
+    /**
+     * Multiplies the matrix by each vector of a basis, in parallel over the rows of the matrix.
+     * @param c symmetric m x m matrix, row-major
+     * @param m dimension of the matrix
+     * @param q basis, one vector per row
+     * @param y destination, one product per row
+     * @param l number of vectors
+     */
+    private static void multiply(float[] c, int m, float[] q, float[] y, int l) {
+        Parallel.forChunks(m, (chunk, from, to) -> {
+            Kernels kernels = Kernels.get();
+            for (int i = from; i < to; i++) {
+                for (int j = 0; j < l; j++) {
+                    y[j * m + i] = kernels.dot(0, c, i * m, q, j * m, m);
+                }
+            }
+        });
+    }
+
+    /**
+     * Orthonormalizes the vectors of a basis with the modified Gram-Schmidt
+     * process, applied twice for stability. A vector (nearly) depending on the
+     * previous ones is replaced by a random one.
+     * @param q basis, one vector per row
+     * @param l number of vectors
+     * @param m dimension of the vectors
+     */
+    private static void orthonormalize(float[] q, int l, int m) {
+        Kernels kernels = Kernels.get();
+        for (int j = 0; j < l; j++) {
+            int oj = j * m;
+            float before = (float) Math.sqrt(kernels.dot(0, q, oj, q, oj, m));
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = 0; i < j; i++) {
+                    float p = kernels.dot(0, q, i * m, q, oj, m);
+                    kernels.axpy(-p, q, i * m, q, oj, m);
+                }
+            }
+            float norm = (float) Math.sqrt(kernels.dot(0, q, oj, q, oj, m));
+            if (!(norm > 1e-5f * before)) {
+                SplittableRandom rand = Rng.get();
+                for (int i = 0; i < m; i++) {
+                    q[oj + i] = (float) (rand.nextDouble() - 0.5);
+                }
+                j--;
+                continue;
+            }
+            for (int i = 0; i < m; i++) {
+                q[oj + i] /= norm;
+            }
+        }
+    }
+}
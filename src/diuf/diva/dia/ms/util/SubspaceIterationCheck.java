@@ -0,0 +1,151 @@
+/*****************************************************
+  N-light-N
+  
+  A Highly-Adaptable Java Library for Document Analysis with
+  Convolutional Auto-Encoders and Related Architectures.
+  
+  -------------------
+  Author:
+  2016 by Mathias Seuret <mathias.seuret@unifr.ch>
+      and Michele Alberti <michele.alberti@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+
+package diuf.diva.dia.ms.util;
+
+import Jama.Matrix;
+import com.mkobos.pca_transform.covmatrixevd.EVDResult;
+
+import java.util.SplittableRandom;
+
+/**
+ * Checks the accuracy of the randomized solver of the PCA against the full
+ * eigenvalue decomposition. Samples with a decaying spectrum are generated
+ * from a fixed seed and accumulated in a CovarianceAccumulator, then the k
+ * leading components are computed by SubspaceIteration and by
+ * PCA.sortedEigenDecomposition(). The check passes if:
+ * <ul>
+ * <li>each of the k eigenvalues differs by at most EIGENVALUE_TOLERANCE,
+ * relatively to the eigenvalue of the full decomposition;</li>
+ * <li>the cosine of the largest principal angle between the two subspaces,
+ * i.e., the smallest singular value of V'U, is at least 1-SUBSPACE_TOLERANCE.</li>
+ * </ul>
+ * Usage: java diuf.diva.dia.ms.util.SubspaceIterationCheck [dimension] [components] [seed]
+ * <p>
+ * The exit status is 1 if the check fails.
+ * @author Mathias Seuret, Michele Alberti
+ */
+public final class SubspaceIterationCheck {
+    /**
+     * Maximum relative error of the eigenvalues.
+     */
+    public static final double EIGENVALUE_TOLERANCE = 1e-3;
+    /**
+     * Maximum distance to 1 of the cosine of the largest principal angle.
+     */
+    public static final double SUBSPACE_TOLERANCE = 1e-4;
+
+    private SubspaceIterationCheck() {
+        // Only the main method
+    }
+
+    /**
+     * Runs the check.
+     * @param args dimension (default 200), number of components (default 16) and seed (default 1)
+     */
+    public static void main(String[] args) {
+        int m = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        int k = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+        long seed = (args.length > 2) ? Long.parseLong(args[2]) : 1;
+
+        // The random basis of the solver comes from the generator of this thread
+        Rng.setSeed(seed);
+        CovarianceAccumulator covariance = sample(m, 20 * m, new SplittableRandom(seed));
+
+        long start = System.currentTimeMillis();
+        EVDResult full = PCA.sortedEigenDecomposition(covariance.getCovariance());
+        long eigenTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        EVDResult randomized = SubspaceIteration.run(covariance.getCovarianceArray(), m, k);
+        long randomizedTime = System.currentTimeMillis() - start;
+
+        double worstValue = 0;
+        for (int i = 0; i < k; i++) {
+            double expected = full.d.get(i, i);
+            worstValue = Math.max(worstValue, Math.abs(randomized.d.get(i, i) - expected) / expected);
+        }
+
+        Matrix v = full.v.getMatrix(0, m - 1, 0, k - 1);
+        double[] cosines = v.transpose().times(randomized.v).svd().getSingularValues();
+        double worstCosine = cosines[cosines.length - 1];
+
+        System.out.println(
+                "dimension " + m + ", components " + k + ", seed " + seed
+                        + " (eigen: " + eigenTime + "ms, randomized: " + randomizedTime + "ms)"
+        );
+        System.out.println("largest relative eigenvalue error: " + worstValue + " (tolerance " + EIGENVALUE_TOLERANCE + ")");
+        System.out.println("cosine of the largest principal angle: " + worstCosine + " (tolerance " + SUBSPACE_TOLERANCE + ")");
+
+        boolean ok = worstValue <= EIGENVALUE_TOLERANCE && worstCosine >= 1 - SUBSPACE_TOLERANCE;
+        System.out.println(ok ? "OK" : "FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Accumulates samples whose spectrum decays: the j-th latent value has a
+     * standard deviation of 1/(j+1), and is spread on all dimensions by a fixed
+     * random mixing matrix.
+     * @param m dimension of the samples
+     * @param n number of samples
+     * @param rand random numbers generator
+     * @return the accumulated covariance
+     */
+    private static CovarianceAccumulator sample(int m, int n, SplittableRandom rand) {
+        float[] mixing = new float[m * m];
+        for (int i = 0; i < mixing.length; i++) {
+            mixing[i] = (float) gaussian(rand);
+        }
+
+        CovarianceAccumulator covariance = new CovarianceAccumulator(m);
+        float[] latent = new float[m];
+        float[] x = new float[m];
+        for (int s = 0; s < n; s++) {
+            for (int j = 0; j < m; j++) {
+                latent[j] = (float) (gaussian(rand) / (j + 1));
+            }
+            for (int i = 0; i < m; i++) {
+                float sum = 0;
+                for (int j = 0; j < m; j++) {
+                    sum += mixing[i * m + j] * latent[j];
+                }
+                x[i] = sum;
+            }
+            covariance.add(x, 0);
+        }
+        return covariance;
+    }
+
+    /**
+     * @param rand random numbers generator
+     * @return a normally distributed value
+     */
+    private static double gaussian(SplittableRandom rand) {
+        return Math.sqrt(-2 * Math.log(1 - rand.nextDouble())) * Math.cos(2 * Math.PI * rand.nextDouble());
+    }
+}